@@ -55,7 +55,9 @@ public class InCallMetricsTestDbUtils {
 
     public static boolean clearAllEntries(Context context) {
         List<ContentValues> list = new LinkedList<ContentValues>();
-        SQLiteDatabase db = InCallMetricsDbHelper.getInstance(context).getWritableDatabase();
+        InCallMetricsDbHelper dbHelper = InCallMetricsDbHelper.getInstance(context);
+        dbHelper.flush();
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
         if (db == null) {
             Log.d(TAG, "No valid db");
             return false;
@@ -68,6 +70,7 @@ public class InCallMetricsTestDbUtils {
     public static ContentValues getEntry(Context context, String table,
             InCallMetricsHelper.Events event) {
         InCallMetricsDbHelper dbHelper = InCallMetricsDbHelper.getInstance(context);
+        dbHelper.flush();
         SQLiteDatabase db = dbHelper.getWritableDatabase();
         String[] projection = new String[] {};
         if (table.equals(InCallMetricsDbHelper.Tables.USER_ACTIONS_TABLE)) {
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.incall;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.contacts.androidtest.InCallMetricsTestDbUtils;
+import com.android.phone.common.incall.CallMethodInfo;
+import com.android.phone.common.incall.ContactsDataSubscription;
+import com.android.phone.common.incall.utils.CallMethodFilters;
+import cyanogenmod.providers.CMSettings;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Drives synthetic event streams through InCallMetricsHelper at fixed rates and measures the
+ * metrics pipeline. Results are written to incall_metrics_benchmark.json in the external files
+ * directory of the app under test. Every test clears the metrics tables when it is done, so no
+ * synthetic events are left behind for the export job to send.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class InCallMetricsBenchmarkTest {
+    private static final String TAG = InCallMetricsBenchmarkTest.class.getSimpleName();
+
+    private static final String REPORT_FILE_NAME = "incall_metrics_benchmark.json";
+    private static final String PROVIDER = "com.android.contacts.androidtest/.Benchmark";
+
+    private static final int EVENTS_PER_RUN = 2000;
+    // events per second, 0 for as fast as possible
+    private static final int[] RATES = {0, 2000, 500};
+    // every PROBE_INTERVAL-th event waits for the handler thread to take it off the queue
+    private static final int PROBE_INTERVAL = 50;
+    private static final long DRAIN_TIMEOUT_MS = 30 * 1000;
+    private static final int BACKLOG_ROWS = 100000;
+
+    private static JSONObject sReport;
+    private static JSONArray sRuns;
+
+    private Context mContext;
+    private InCallMetricsDbHelper mDbHelper;
+    private CallMethodInfo mCm;
+
+    private interface EventSource {
+        void send(int i);
+    }
+
+    @BeforeClass
+    public static void setUpReport() throws JSONException {
+        sReport = new JSONObject();
+        sRuns = new JSONArray();
+        sReport.put("timestamp", System.currentTimeMillis());
+        sReport.put("build", android.os.Build.FINGERPRINT);
+        sReport.put("runs", sRuns);
+    }
+
+    @AfterClass
+    public static void writeReport() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) {
+            dir = context.getFilesDir();
+        }
+        File file = new File(dir, REPORT_FILE_NAME);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(sReport.toString().getBytes("UTF-8"));
+        }
+        Log.i(TAG, "report written to " + file.getAbsolutePath());
+    }
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mDbHelper = InCallMetricsDbHelper.getInstance(mContext);
+        Assert.assertTrue(InCallMetricsTestDbUtils.clearAllEntries(mContext));
+        HashMap<ComponentName, CallMethodInfo> cmMap =
+                CallMethodFilters.getAllEnabledAndHiddenCallMethods(
+                        ContactsDataSubscription.get(mContext));
+        if (cmMap != null && !cmMap.isEmpty()) {
+            // test the first plugin only
+            mCm = cmMap.values().iterator().next();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        waitForDrain();
+        Assert.assertTrue(InCallMetricsTestDbUtils.clearAllEntries(mContext));
+    }
+
+    @Test
+    public void impressions() throws JSONException {
+        if (!checkOptIn()) {
+            return;
+        }
+        if (mCm == null || mCm.mComponent == null) {
+            Log.d(TAG, "No InCall plugin installed, skipping impressions");
+            return;
+        }
+        for (int rate : RATES) {
+            runStream("impressions", rate, new EventSource() {
+                @Override
+                public void send(int i) {
+                    InCallMetricsHelper.increaseImpressionCount(mContext, mCm,
+                            InCallMetricsHelper.Events.INAPP_NUDGE_CONTACTS_INSTALL);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void userActions() throws JSONException {
+        if (!checkOptIn()) {
+            return;
+        }
+        for (int rate : RATES) {
+            runStream("user_actions", rate, new EventSource() {
+                @Override
+                public void send(int i) {
+                    InCallMetricsHelper.increaseCount(mContext,
+                            InCallMetricsHelper.Events.DIRECTORY_SEARCH, PROVIDER);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void merges() throws JSONException {
+        if (!checkOptIn()) {
+            return;
+        }
+        for (int rate : RATES) {
+            runStream("manual_merges", rate, new EventSource() {
+                @Override
+                public void send(int i) {
+                    // contact IDs that don't exist, the provider lookup still runs
+                    InCallMetricsHelper.increaseContactManualMergeCount(mContext,
+                            Integer.MAX_VALUE - 2 * i, Integer.MAX_VALUE - 2 * i - 1);
+                }
+            });
+            runStream("auto_merges", rate, new EventSource() {
+                @Override
+                public void send(int i) {
+                    InCallMetricsHelper.increaseContactAutoMergeCount(mContext,
+                            (Integer.MAX_VALUE - 2 * i) + "," + (Integer.MAX_VALUE - 2 * i - 1));
+                }
+            });
+        }
+    }
+
+    @Test
+    public void nudgeAcceptance() throws JSONException {
+        if (!checkOptIn()) {
+            return;
+        }
+        final ComponentName component = ComponentName.unflattenFromString(PROVIDER);
+        for (int rate : RATES) {
+            runStream("nudge_acceptance", rate, new EventSource() {
+                @Override
+                public void send(int i) {
+                    if (i % 10 == 9) {
+                        InCallMetricsHelper.setValue(mContext, component,
+                                InCallMetricsHelper.Categories.INAPP_NUDGES,
+                                InCallMetricsHelper.Events.INAPP_NUDGE_CONTACTS_LOGIN,
+                                InCallMetricsHelper.Parameters.EVENT_ACCEPTANCE,
+                                InCallMetricsHelper.EVENT_ACCEPT,
+                                InCallMetricsHelper.generateNudgeId("benchmark"));
+                    } else {
+                        InCallMetricsHelper.increaseCount(mContext,
+                                InCallMetricsHelper.Events.INVITES_SENT, PROVIDER);
+                    }
+                }
+            });
+        }
+    }
+
+    @Test
+    public void exportBacklog() throws JSONException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        try (SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                + InCallMetricsDbHelper.Tables.INAPP_TABLE + " ("
+                + InCallMetricsDbHelper.InAppColumns.CATEGORY + ", "
+                + InCallMetricsDbHelper.InAppColumns.EVENT_NAME + ", "
+                + InCallMetricsDbHelper.InAppColumns.COUNT + ", "
+                + InCallMetricsDbHelper.InAppColumns.NUDGE_ID + ", "
+                + InCallMetricsDbHelper.InAppColumns.PROVIDER_NAME + ") VALUES (?, ?, 1, ?, ?)")) {
+            for (int i = 0; i < BACKLOG_ROWS; i++) {
+                insert.bindString(1, InCallMetricsHelper.Categories.INAPP_NUDGES.value());
+                insert.bindString(2,
+                        InCallMetricsHelper.Events.INAPP_NUDGE_CONTACTS_LOGIN.value());
+                insert.bindString(3, "benchmark-" + i);
+                insert.bindString(4, PROVIDER);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        long seedMs = SystemClock.elapsedRealtime() - start;
+
+        // export the backlog like the export job, without sending the synthetic events to Ambient
+        // or the plugins; nothing else writes metrics while the test runs
+        start = SystemClock.elapsedRealtime();
+        int exported = InCallMetricsHelper.exportEntries(mDbHelper,
+                InCallMetricsHelper.Categories.INAPP_NUDGES,
+                new InCallMetricsHelper.EntryExporter() {
+                    @Override
+                    public void export(InCallMetricsHelper.Categories cat,
+                            InCallMetricsHelper.Events event,
+                            HashMap<InCallMetricsHelper.Parameters, Object> extraFields) {
+                    }
+                });
+        long exportMs = SystemClock.elapsedRealtime() - start;
+        long remaining = DatabaseUtils.queryNumEntries(db,
+                InCallMetricsDbHelper.Tables.INAPP_TABLE);
+
+        JSONObject run = new JSONObject();
+        run.put("stream", "export_backlog");
+        run.put("rows", BACKLOG_ROWS);
+        run.put("seed_ms", seedMs);
+        run.put("export_ms", exportMs);
+        run.put("rows_per_sec", exportMs > 0 ? BACKLOG_ROWS * 1000L / exportMs : -1);
+        run.put("rows_exported", exported);
+        run.put("rows_remaining", remaining);
+        addRun(run);
+        Assert.assertEquals(BACKLOG_ROWS, exported);
+    }
+
+    /**
+     * Sends EVENTS_PER_RUN events at "rate" events per second and records throughput, database
+     * writes per event and how long events wait for the handler thread.
+     */
+    private void runStream(String name, int rate, EventSource source) throws JSONException {
+        InCallMetricsTestDbUtils.clearAllEntries(mContext);
+        long flushesBefore = mDbHelper.getFlushCount();
+        long writesBefore = mDbHelper.getWrittenEntryCount();
+        long mergedBefore = InCallMetricsHelper.getMergedEventCount(mContext);
+        long droppedBefore = InCallMetricsHelper.getDroppedEventCount(mContext);
+        long[] latencies = new long[EVENTS_PER_RUN / PROBE_INTERVAL];
+        int probes = 0;
+        int maxDepth = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < EVENTS_PER_RUN; i++) {
+            if (rate > 0) {
+                long due = start + i * 1000000000L / rate;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    SystemClock.sleep(wait / 1000000);
+                }
+            }
+            source.send(i);
+            maxDepth = Math.max(maxDepth, InCallMetricsHelper.getQueuedEventCount(mContext));
+            if (i % PROBE_INTERVAL == PROBE_INTERVAL - 1 && probes < latencies.length) {
+                long probeStart = System.nanoTime();
+                waitForDrain();
+                latencies[probes++] = (System.nanoTime() - probeStart) / 1000;
+            }
+        }
+        long sendNs = System.nanoTime() - start;
+        waitForDrain();
+        // write out what is still buffered, as the export job would
+        mDbHelper.flush();
+        long totalNs = System.nanoTime() - start;
+
+        long writes = mDbHelper.getWrittenEntryCount() - writesBefore;
+        Arrays.sort(latencies, 0, probes);
+        JSONObject run = new JSONObject();
+        run.put("stream", name);
+        run.put("target_rate", rate);
+        run.put("events", EVENTS_PER_RUN);
+        run.put("send_events_per_sec", EVENTS_PER_RUN * 1000000000L / Math.max(1, sendNs));
+        run.put("end_to_end_events_per_sec", EVENTS_PER_RUN * 1000000000L / Math.max(1, totalNs));
+        run.put("flushes", mDbHelper.getFlushCount() - flushesBefore);
+        run.put("db_writes", writes);
+        run.put("db_writes_per_event", (double) writes / EVENTS_PER_RUN);
+        run.put("merged_events", InCallMetricsHelper.getMergedEventCount(mContext) - mergedBefore);
+        run.put("dropped_events",
+                InCallMetricsHelper.getDroppedEventCount(mContext) - droppedBefore);
+        run.put("max_queue_depth", maxDepth);
+        run.put("queue_latency_p50_us", percentile(latencies, probes, 50));
+        run.put("queue_latency_p90_us", percentile(latencies, probes, 90));
+        run.put("queue_latency_p99_us", percentile(latencies, probes, 99));
+        run.put("queue_latency_max_us", probes > 0 ? latencies[probes - 1] : -1);
+        addRun(run);
+    }
+
+    private void waitForDrain() {
+        long deadline = SystemClock.elapsedRealtime() + DRAIN_TIMEOUT_MS;
+        while (InCallMetricsHelper.getQueuedEventCount(mContext) > 0) {
+            if (SystemClock.elapsedRealtime() > deadline) {
+                Assert.fail("metrics queue did not drain");
+            }
+            Thread.yield();
+        }
+    }
+
+    private static long percentile(long[] sorted, int count, int percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    private static void addRun(JSONObject run) {
+        Log.i(TAG, run.toString());
+        synchronized (sRuns) {
+            sRuns.put(run);
+        }
+    }
+
+    private boolean checkOptIn() {
+        if (CMSettings.Secure.getInt(mContext.getContentResolver(),
+                CMSettings.Secure.STATS_COLLECTION, 1) != 1) {
+            Log.d(TAG, "Stats collection is disabled, metrics are not recorded");
+            return false;
+        }
+        return true;
+    }
+}
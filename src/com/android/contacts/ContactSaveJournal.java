@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.Intent;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Append-only write-ahead journal of the operations queued on {@link ContactSaveService}.
+ *
+ * Every intent is recorded when it is queued and marked done once the service has
+ * finished with it, so operations that were still pending when the process died can be
+ * replayed the next time the service starts. Each record carries a key, so an operation that
+ * has been marked done is not replayed.
+ *
+ * The completion record can only be written after the operation has been applied, so a crash
+ * in between replays an operation that has in fact been applied. Operations are therefore
+ * enqueued with a flag telling whether they may be applied twice. One that may not is only
+ * replayed if it never started; otherwise it is dropped.
+ *
+ * The file starts with a small header followed by records of the form
+ * {@code [type:byte][key:long]}, where enqueue records are additionally followed by
+ * {@code [replay safe:boolean][length:int][encoded intent:bytes]}. Intents are encoded by
+ * {@link ContactSaveJournalCodec}, so a journal written before a platform update can still be
+ * read after it. The file is only touched on a single writer thread, which keeps the records
+ * in order. Only {@link #begin} waits for its record to reach the disk.
+ */
+final class ContactSaveJournal {
+    private static final String TAG = "ContactSaveJournal";
+
+    static final String FILE_NAME = "contact_save_journal";
+
+    private static final int MAGIC = 0x43534a31; // "CSJ1"
+    private static final int FORMAT_VERSION = 3;
+
+    private static final byte RECORD_ENQUEUE = 1;
+    private static final byte RECORD_BEGIN = 2;
+    private static final byte RECORD_DONE = 3;
+
+    /** Largest encoded intent that is accepted when reading the journal back. */
+    private static final int MAX_RECORD_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * Number of times a pending operation is started before it is dropped. This keeps an
+     * operation that crashes the process from being replayed forever.
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    /** Marks an intent that has already been recorded in the journal. */
+    static final String EXTRA_JOURNAL_KEY = "com.android.contacts.extra.JOURNAL_KEY";
+
+    /** Performs all file access in order, off the threads that queue operations. */
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    private final File mFile;
+    private final Random mRandom = new Random();
+
+    // Only changed on the writer, so they always match the records written so far.
+    /** Pending operations by key, in the order they were enqueued. */
+    private final LinkedHashMap<Long, byte[]> mPending = new LinkedHashMap<Long, byte[]>();
+    private final HashMap<Long, Integer> mAttempts = new HashMap<Long, Integer>();
+    private final HashSet<Long> mCompleted = new HashSet<Long>();
+    /** Pending operations that must not be replayed once they have started. */
+    private final HashSet<Long> mNotReplaySafe = new HashSet<Long>();
+
+    private DataOutputStream mOut;
+    private FileOutputStream mFileOut;
+
+    interface LoadListener {
+        /** Called on the journal's writer thread with the intents that still have to be applied. */
+        void onLoaded(List<Intent> pending);
+    }
+
+    ContactSaveJournal(File directory) {
+        mFile = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Reads the journal, drops completed and exhausted operations and rewrites the file in
+     * compacted form. The listener receives the intents that still have to be applied.
+     */
+    void load(final LoadListener listener) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onLoaded(loadInternal());
+            }
+        });
+    }
+
+    /**
+     * Records the given intent as pending, unless it was already recorded, and tags it with
+     * its key. If {@code replaySafe} is false the operation is not replayed after it has been
+     * started, since applying it a second time would duplicate its changes. The record is
+     * written in the background, so an operation that crashes the process before it reaches
+     * the disk is not replayed. Returns false if the intent cannot be journaled, in which case
+     * the operation is still executed but is never replayed.
+     */
+    boolean enqueue(Intent intent, final boolean replaySafe) {
+        if (intent.hasExtra(EXTRA_JOURNAL_KEY)) {
+            return true;
+        }
+        final byte[] data;
+        try {
+            data = ContactSaveJournalCodec.encode(intent);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to journal " + intent.getAction(), e);
+            return false;
+        }
+        long key;
+        do {
+            key = mRandom.nextLong();
+        } while (key == 0);
+        intent.putExtra(EXTRA_JOURNAL_KEY, key);
+
+        final long journalKey = key;
+        final String action = intent.getAction();
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final DataOutputStream out = openForAppend();
+                    out.writeByte(RECORD_ENQUEUE);
+                    out.writeLong(journalKey);
+                    out.writeBoolean(replaySafe);
+                    out.writeInt(data.length);
+                    out.write(data);
+                    sync();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to journal " + action, e);
+                    closeQuietly();
+                    return;
+                }
+                synchronized (ContactSaveJournal.this) {
+                    mPending.put(journalKey, data);
+                    if (!replaySafe) {
+                        mNotReplaySafe.add(journalKey);
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Records that the service is about to apply the given intent, and waits until that record
+     * and the enqueue record before it are on disk. Otherwise a crash while the operation is
+     * applied could replay an operation that must not be applied twice. Must not be called on
+     * the main thread. Returns false if the operation was already completed and must not be
+     * applied again.
+     */
+    boolean begin(Intent intent) {
+        final long key = intent.getLongExtra(EXTRA_JOURNAL_KEY, 0);
+        if (key == 0) {
+            return true;
+        }
+        synchronized (this) {
+            if (mCompleted.contains(key)) {
+                return false;
+            }
+        }
+        final Future<?> written = mWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+                final boolean replaySafe;
+                synchronized (ContactSaveJournal.this) {
+                    final Integer attempts = mAttempts.get(key);
+                    mAttempts.put(key, attempts == null ? 1 : attempts + 1);
+                    replaySafe = !mNotReplaySafe.contains(key);
+                }
+                try {
+                    final DataOutputStream out = openForAppend();
+                    out.writeByte(RECORD_BEGIN);
+                    out.writeLong(key);
+                    // Also makes the enqueue record durable, it went to the same file.
+                    sync();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to journal start of " + key, e);
+                    closeQuietly();
+                    if (!replaySafe) {
+                        // Without the start record the operation would be replayed after a
+                        // crash, so take it out of the journal instead.
+                        synchronized (ContactSaveJournal.this) {
+                            remove(key);
+                        }
+                        compact();
+                    }
+                }
+            }
+        });
+        try {
+            written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Unable to journal start of " + key, e);
+        }
+        return true;
+    }
+
+    /**
+     * Records that the given intent has been applied. Once nothing is pending any more the
+     * journal file is truncated.
+     */
+    void complete(Intent intent) {
+        final long key = intent.getLongExtra(EXTRA_JOURNAL_KEY, 0);
+        if (key == 0) {
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean isEmpty;
+                synchronized (ContactSaveJournal.this) {
+                    remove(key);
+                    mCompleted.add(key);
+                    isEmpty = mPending.isEmpty();
+                }
+                if (isEmpty) {
+                    compact();
+                    return;
+                }
+                try {
+                    final DataOutputStream out = openForAppend();
+                    out.writeByte(RECORD_DONE);
+                    out.writeLong(key);
+                    sync();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to journal completion of " + key, e);
+                    closeQuietly();
+                }
+            }
+        });
+    }
+
+    private List<Intent> loadInternal() {
+        final ArrayList<Intent> replay = new ArrayList<Intent>();
+        synchronized (this) {
+            mPending.clear();
+            mAttempts.clear();
+            mCompleted.clear();
+            mNotReplaySafe.clear();
+            readRecords();
+
+            for (Long key : new ArrayList<Long>(mPending.keySet())) {
+                final Integer attempts = mAttempts.get(key);
+                if (attempts != null && attempts >= MAX_ATTEMPTS) {
+                    Log.w(TAG, "Dropping operation " + key + " after " + attempts + " attempts");
+                    remove(key);
+                    continue;
+                }
+                if (attempts != null && mNotReplaySafe.contains(key)) {
+                    Log.w(TAG, "Dropping operation " + key
+                            + " that may have been applied before the process died");
+                    remove(key);
+                    continue;
+                }
+                final Intent intent;
+                try {
+                    intent = ContactSaveJournalCodec.decode(mPending.get(key));
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Dropping journaled operation that can no longer be read", e);
+                    remove(key);
+                    continue;
+                }
+                intent.putExtra(EXTRA_JOURNAL_KEY, key);
+                replay.add(intent);
+            }
+        }
+        compact();
+        return replay;
+    }
+
+    private void remove(long key) {
+        mPending.remove(key);
+        mAttempts.remove(key);
+        mNotReplaySafe.remove(key);
+    }
+
+    private void readRecords() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Ignoring journal with unknown format");
+                return;
+            }
+            while (true) {
+                final byte type = in.readByte();
+                final long key = in.readLong();
+                switch (type) {
+                    case RECORD_ENQUEUE:
+                        final boolean replaySafe = in.readBoolean();
+                        final int length = in.readInt();
+                        if (length < 0 || length > MAX_RECORD_LENGTH) {
+                            throw new IOException("Invalid record length " + length);
+                        }
+                        final byte[] data = new byte[length];
+                        in.readFully(data);
+                        mPending.put(key, data);
+                        if (!replaySafe) {
+                            mNotReplaySafe.add(key);
+                        }
+                        break;
+                    case RECORD_BEGIN:
+                        final Integer attempts = mAttempts.get(key);
+                        mAttempts.put(key, attempts == null ? 1 : attempts + 1);
+                        break;
+                    case RECORD_DONE:
+                        remove(key);
+                        mCompleted.add(key);
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been journaled yet.
+        } catch (EOFException e) {
+            // End of the journal, or a record torn by a crash while it was being written.
+        } catch (IOException e) {
+            Log.e(TAG, "Journal is corrupt, replaying the records read so far", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal so it only holds the pending operations and their attempt counts.
+     */
+    private synchronized void compact() {
+        closeQuietly();
+        // Completed keys are only needed until the journal no longer holds their records.
+        mCompleted.clear();
+        final AtomicFile atomicFile = new AtomicFile(mFile);
+        if (mPending.isEmpty()) {
+            atomicFile.delete();
+            return;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(fos);
+            writeHeader(out);
+            for (Long key : mPending.keySet()) {
+                final byte[] data = mPending.get(key);
+                out.writeByte(RECORD_ENQUEUE);
+                out.writeLong(key);
+                out.writeBoolean(!mNotReplaySafe.contains(key));
+                out.writeInt(data.length);
+                out.write(data);
+                final Integer attempts = mAttempts.get(key);
+                for (int i = 0; attempts != null && i < attempts; i++) {
+                    out.writeByte(RECORD_BEGIN);
+                    out.writeLong(key);
+                }
+            }
+            out.flush();
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to compact journal", e);
+            atomicFile.failWrite(fos);
+        }
+    }
+
+    private DataOutputStream openForAppend() throws IOException {
+        if (mOut == null) {
+            final boolean isNew = !mFile.exists() || mFile.length() == 0;
+            mFileOut = new FileOutputStream(mFile, true);
+            mOut = new DataOutputStream(mFileOut);
+            if (isNew) {
+                writeHeader(mOut);
+            }
+        }
+        return mOut;
+    }
+
+    private void sync() throws IOException {
+        mOut.flush();
+        mFileOut.getFD().sync();
+    }
+
+    private void closeQuietly() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        mOut = null;
+        mFileOut = null;
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ComponentName;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.android.contacts.common.model.RawContactDelta;
+import com.android.contacts.common.model.RawContactDeltaList;
+import com.android.contacts.common.model.ValuesDelta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes the intents journaled by {@link ContactSaveJournal}.
+ *
+ * Intents are not stored as marshalled Parcels, whose layout is private to the platform and
+ * may change with an update while the journal is on disk. Instead an intent is written as its
+ * action, data, type, component and flags followed by its extras, each extra as a type tag
+ * and an explicit encoding of its value. Only the types used by the operations of
+ * {@link ContactSaveService} are supported; encoding an intent that holds anything else fails,
+ * and the operation then runs without being journaled.
+ *
+ * The contact state of a save is written as its raw contacts, each with its raw contact
+ * values and data rows, every row as the values it had before the edit and the values set by
+ * the edit. Which values were changed, inserted or deleted is all the service needs to build
+ * the same provider operations again.
+ */
+final class ContactSaveJournalCodec {
+    /** Version of the encoding, written at the start of every encoded intent. */
+    static final int VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_BYTE_ARRAY = 6;
+    private static final byte TYPE_LONG_ARRAY = 7;
+    private static final byte TYPE_STRING_ARRAY = 8;
+    private static final byte TYPE_URI = 9;
+    private static final byte TYPE_BUNDLE = 10;
+    private static final byte TYPE_INTENT = 11;
+    private static final byte TYPE_CONTENT_VALUES = 12;
+    private static final byte TYPE_LIST = 13;
+    private static final byte TYPE_RAW_CONTACT_DELTA_LIST = 14;
+
+    private static final byte DELTA_INSERT = 1;
+    private static final byte DELTA_UPDATE = 2;
+    private static final byte DELTA_DELETE = 3;
+
+    /** Upper bound of any count read back, to fail fast on a corrupt record. */
+    private static final int MAX_COUNT = 1 << 20;
+
+    private static final String ID_COLUMN = "_id";
+
+    private ContactSaveJournalCodec() {
+    }
+
+    static byte[] encode(Intent intent) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        writeIntent(out, intent);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static Intent decode(byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported operation version " + version);
+        }
+        return readIntent(in);
+    }
+
+    private static void writeIntent(DataOutputStream out, Intent intent) throws IOException {
+        writeString(out, intent.getAction());
+        final Uri data = intent.getData();
+        writeString(out, data != null ? data.toString() : null);
+        writeString(out, intent.getType());
+        final ComponentName component = intent.getComponent();
+        writeString(out, component != null ? component.flattenToString() : null);
+        out.writeInt(intent.getFlags());
+        final Bundle extras = intent.getExtras();
+        out.writeBoolean(extras != null);
+        if (extras != null) {
+            writeBundle(out, extras);
+        }
+    }
+
+    private static Intent readIntent(DataInputStream in) throws IOException {
+        final Intent intent = new Intent(readString(in));
+        final String data = readString(in);
+        final String type = readString(in);
+        intent.setDataAndType(data != null ? Uri.parse(data) : null, type);
+        final String component = readString(in);
+        if (component != null) {
+            intent.setComponent(ComponentName.unflattenFromString(component));
+        }
+        intent.setFlags(in.readInt());
+        if (in.readBoolean()) {
+            intent.putExtras(readBundle(in));
+        }
+        return intent;
+    }
+
+    private static void writeBundle(DataOutputStream out, Bundle bundle) throws IOException {
+        final Set<String> keys = bundle.keySet();
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            writeString(out, key);
+            try {
+                writeValue(out, bundle.get(key));
+            } catch (IOException e) {
+                throw new IOException("Unable to encode extra " + key, e);
+            }
+        }
+    }
+
+    private static Bundle readBundle(DataInputStream in) throws IOException {
+        final int count = readCount(in);
+        final Bundle bundle = new Bundle();
+        for (int i = 0; i < count; i++) {
+            final String key = readString(in);
+            final byte type = in.readByte();
+            switch (type) {
+                case TYPE_NULL:
+                    bundle.putString(key, null);
+                    break;
+                case TYPE_STRING:
+                    bundle.putString(key, readString(in));
+                    break;
+                case TYPE_BOOLEAN:
+                    bundle.putBoolean(key, in.readBoolean());
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, in.readLong());
+                    break;
+                case TYPE_DOUBLE:
+                    bundle.putDouble(key, in.readDouble());
+                    break;
+                case TYPE_BYTE_ARRAY:
+                    bundle.putByteArray(key, readByteArray(in));
+                    break;
+                case TYPE_LONG_ARRAY:
+                    bundle.putLongArray(key, readLongArray(in));
+                    break;
+                case TYPE_STRING_ARRAY:
+                    bundle.putStringArray(key, readStringArray(in));
+                    break;
+                case TYPE_URI:
+                    bundle.putParcelable(key, Uri.parse(readString(in)));
+                    break;
+                case TYPE_BUNDLE:
+                    bundle.putBundle(key, readBundle(in));
+                    break;
+                case TYPE_INTENT:
+                    bundle.putParcelable(key, readIntent(in));
+                    break;
+                case TYPE_CONTENT_VALUES:
+                    bundle.putParcelable(key, readContentValues(in));
+                    break;
+                case TYPE_LIST:
+                    bundle.putParcelableArrayList(key, readContentValuesList(in));
+                    break;
+                case TYPE_RAW_CONTACT_DELTA_LIST:
+                    bundle.putParcelable(key, readRawContactDeltaList(in));
+                    break;
+                default:
+                    throw new IOException("Unknown type " + type + " of extra " + key);
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * Writes a value of an extra. Lists are only supported as lists of ContentValues, which
+     * is how the service receives them.
+     */
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof byte[]) {
+            out.writeByte(TYPE_BYTE_ARRAY);
+            writeByteArray(out, (byte[]) value);
+        } else if (value instanceof long[]) {
+            out.writeByte(TYPE_LONG_ARRAY);
+            final long[] array = (long[]) value;
+            out.writeInt(array.length);
+            for (long element : array) {
+                out.writeLong(element);
+            }
+        } else if (value instanceof String[]) {
+            out.writeByte(TYPE_STRING_ARRAY);
+            final String[] array = (String[]) value;
+            out.writeInt(array.length);
+            for (String element : array) {
+                writeString(out, element);
+            }
+        } else if (value instanceof Uri) {
+            out.writeByte(TYPE_URI);
+            writeString(out, value.toString());
+        } else if (value instanceof Bundle) {
+            out.writeByte(TYPE_BUNDLE);
+            writeBundle(out, (Bundle) value);
+        } else if (value instanceof Intent) {
+            out.writeByte(TYPE_INTENT);
+            writeIntent(out, (Intent) value);
+        } else if (value instanceof ContentValues) {
+            out.writeByte(TYPE_CONTENT_VALUES);
+            writeContentValues(out, (ContentValues) value);
+        } else if (value instanceof RawContactDeltaList) {
+            out.writeByte(TYPE_RAW_CONTACT_DELTA_LIST);
+            writeRawContactDeltaList(out, (RawContactDeltaList) value);
+        } else if (value instanceof List) {
+            out.writeByte(TYPE_LIST);
+            final List<?> list = (List<?>) value;
+            out.writeInt(list.size());
+            for (Object element : list) {
+                if (!(element instanceof ContentValues)) {
+                    throw new IOException("Unsupported list element " + element);
+                }
+                writeContentValues(out, (ContentValues) element);
+            }
+        } else {
+            throw new IOException("Unsupported type " + value.getClass().getName());
+        }
+    }
+
+    private static void writeContentValues(DataOutputStream out, ContentValues values)
+            throws IOException {
+        final Set<Map.Entry<String, Object>> entries = values.valueSet();
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Object> entry : entries) {
+            writeString(out, entry.getKey());
+            final Object value = entry.getValue();
+            if (value == null || value instanceof String || value instanceof Long
+                    || value instanceof Integer || value instanceof Double
+                    || value instanceof byte[]) {
+                writeValue(out, value);
+            } else if (value instanceof Boolean) {
+                // ContentValues stores booleans as they are bound to SQLite, as 0 or 1.
+                writeValue(out, (Boolean) value ? 1 : 0);
+            } else if (value instanceof Number) {
+                writeValue(out, ((Number) value).longValue());
+            } else {
+                throw new IOException("Unsupported value of column " + entry.getKey());
+            }
+        }
+    }
+
+    private static ContentValues readContentValues(DataInputStream in) throws IOException {
+        final int count = readCount(in);
+        final ContentValues values = new ContentValues(count);
+        for (int i = 0; i < count; i++) {
+            final String key = readString(in);
+            final byte type = in.readByte();
+            switch (type) {
+                case TYPE_NULL:
+                    values.putNull(key);
+                    break;
+                case TYPE_STRING:
+                    values.put(key, readString(in));
+                    break;
+                case TYPE_INT:
+                    values.put(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    values.put(key, in.readLong());
+                    break;
+                case TYPE_DOUBLE:
+                    values.put(key, in.readDouble());
+                    break;
+                case TYPE_BYTE_ARRAY:
+                    values.put(key, readByteArray(in));
+                    break;
+                default:
+                    throw new IOException("Unknown type " + type + " of column " + key);
+            }
+        }
+        return values;
+    }
+
+    private static ArrayList<ContentValues> readContentValuesList(DataInputStream in)
+            throws IOException {
+        final int count = readCount(in);
+        final ArrayList<ContentValues> list = new ArrayList<ContentValues>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(readContentValues(in));
+        }
+        return list;
+    }
+
+    private static void writeRawContactDeltaList(DataOutputStream out, RawContactDeltaList state)
+            throws IOException {
+        if (state.isMarkedForJoining()) {
+            // The raw contacts to join with cannot be read back from the state.
+            throw new IOException("Unsupported contact state marked for joining");
+        }
+        out.writeBoolean(state.isMarkedForSplitting());
+        out.writeInt(state.size());
+        for (RawContactDelta delta : state) {
+            writeValuesDelta(out, delta.getValues());
+            int count = 0;
+            for (String mimeType : delta.getMimeTypes()) {
+                final List<ValuesDelta> entries = delta.getMimeEntries(mimeType);
+                count += entries != null ? entries.size() : 0;
+            }
+            out.writeInt(count);
+            for (String mimeType : delta.getMimeTypes()) {
+                final List<ValuesDelta> entries = delta.getMimeEntries(mimeType);
+                if (entries == null) {
+                    continue;
+                }
+                for (ValuesDelta entry : entries) {
+                    writeValuesDelta(out, entry);
+                }
+            }
+        }
+    }
+
+    private static RawContactDeltaList readRawContactDeltaList(DataInputStream in)
+            throws IOException {
+        final RawContactDeltaList state = new RawContactDeltaList();
+        if (in.readBoolean()) {
+            state.markRawContactsForSplitting();
+        }
+        final int count = readCount(in);
+        for (int i = 0; i < count; i++) {
+            final RawContactDelta delta = new RawContactDelta(readValuesDelta(in));
+            final int entries = readCount(in);
+            for (int j = 0; j < entries; j++) {
+                delta.addEntry(readValuesDelta(in));
+            }
+            state.add(delta);
+        }
+        return state;
+    }
+
+    /**
+     * Writes a row of the contact state. An update is written as the values the edit left
+     * alone followed by the values it set, which is all the update that is built from it
+     * depends on.
+     */
+    private static void writeValuesDelta(DataOutputStream out, ValuesDelta delta)
+            throws IOException {
+        final ContentValues after = delta.getAfter();
+        if (delta.isInsert()) {
+            out.writeByte(DELTA_INSERT);
+        } else if (after == null) {
+            out.writeByte(DELTA_DELETE);
+        } else {
+            out.writeByte(DELTA_UPDATE);
+        }
+        out.writeBoolean(delta.isFromTemplate());
+
+        final ContentValues before = delta.getCompleteValues();
+        if (after != null) {
+            for (String key : after.keySet()) {
+                if (!ID_COLUMN.equals(key)) {
+                    before.remove(key);
+                }
+            }
+        }
+        writeContentValues(out, before);
+        if (after != null) {
+            writeContentValues(out, after);
+        }
+    }
+
+    private static ValuesDelta readValuesDelta(DataInputStream in) throws IOException {
+        final byte kind = in.readByte();
+        final boolean fromTemplate = in.readBoolean();
+        final ContentValues before = readContentValues(in);
+        final ValuesDelta delta;
+        switch (kind) {
+            case DELTA_INSERT: {
+                final ContentValues after = readContentValues(in);
+                final Long id = after.getAsLong(ID_COLUMN);
+                delta = ValuesDelta.fromAfter(after);
+                if (id != null) {
+                    // Keep the temporary ID, updated photos of new raw contacts refer to it.
+                    delta.put(ID_COLUMN, id);
+                }
+                break;
+            }
+            case DELTA_UPDATE: {
+                final ContentValues after = readContentValues(in);
+                delta = ValuesDelta.fromBefore(before);
+                for (Map.Entry<String, Object> entry : after.valueSet()) {
+                    putValue(delta, entry.getKey(), entry.getValue());
+                }
+                break;
+            }
+            case DELTA_DELETE:
+                delta = ValuesDelta.fromBefore(before);
+                delta.markDeleted();
+                break;
+            default:
+                throw new IOException("Unknown row kind " + kind);
+        }
+        delta.setFromTemplate(fromTemplate);
+        return delta;
+    }
+
+    private static void putValue(ValuesDelta delta, String key, Object value) {
+        if (value == null) {
+            delta.putNull(key);
+        } else if (value instanceof Integer) {
+            delta.put(key, (Integer) value);
+        } else if (value instanceof Long) {
+            delta.put(key, (Long) value);
+        } else if (value instanceof byte[]) {
+            delta.put(key, (byte[]) value);
+        } else {
+            delta.put(key, value.toString());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        writeByteArray(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = readByteArray(in);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    private static void writeByteArray(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readByteArray(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("Invalid length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static long[] readLongArray(DataInputStream in) throws IOException {
+        final long[] array = new long[readCount(in)];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = in.readLong();
+        }
+        return array;
+    }
+
+    private static String[] readStringArray(DataInputStream in) throws IOException {
+        final String[] array = new String[readCount(in)];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = readString(in);
+        }
+        return array;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+}
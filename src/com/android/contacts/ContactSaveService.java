@@ -60,6 +60,7 @@ import com.android.contacts.common.model.AccountTypeManager;
 import com.android.contacts.common.model.RawContactDelta;
 import com.android.contacts.common.model.RawContactDeltaList;
 import com.android.contacts.common.model.RawContactModifier;
+import com.android.contacts.common.model.ValuesDelta;
 import com.android.contacts.common.model.account.AccountWithDataSet;
 import com.android.contacts.common.util.PermissionsUtil;
 import com.android.contacts.common.SimContactsConstants;
@@ -75,6 +76,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.HashMap;
@@ -194,14 +196,55 @@ public class ContactSaveService extends IntentService {
     private static final CopyOnWriteArrayList<Listener> sListeners =
             new CopyOnWriteArrayList<Listener>();
 
+    /**
+     * Journal of queued operations, shared by all instances of the service in this process so
+     * that completed operations are remembered after the service has been stopped.
+     */
+    private static ContactSaveJournal sJournal;
+    private static boolean sJournalReplayed;
+
     private Handler mMainHandler;
 
     public ContactSaveService() {
         super(TAG);
-        setIntentRedelivery(true);
+        // Pending operations are replayed from the journal rather than being redelivered,
+        // which would apply them twice.
+        setIntentRedelivery(false);
         mMainHandler = new Handler(Looper.getMainLooper());
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        synchronized (ContactSaveService.class) {
+            if (sJournal == null) {
+                sJournal = new ContactSaveJournal(getFilesDir());
+            }
+            if (sJournalReplayed) {
+                return;
+            }
+            sJournalReplayed = true;
+        }
+        final Context context = getApplicationContext();
+        sJournal.load(new ContactSaveJournal.LoadListener() {
+            @Override
+            public void onLoaded(List<Intent> pending) {
+                for (Intent intent : pending) {
+                    Log.i(TAG, "Replaying pending operation " + intent.getAction());
+                    context.startService(intent);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null) {
+            sJournal.enqueue(intent, isReplaySafe(intent));
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     public static void registerListener(Listener listener) {
         if (!(listener instanceof Activity)) {
             throw new ClassCastException("Only activities can be registered to"
@@ -264,6 +307,55 @@ public class ContactSaveService extends IntentService {
             Log.d(TAG, "onHandleIntent: could not handle null intent");
             return;
         }
+        if (!sJournal.begin(intent)) {
+            Log.d(TAG, "onHandleIntent: skipping already applied " + intent.getAction());
+            return;
+        }
+        handleIntent(intent);
+        // Not reached if the process died while applying the operation. It is then replayed on
+        // next start if isReplaySafe() allowed it, even though some or all of it may have been
+        // applied already.
+        sJournal.complete(intent);
+    }
+
+    /**
+     * Returns whether the operation described by the intent may be applied again after it has
+     * already been applied, fully or in part. Deletions, updates, joins and group membership
+     * changes leave the same result when repeated. Creating raw contacts or groups, inserting
+     * data rows and writing to a SIM card would duplicate their changes instead.
+     */
+    private static boolean isReplaySafe(Intent intent) {
+        final String action = intent.getAction();
+        if (ACTION_NEW_RAW_CONTACT.equals(action) || ACTION_CREATE_GROUP.equals(action)) {
+            return false;
+        }
+        if (!ACTION_SAVE_CONTACT.equals(action)) {
+            return true;
+        }
+        final RawContactDeltaList state = intent.getParcelableExtra(EXTRA_CONTACT_STATE);
+        if (state == null) {
+            return true;
+        }
+        for (RawContactDelta delta : state) {
+            final ValuesDelta values = delta.getValues();
+            if (values.isInsert() || MoreContactUtils.getSubscription(
+                    values.getAsString(RawContacts.ACCOUNT_TYPE),
+                    values.getAsString(RawContacts.ACCOUNT_NAME))
+                    != SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+                return false;
+            }
+            for (String mimeType : delta.getMimeTypes()) {
+                for (ValuesDelta entry : delta.getMimeEntries(mimeType)) {
+                    if (entry.isInsert()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void handleIntent(Intent intent) {
         if (!PermissionsUtil.hasPermission(this, WRITE_CONTACTS)) {
             Log.w(TAG, "No WRITE_CONTACTS permission, unable to write to CP2");
             // TODO: add more specific error string such as "Turn on Contacts
@@ -439,6 +531,12 @@ public class ContactSaveService extends IntentService {
             Log.e(TAG, "Invalid arguments for saveContact request");
             return;
         }
+        if (isProfile) {
+            // A state replayed from the journal does not remember that it is the profile.
+            for (RawContactDelta delta : state) {
+                delta.setProfileQueryUri();
+            }
+        }
 
         // Trim any empty fields, and RawContacts, before persisting
         final AccountTypeManager accountTypes = AccountTypeManager.getInstance(this);
@@ -852,13 +950,16 @@ public class ContactSaveService extends IntentService {
         }
 
         // Add new group members
-        addMembersToGroup(resolver, rawContactsToAdd, ContentUris.parseId(groupUri));
+        final long groupId = ContentUris.parseId(groupUri);
+        addMembersToGroup(resolver, rawContactsToAdd, groupId);
+        GroupMemberCountCache.getInstance(this).adjust(groupId,
+                GroupMemberCountCache.countMemberContacts(resolver, groupId, rawContactsToAdd));
 
         // TODO: Move this into the contact editor where it belongs. This needs to be integrated
         // with the way other intent extras that are passed to the {@link ContactEditorActivity}.
         values.clear();
         values.put(Data.MIMETYPE, GroupMembership.CONTENT_ITEM_TYPE);
-        values.put(GroupMembership.GROUP_ROW_ID, ContentUris.parseId(groupUri));
+        values.put(GroupMembership.GROUP_ROW_ID, groupId);
 
         Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
         callbackIntent.setData(groupUri);
@@ -923,6 +1024,7 @@ public class ContactSaveService extends IntentService {
 
         getContentResolver().delete(
                 ContentUris.withAppendedId(Groups.CONTENT_URI, groupId), null, null);
+        GroupMemberCountCache.getInstance(this).remove(groupId);
     }
 
     /**
@@ -980,20 +1082,45 @@ public class ContactSaveService extends IntentService {
             resolver.update(groupUri, values, null, null);
         }
 
-        // Add and remove members if necessary
-        addMembersToGroup(resolver, rawContactsToAdd, groupId);
-        removeMembersFromGroup(resolver, rawContactsToRemove, groupId);
+        // Add and remove members if necessary. The cached count is of contacts, so compare the
+        // memberships of the affected contacts rather than counting raw contact rows.
+        final long[] rawContactIds = concat(rawContactsToAdd, rawContactsToRemove);
+        final int before = GroupMemberCountCache.countMemberContacts(resolver, groupId,
+                rawContactIds);
+        final int added = addMembersToGroup(resolver, rawContactsToAdd, groupId);
+        final int removed = removeMembersFromGroup(resolver, rawContactsToRemove, groupId);
+        if (added + removed > 0) {
+            GroupMemberCountCache.getInstance(this).adjust(groupId,
+                    GroupMemberCountCache.countMemberContacts(resolver, groupId, rawContactIds)
+                            - before);
+        }
 
         Intent callbackIntent = intent.getParcelableExtra(EXTRA_CALLBACK_INTENT);
         callbackIntent.setData(groupUri);
         deliverCallback(callbackIntent);
     }
 
-    private static void addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
+    private static long[] concat(long[] first, long[] second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        final long[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    /**
+     * @return the number of raw contacts added
+     */
+    private static int addMembersToGroup(ContentResolver resolver, long[] rawContactsToAdd,
             long groupId) {
         if (rawContactsToAdd == null) {
-            return;
+            return 0;
         }
+        int added = 0;
         for (long rawContactId : rawContactsToAdd) {
             try {
                 final ArrayList<ContentProviderOperation> rawContactOperations =
@@ -1026,6 +1153,7 @@ public class ContactSaveService extends IntentService {
                 // Apply batch
                 if (!rawContactOperations.isEmpty()) {
                     resolver.applyBatch(ContactsContract.AUTHORITY, rawContactOperations);
+                    added++;
                 }
             } catch (RemoteException e) {
                 // Something went wrong, bail without success
@@ -1039,22 +1167,28 @@ public class ContactSaveService extends IntentService {
                         String.valueOf(groupId), e);
             }
         }
+        return added;
     }
 
-    private static void removeMembersFromGroup(ContentResolver resolver, long[] rawContactsToRemove,
+    /**
+     * @return the number of raw contacts removed
+     */
+    private static int removeMembersFromGroup(ContentResolver resolver, long[] rawContactsToRemove,
             long groupId) {
         if (rawContactsToRemove == null) {
-            return;
+            return 0;
         }
+        int removed = 0;
         for (long rawContactId : rawContactsToRemove) {
             // Apply the delete operation on the data row for the given raw contact's
             // membership in the given group. If no contact matches the provided selection, then
             // nothing will be done. Just continue to the next contact.
-            resolver.delete(Data.CONTENT_URI, Data.RAW_CONTACT_ID + "=? AND " +
+            removed += resolver.delete(Data.CONTENT_URI, Data.RAW_CONTACT_ID + "=? AND " +
                     Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID + "=?",
                     new String[] { String.valueOf(rawContactId),
                     GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)});
         }
+        return removed;
     }
 
     /**
@@ -17,14 +17,18 @@ package com.android.contacts;
 
 import android.content.Context;
 import android.content.CursorLoader;
+import android.database.Cursor;
 import android.net.Uri;
 import android.provider.ContactsContract.Groups;
 
 /**
- * Group loader for the group list that includes details such as the number of contacts per group
- * and number of groups per account. This list is sorted by account type, account name, where the
- * group names are in alphabetical order. Note that the list excludes default, favorite, and deleted
- * groups.
+ * Group loader for the group list that includes details such as the number of groups per
+ * account. This list is sorted by account type, account name, where the group names are in
+ * alphabetical order. Note that the list excludes default, favorite, and deleted groups.
+ *
+ * The number of contacts per group is not part of the query, it is kept in
+ * {@link GroupMemberCountCache}. The cache is filled with the first load and reconciled in the
+ * background once it is stale, not on every reload.
  */
 public final class GroupListLoader extends CursorLoader {
 
@@ -34,7 +38,6 @@ public final class GroupListLoader extends CursorLoader {
         Groups.DATA_SET,
         Groups._ID,
         Groups.TITLE,
-        Groups.SUMMARY_COUNT,
     };
 
     public final static int ACCOUNT_NAME = 0;
@@ -42,13 +45,25 @@ public final class GroupListLoader extends CursorLoader {
     public final static int DATA_SET = 2;
     public final static int GROUP_ID = 3;
     public final static int TITLE = 4;
-    public final static int MEMBER_COUNT = 5;
 
-    private static final Uri GROUP_LIST_URI = Groups.CONTENT_SUMMARY_URI;
+    private static final Uri GROUP_LIST_URI = Groups.CONTENT_URI;
+
+    private final GroupMemberCountCache mCountCache;
 
     public GroupListLoader(Context context) {
         super(context, GROUP_LIST_URI, COLUMNS, Groups.ACCOUNT_TYPE + " NOT NULL AND "
                 + Groups.ACCOUNT_NAME + " NOT NULL AND " + Groups.AUTO_ADD + "=0 AND " +
                 Groups.FAVORITES + "=0 AND " + Groups.DELETED + "=0", null, "account_id");
+        mCountCache = GroupMemberCountCache.getInstance(context);
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        final Cursor cursor = super.loadInBackground();
+        mCountCache.ensureLoaded();
+        // Catches up with memberships changed by other apps or sync, every reload would mean
+        // a full summary scan for each change to any contact.
+        mCountCache.reconcileIfStale();
+        return cursor;
     }
 }
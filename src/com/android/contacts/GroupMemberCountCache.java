@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.Groups;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import com.android.contacts.util.LongHashSet;
+
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide cache of the number of members of each group, so the group list does not have
+ * to make the provider count the memberships of every group each time it loads.
+ *
+ * The cache is filled once from {@link Groups#CONTENT_SUMMARY_URI}. Group operations of this
+ * app adjust it by the number of contacts that joined or left, see
+ * {@link #countMemberContacts}. Changes made elsewhere are picked up by
+ * {@link #reconcileIfStale}, which re-reads the authoritative counts in the background at most
+ * once per {@link #STALE_INTERVAL_MS}, or by an explicit {@link #reconcile}.
+ */
+public final class GroupMemberCountCache {
+    private static final String TAG = "GroupMemberCountCache";
+
+    /** Notified on the main thread when counts change. */
+    public interface Listener {
+        void onGroupMemberCountsChanged();
+    }
+
+    private static final String[] PROJECTION = new String[] {
+        Groups._ID,
+        Groups.SUMMARY_COUNT,
+    };
+
+    private static final long RECONCILE_INTERVAL_MS = 5000;
+    private static final long STALE_INTERVAL_MS = 15 * 60 * 1000;
+
+    // Number of IDs in each IN clause of countMemberContacts.
+    private static final int CHUNK_SIZE = 500;
+
+    private static GroupMemberCountCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<Listener>();
+
+    // Guarded by this.
+    private HashMap<Long, Integer> mCounts;
+    private int mGeneration;
+    private boolean mReconciling;
+    private boolean mReconcileScheduled;
+    private long mLastReconcileTime;
+
+    private final Runnable mNotifyChanged = new Runnable() {
+        @Override
+        public void run() {
+            for (Listener listener : mListeners) {
+                listener.onGroupMemberCountsChanged();
+            }
+        }
+    };
+
+    private final Runnable mReconcile = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GroupMemberCountCache.this) {
+                mReconcileScheduled = false;
+                if (mReconciling) {
+                    return;
+                }
+                mReconciling = true;
+            }
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load();
+                    } finally {
+                        synchronized (GroupMemberCountCache.this) {
+                            mReconciling = false;
+                        }
+                    }
+                }
+            });
+        }
+    };
+
+    public static synchronized GroupMemberCountCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new GroupMemberCountCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private GroupMemberCountCache(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Fills the cache on the calling thread if it has not been filled yet.
+     */
+    public void ensureLoaded() {
+        synchronized (this) {
+            if (mCounts != null) {
+                return;
+            }
+        }
+        load();
+    }
+
+    /**
+     * Returns the cached member count of the group, or -1 if it is not known.
+     */
+    public synchronized int getCount(long groupId) {
+        final Integer count = mCounts != null ? mCounts.get(groupId) : null;
+        return count != null ? count : -1;
+    }
+
+    /**
+     * Adds {@code delta} to the member count of the group. A group that is not cached yet
+     * starts from zero, as it was just created.
+     */
+    public void adjust(long groupId, int delta) {
+        synchronized (this) {
+            if (mCounts == null) {
+                return;
+            }
+            final Integer count = mCounts.get(groupId);
+            mCounts.put(groupId, Math.max(0, (count != null ? count : 0) + delta));
+            mGeneration++;
+        }
+        notifyChanged();
+    }
+
+    public void remove(long groupId) {
+        synchronized (this) {
+            if (mCounts == null || mCounts.remove(groupId) == null) {
+                return;
+            }
+            mGeneration++;
+        }
+        notifyChanged();
+    }
+
+    /**
+     * Re-reads the authoritative counts in the background. Calls made while a reconciliation
+     * is pending or soon after the last one are coalesced.
+     */
+    public void reconcile() {
+        synchronized (this) {
+            if (mReconcileScheduled) {
+                return;
+            }
+            mReconcileScheduled = true;
+            final long delay = mLastReconcileTime + RECONCILE_INTERVAL_MS
+                    - SystemClock.elapsedRealtime();
+            mHandler.postDelayed(mReconcile, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Reconciles if the counts have not been read for {@link #STALE_INTERVAL_MS}.
+     */
+    public void reconcileIfStale() {
+        synchronized (this) {
+            if (mCounts == null || SystemClock.elapsedRealtime() - mLastReconcileTime
+                    < STALE_INTERVAL_MS) {
+                return;
+            }
+        }
+        reconcile();
+    }
+
+    /**
+     * Returns the number of contacts that own one of the raw contacts and are members of the
+     * group through any of their raw contacts, which is how {@link Groups#SUMMARY_COUNT} counts.
+     * Comparing the result before and after a membership change gives the amount to
+     * {@link #adjust} by.
+     */
+    public static int countMemberContacts(ContentResolver resolver, long groupId,
+            long[] rawContactIds) {
+        if (rawContactIds == null || rawContactIds.length == 0) {
+            return 0;
+        }
+        final long[] contactIds = queryIds(resolver, RawContacts.CONTENT_URI,
+                RawContacts.CONTACT_ID, RawContacts._ID + " IN (", rawContactIds, null)
+                .toArray();
+        final String selection = Data.MIMETYPE + "=? AND " + GroupMembership.GROUP_ROW_ID
+                + "=? AND " + Data.CONTACT_ID + " IN (";
+        final String[] args = new String[] {
+                GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(groupId)
+        };
+        return queryIds(resolver, Data.CONTENT_URI, Data.CONTACT_ID, selection, contactIds, args)
+                .size();
+    }
+
+    private static LongHashSet queryIds(ContentResolver resolver, Uri uri, String column,
+            String selectionPrefix, long[] ids, String[] args) {
+        final LongHashSet result = new LongHashSet(ids.length);
+        for (int start = 0; start < ids.length; start += CHUNK_SIZE) {
+            final int end = Math.min(start + CHUNK_SIZE, ids.length);
+            final StringBuilder selection = new StringBuilder(selectionPrefix);
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(ids[i]);
+            }
+            selection.append(')');
+            final Cursor cursor = resolver.query(uri, new String[] { column },
+                    selection.toString(), args, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    result.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    private void load() {
+        while (true) {
+            final int generation;
+            synchronized (this) {
+                generation = mGeneration;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            final HashMap<Long, Integer> counts = queryCounts();
+            if (counts == null) {
+                return;
+            }
+            final boolean changed;
+            synchronized (this) {
+                mLastReconcileTime = SystemClock.elapsedRealtime();
+                if (generation != mGeneration) {
+                    // Adjusted while the counts were read, they may or may not include it.
+                    continue;
+                }
+                changed = mCounts != null && !mCounts.equals(counts);
+                mCounts = counts;
+            }
+            Log.d(TAG, "Read member counts of " + counts.size() + " groups in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+            if (changed) {
+                notifyChanged();
+            }
+            return;
+        }
+    }
+
+    private HashMap<Long, Integer> queryCounts() {
+        final Cursor cursor;
+        try {
+            cursor = mResolver.query(Groups.CONTENT_SUMMARY_URI, PROJECTION, null, null, null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read group member counts", e);
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final HashMap<Long, Integer> counts = new HashMap<Long, Integer>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getLong(0), cursor.getInt(1));
+            }
+            return counts;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void notifyChanged() {
+        mHandler.removeCallbacks(mNotifyChanged);
+        mHandler.post(mNotifyChanged);
+    }
+}
@@ -17,7 +17,9 @@ package com.android.contacts;
 
 import android.content.Context;
 import android.content.CursorLoader;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.OperationCanceledException;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.Contacts;
@@ -30,7 +32,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Group Member loader. Loads all group members from the given groupId
+ * Group Member loader. Loads the members of the given groupId as a
+ * {@link GroupMemberPageCursor}: the IDs of all members and the address book index are read
+ * up front, the other columns are read a page at a time, starting with the first page.
  */
 public final class GroupMemberLoader extends CursorLoader {
 
@@ -69,6 +73,7 @@ public final class GroupMemberLoader extends CursorLoader {
     }
 
     private final long mGroupId;
+    private final String[] mPageProjection;
 
     /**
      * @return GroupMemberLoader object which can be used in group editor.
@@ -89,8 +94,9 @@ public final class GroupMemberLoader extends CursorLoader {
     private GroupMemberLoader(Context context, long groupId, String[] projection) {
         super(context);
         mGroupId = groupId;
-        setUri(createUri());
-        setProjection(projection);
+        mPageProjection = projection;
+        setUri(createIdUri());
+        setProjection(GroupMemberPageCursor.ID_PROJECTION);
         setSelection(createSelection());
         setSelectionArgs(createSelectionArgs());
 
@@ -102,6 +108,22 @@ public final class GroupMemberLoader extends CursorLoader {
         }
     }
 
+    @Override
+    public Cursor loadInBackground() {
+        final Cursor ids = super.loadInBackground();
+        if (ids == null) {
+            return null;
+        }
+        final GroupMemberPageCursor cursor = new GroupMemberPageCursor(ids,
+                getContext().getContentResolver(), createUri(), mPageProjection);
+        if (isLoadInBackgroundCanceled()) {
+            cursor.close();
+            throw new OperationCanceledException();
+        }
+        cursor.loadPage(0);
+        return cursor;
+    }
+
     private Uri createUri() {
         Uri uri = Data.CONTENT_URI;
         uri = uri.buildUpon().appendQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY,
@@ -109,6 +131,11 @@ public final class GroupMemberLoader extends CursorLoader {
         return uri;
     }
 
+    private Uri createIdUri() {
+        return createUri().buildUpon()
+                .appendQueryParameter(Data.EXTRA_ADDRESS_BOOK_INDEX, "true").build();
+    }
+
     private String createSelection() {
         StringBuilder selection = new StringBuilder();
         selection.append(Data.MIMETYPE + "=?" + " AND " + GroupMembership.GROUP_ROW_ID + "=?");
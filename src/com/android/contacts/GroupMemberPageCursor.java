@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract.Data;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The members of a group, read one page at a time.
+ *
+ * The cursor is built on a cursor holding only the data, raw contact and contact IDs of the
+ * members in sort order, so its count and positions are known up front. The other columns of
+ * a row are read with the page of rows around it the first time the row is accessed. Until the
+ * page has been read, the row has only its IDs and its other columns are null; registered
+ * {@link DataSetObserver}s are notified on the main thread once the page arrives. The pages
+ * next to the one being accessed are read ahead, and only a few pages are kept in memory.
+ *
+ * The extras of the ID cursor, including the address book index if it was requested, are
+ * returned as the extras of this cursor.
+ */
+public final class GroupMemberPageCursor extends CursorWrapper {
+    private static final String TAG = "GroupMemberPageCursor";
+
+    /** Columns of the ID cursor this cursor is built on. */
+    static final String[] ID_PROJECTION = new String[] {
+        Data._ID,                               // 0
+        Data.RAW_CONTACT_ID,                    // 1
+        Data.CONTACT_ID,                        // 2
+    };
+
+    private static final int DATA_ID_COLUMN_INDEX = 0;
+    private static final int RAW_CONTACT_ID_COLUMN_INDEX = 1;
+    private static final int CONTACT_ID_COLUMN_INDEX = 2;
+
+    static final int PAGE_SIZE = 100;
+    private static final int MAX_CACHED_PAGES = 8;
+    /** Pages further than this from the page last accessed are not read when their turn comes. */
+    private static final int MAX_PREFETCH_DISTANCE = 2;
+
+    /** Reads the pages of all cursors in turn, so scrolling does not start several queries. */
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor();
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    // The projection, with the data ID appended if it is not part of it.
+    private final String[] mQueryProjection;
+    private final int mDataIdColumn;
+    private final int mRawContactIdColumn;
+    private final int mContactIdColumn;
+
+    private final long[] mDataIds;
+    private final long[] mRawContactIds;
+    private final long[] mContactIds;
+
+    private final LruCache<Integer, Object[][]> mPages =
+            new LruCache<Integer, Object[][]>(MAX_CACHED_PAGES);
+    // Pages queued for reading. Guarded by mPages.
+    private final boolean[] mRequested;
+    private volatile int mLastPage;
+    // Page whose neighbours were last requested. Only used on the thread reading the cursor.
+    private int mPrefetchedPage = -1;
+    private volatile boolean mClosed;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final DataSetObservable mPageObservable = new DataSetObservable();
+    private final Runnable mNotifyPageLoaded = new Runnable() {
+        @Override
+        public void run() {
+            if (!mClosed) {
+                mPageObservable.notifyChanged();
+            }
+        }
+    };
+
+    /**
+     * @param ids cursor with the columns of {@link #ID_PROJECTION}, in display order
+     * @param projection columns read for each page; may include the ID columns
+     */
+    GroupMemberPageCursor(Cursor ids, ContentResolver resolver, Uri uri, String[] projection) {
+        super(ids);
+        mResolver = resolver;
+        mUri = uri;
+        mProjection = projection;
+        final int count = ids.getCount();
+        mDataIds = new long[count];
+        mRawContactIds = new long[count];
+        mContactIds = new long[count];
+        ids.moveToPosition(-1);
+        for (int i = 0; ids.moveToNext(); i++) {
+            mDataIds[i] = ids.getLong(DATA_ID_COLUMN_INDEX);
+            mRawContactIds[i] = ids.getLong(RAW_CONTACT_ID_COLUMN_INDEX);
+            mContactIds[i] = ids.getLong(CONTACT_ID_COLUMN_INDEX);
+        }
+        ids.moveToPosition(-1);
+        mRequested = new boolean[(count + PAGE_SIZE - 1) / PAGE_SIZE];
+
+        final int dataIdColumn = Arrays.asList(projection).indexOf(Data._ID);
+        if (dataIdColumn >= 0) {
+            mQueryProjection = projection;
+            mDataIdColumn = dataIdColumn;
+        } else {
+            mQueryProjection = Arrays.copyOf(projection, projection.length + 1);
+            mQueryProjection[projection.length] = Data._ID;
+            mDataIdColumn = projection.length;
+        }
+        mRawContactIdColumn = Arrays.asList(projection).indexOf(Data.RAW_CONTACT_ID);
+        mContactIdColumn = Arrays.asList(projection).indexOf(Data.CONTACT_ID);
+    }
+
+    /**
+     * Reads the page holding {@code position} on the calling thread, so that it is ready when
+     * the cursor is delivered.
+     */
+    void loadPage(int position) {
+        final int page = position / PAGE_SIZE;
+        if (page < mRequested.length) {
+            mLastPage = page;
+            synchronized (mPages) {
+                mRequested[page] = true;
+            }
+            readPage(page);
+        }
+    }
+
+    public long getRawContactId(int position) {
+        return mRawContactIds[position];
+    }
+
+    public long getContactId(int position) {
+        return mContactIds[position];
+    }
+
+    /**
+     * Returns whether the other columns of the current row have been read.
+     */
+    public boolean isRowLoaded() {
+        return getRow() != null;
+    }
+
+    /**
+     * Returns the values of the current row, or null if its page has not been read yet, in
+     * which case the page is queued for reading.
+     */
+    private Object[] getRow() {
+        final int position = getPosition();
+        if (position < 0 || position >= mDataIds.length) {
+            return null;
+        }
+        final int page = position / PAGE_SIZE;
+        final Object[][] rows;
+        synchronized (mPages) {
+            rows = mPages.get(page);
+        }
+        mLastPage = page;
+        if (page != mPrefetchedPage) {
+            mPrefetchedPage = page;
+            requestPage(page - 1);
+            requestPage(page + 1);
+        }
+        if (rows == null) {
+            requestPage(page);
+            return null;
+        }
+        return rows[position - page * PAGE_SIZE];
+    }
+
+    private void requestPage(final int page) {
+        if (page < 0 || page >= mRequested.length) {
+            return;
+        }
+        synchronized (mPages) {
+            if (mRequested[page] || mPages.get(page) != null) {
+                return;
+            }
+            mRequested[page] = true;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed || Math.abs(page - mLastPage) > MAX_PREFETCH_DISTANCE) {
+                    // Scrolled past it, it is requested again if it is needed.
+                    synchronized (mPages) {
+                        mRequested[page] = false;
+                    }
+                    return;
+                }
+                if (readPage(page)) {
+                    mHandler.post(mNotifyPageLoaded);
+                }
+            }
+        });
+    }
+
+    private boolean readPage(int page) {
+        final int start = page * PAGE_SIZE;
+        final int end = Math.min(start + PAGE_SIZE, mDataIds.length);
+        final HashMap<Long, Integer> offsets = new HashMap<Long, Integer>(end - start);
+        final StringBuilder selection = new StringBuilder(Data._ID + " IN (");
+        for (int i = start; i < end; i++) {
+            offsets.put(mDataIds[i], i - start);
+            if (i > start) {
+                selection.append(',');
+            }
+            selection.append(mDataIds[i]);
+        }
+        selection.append(')');
+
+        final Object[][] rows = new Object[end - start][];
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(mUri, mQueryProjection, selection.toString(), null, null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read group members " + start + "-" + end, e);
+        }
+        if (cursor == null) {
+            // Not cached, the page is requested again when it is accessed.
+            synchronized (mPages) {
+                mRequested[page] = false;
+            }
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final Integer offset = offsets.get(cursor.getLong(mDataIdColumn));
+                if (offset == null) {
+                    continue;
+                }
+                final Object[] row = new Object[mQueryProjection.length];
+                for (int c = 0; c < row.length; c++) {
+                    row[c] = getValue(cursor, c);
+                }
+                rows[offset] = row;
+            }
+        } finally {
+            cursor.close();
+        }
+        // Rows deleted in the meantime keep only their IDs, the loader reloads anyway.
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i] == null) {
+                rows[i] = new Object[mQueryProjection.length];
+            }
+        }
+        synchronized (mPages) {
+            mPages.put(page, rows);
+            mRequested[page] = false;
+        }
+        return true;
+    }
+
+    private static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    private Object getValue(int column) {
+        if (column == mRawContactIdColumn || column == mContactIdColumn) {
+            final int position = getPosition();
+            if (position >= 0 && position < mDataIds.length) {
+                return column == mRawContactIdColumn
+                        ? mRawContactIds[position] : mContactIds[position];
+            }
+        }
+        final Object[] row = getRow();
+        return row != null ? row[column] : null;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mProjection.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mProjection;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return mProjection[columnIndex];
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        return Arrays.asList(mProjection).indexOf(columnName);
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        final int index = getColumnIndex(columnName);
+        if (index < 0) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        final Object value = getValue(columnIndex);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return getValue(columnIndex) == null;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        final Object value = getValue(columnIndex);
+        return value != null && !(value instanceof byte[]) ? value.toString() : null;
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        final String value = getString(columnIndex);
+        if (value == null) {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        final char[] chars = value.toCharArray();
+        buffer.data = chars;
+        buffer.sizeCopied = chars.length;
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        final Object value = getValue(columnIndex);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        final Object value = getValue(columnIndex);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short) getLong(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        final Object value = getValue(columnIndex);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof String && !TextUtils.isEmpty((String) value)) {
+            try {
+                return Double.parseDouble((String) value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return (float) getDouble(columnIndex);
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        mPageObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        mPageObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mHandler.removeCallbacks(mNotifyPageLoaded);
+        mPageObservable.unregisterAll();
+        synchronized (mPages) {
+            mPages.evictAll();
+        }
+        super.close();
+    }
+}
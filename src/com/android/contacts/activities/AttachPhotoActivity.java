@@ -141,6 +141,12 @@ public class AttachPhotoActivity extends ContactsActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        ContactPhotoUtils.releaseDecodeBitmap();
+        super.onDestroy();
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent result) {
         if (requestCode == REQUEST_PICK_DEFAULT_ACCOUNT_FOR_NEW_CONTACT) {
@@ -290,27 +296,30 @@ public class AttachPhotoActivity extends ContactsActivity {
 
         // Create a scaled, compressed bitmap to add to the entity-delta list.
         final int size = ContactsUtils.getThumbnailSize(this);
-        Bitmap bitmap;
+        final Bitmap scaled;
         try {
-            bitmap = ContactPhotoUtils.getBitmapFromUri(this, mCroppedPhotoUri);
+            scaled = ContactPhotoUtils.getScaledBitmapFromUri(this, mCroppedPhotoUri, size);
         } catch (FileNotFoundException e) {
             Log.w(TAG, "Could not find bitmap");
             finish();
             return;
         }
-        if (bitmap == null) {
+        if (scaled == null) {
             Log.w(TAG, "Could not decode bitmap");
             finish();
             return;
         }
 
-        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, size, size, false);
-        final byte[] compressed = ContactPhotoUtils.compressBitmap(scaled);
+        final byte[] compressed = ContactPhotoUtils.compressBitmap(scaled,
+                getThumbnailFormat(), getResources().getInteger(
+                        R.integer.config_attach_photo_thumbnail_quality));
         if (compressed == null) {
             Log.w(TAG, "could not create scaled and compressed Bitmap");
             finish();
             return;
         }
+        Log.v(TAG, "compressed " + size + "x" + size + " thumbnail to " + compressed.length
+                + " bytes");
 
         // Add compressed bitmap to entity-delta... this allows us to save to
         // a new contact; otherwise the entity-delta-list would be empty, and
@@ -341,6 +350,16 @@ public class AttachPhotoActivity extends ContactsActivity {
         finish();
     }
 
+    private Bitmap.CompressFormat getThumbnailFormat() {
+        final String format = getString(R.string.config_attach_photo_thumbnail_format);
+        try {
+            return Bitmap.CompressFormat.valueOf(format);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Unknown thumbnail format " + format + ", using PNG");
+            return Bitmap.CompressFormat.PNG;
+        }
+    }
+
     private void selectAccountAndCreateContact() {
         // If there is no default account or the accounts have changed such that we need to
         // prompt the user again, then launch the account prompt.
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.activities;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Bundle;
+
+/**
+ * A view onto a subset of the rows of a cursor, used to narrow search results in memory.
+ *
+ * Closing this cursor does not close the underlying cursor, which is owned by whoever
+ * created it, so several views can be handed to an adapter in turn.
+ */
+final class FilteredCursor extends CursorWrapper {
+
+    /** Decides whether the current row of a cursor is kept. */
+    interface RowFilter {
+        boolean accept(Cursor cursor);
+    }
+
+    private final Cursor mCursor;
+    private final int[] mPositions;
+    private final int mCount;
+    private int mPosition = -1;
+    private boolean mClosed;
+
+    private FilteredCursor(Cursor cursor, int[] positions, int count) {
+        super(cursor);
+        mCursor = cursor;
+        mPositions = positions;
+        mCount = count;
+    }
+
+    /**
+     * Returns a view onto all rows of {@code cursor}.
+     */
+    static FilteredCursor wrap(Cursor cursor) {
+        final int count = cursor.getCount();
+        final int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = i;
+        }
+        return new FilteredCursor(cursor, positions, count);
+    }
+
+    /**
+     * Returns a view onto the rows of this view that are accepted by {@code filter}. The
+     * position of this view is undefined afterwards.
+     */
+    FilteredCursor filter(RowFilter filter) {
+        final int[] positions = new int[mCount];
+        int count = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mCursor.moveToPosition(mPositions[i]) && filter.accept(mCursor)) {
+                positions[count++] = mPositions[i];
+            }
+        }
+        mPosition = -1;
+        return new FilteredCursor(mCursor, positions, count);
+    }
+
+    /**
+     * Returns whether every row of this view is accepted by {@code filter}.
+     */
+    boolean matchesAll(RowFilter filter) {
+        for (int i = 0; i < mCount; i++) {
+            if (mCursor.moveToPosition(mPositions[i]) && !filter.accept(mCursor)) {
+                mPosition = -1;
+                return false;
+            }
+        }
+        mPosition = -1;
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position >= mCount) {
+            mPosition = mCount;
+            return false;
+        }
+        if (position < 0) {
+            mPosition = -1;
+            return false;
+        }
+        mPosition = position;
+        return mCursor.moveToPosition(mPositions[position]);
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPosition + offset);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(mCount - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(mPosition - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return mCount != 0 && mPosition == 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        return mCount != 0 && mPosition == mCount - 1;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return mCount == 0 || mPosition == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return mCount == 0 || mPosition == mCount;
+    }
+
+    @Override
+    public Bundle getExtras() {
+        // The extras of the underlying cursor (e.g. the address book index) describe all of
+        // its rows.
+        return Bundle.EMPTY;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed || mCursor.isClosed();
+    }
+}
@@ -40,6 +40,7 @@ import android.content.AsyncQueryHandler;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.ContentProviderOperation;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -51,7 +52,9 @@ import android.net.Uri;
 import android.net.Uri.Builder;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
@@ -59,7 +62,6 @@ import android.provider.ContactsContract.ContactCounts;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.GroupMembership;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Groups;
@@ -92,6 +94,7 @@ import android.widget.SectionIndexer;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.contacts.GroupMemberCountCache;
 import com.android.contacts.R;
 import com.android.contacts.common.ContactPhotoManager;
 import com.android.contacts.common.ContactPhotoManager.DefaultImageRequest;
@@ -104,12 +107,18 @@ import com.android.contacts.common.list.ContactsSectionIndexer;
 import com.android.contacts.common.list.DefaultContactListAdapter;
 import com.android.contacts.common.MoreContactUtils;
 import com.android.contacts.common.model.account.SimAccountType;
+import com.android.contacts.util.LongHashSet;
+import com.android.contacts.util.MultiPickResult;
+import com.android.contacts.util.NameNormalizer;
+import com.android.contacts.util.SimContactsImporter;
 import com.cyanogen.ambient.incall.CallLogConstants;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.regex.Pattern;
 
 public class MultiPickContactActivity extends ListActivity implements
         TextView.OnEditorActionListener, View.OnTouchListener,
@@ -203,6 +212,12 @@ public class MultiPickContactActivity extends ListActivity implements
     public static final int CALLLOG_COLUMN_CALLER_LOCATION = 9;
 
     private static final int QUERY_TOKEN = 42;
+    private static final int SEARCH_QUERY_TOKEN = 43;
+
+    // Wait this long after the last keystroke before running a search.
+    private static final int SEARCH_DELAY_MS = 150;
+
+    private static final Pattern DIALABLE_PATTERN = Pattern.compile("[0-9+*#()\\-\\s]+");
     private static final int MODE_MASK_SEARCH = 0x80000000;
 
     private static final int MODE_DEFAULT_CONTACT = 0;
@@ -236,7 +251,27 @@ public class MultiPickContactActivity extends ListActivity implements
 
     private ContactItemListAdapter mAdapter;
     private QueryHandler mQueryHandler;
-    private Bundle mChoiceSet;
+    private MultiPickSelection mChoiceSet;
+
+    // Incremented for every query, results of older queries are dropped.
+    private int mQuerySequence;
+    private final Handler mHandler = new Handler();
+    private String mPendingSearch;
+    private String mRequestedSearch;
+    // The last provider search results. While the query extends mSearchResultsQuery they
+    // are narrowed down in memory; it is null if the results cannot be narrowed that way.
+    private Cursor mSearchResults;
+    private String mSearchResultsQuery;
+    // The view of mSearchResults shown for mFilteredQuery.
+    private FilteredCursor mFilteredResults;
+    private String mFilteredQuery;
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            search(mPendingSearch, false);
+        }
+    };
 
     private ActionBar mActionBar;
     private SearchView mSearchView;
@@ -310,7 +345,7 @@ public class MultiPickContactActivity extends ListActivity implements
             mMode = MODE_DEFAULT_SIM;
         }
 
-        mChoiceSet = new Bundle();
+        mChoiceSet = new MultiPickSelection(mRowReader);
         mAdapter = new ContactItemListAdapter(this);
         getListView().setAdapter(mAdapter);
         mQueryHandler = new QueryHandler(this);
@@ -407,7 +442,8 @@ public class MultiPickContactActivity extends ListActivity implements
                                     GROUP_ACTION_NONE);
                             switch (memberAction) {
                                 case GROUP_ACTION_ADD_MEMBER:
-                                    setResult(RESULT_OK, new Intent().putExtras(mChoiceSet));
+                                    setResult(RESULT_OK,
+                                            new Intent().putExtras(getChoiceBundle()));
                                     finish();
                                     break;
                                 case GROUP_ACTION_MOVE_MEMBER:
@@ -503,12 +539,36 @@ public class MultiPickContactActivity extends ListActivity implements
     }
 
     private void setResultAndFinish() {
+        setResult(RESULT_OK, buildResultIntent());
+        finish();
+    }
+
+    /**
+     * Builds the result Intent. If the caller accepts it, selections too large for a binder
+     * transaction are written to a file and only its URI is returned, see
+     * {@link MultiPickResult}.
+     */
+    private Intent buildResultIntent() {
+        mChoiceSet.materialize(mAdapter.getCursor());
+        if (mChoiceSet.size() > MultiPickResult.MAX_INLINE_COUNT && getIntent().getBooleanExtra(
+                MultiPickResult.EXTRA_ACCEPT_RESULT_FILE, false)) {
+            MultiPickResult.Writer writer = null;
+            try {
+                writer = MultiPickResult.newWriter(this);
+                mChoiceSet.writeTo(writer);
+                return writer.finish();
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Failed to write the selection, returning it inline", e);
+                if (writer != null) {
+                    writer.abort();
+                }
+            }
+        }
         Intent intent = new Intent();
         Bundle bundle = new Bundle();
-        bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet);
+        bundle.putBundle(SimContactsConstants.RESULT_KEY, mChoiceSet.toBundle());
         intent.putExtras(bundle);
-        setResult(RESULT_OK, intent);
-        finish();
+        return intent;
     }
 
     @Override
@@ -516,38 +576,7 @@ public class MultiPickContactActivity extends ListActivity implements
         hideSoftKeyboard();
 
         ContactItemCache cache = (ContactItemCache) v.getTag();
-        String key = String.valueOf(cache.id);
-
-        if (!mChoiceSet.containsKey(key)) {
-            String[] value = null;
-            if (isPickContact()) {
-                value = new String[] {
-                        cache.lookupKey, String.valueOf(cache.id),
-                        String.valueOf(cache.nameRawContactId),
-                        cache.photoUri, cache.name
-                };
-            } else if (isPickPhone()) {
-                value = new String[] {
-                        cache.name, cache.number, cache.type,
-                        cache.label, cache.contact_id
-                };
-            } else if (isPickEmail()) {
-                value = new String[] {
-                        cache.name, cache.email
-                };
-            } else if (isPickSim()) {
-                value = new String[] {
-                        cache.name, cache.number, cache.email, cache.anrs
-                };
-            } else if (isPickCall() && mSelectCallLog) {
-                value = new String[] {
-                        cache.name, cache.number
-                };
-            }
-            mChoiceSet.putStringArray(key, value);
-        } else {
-            mChoiceSet.remove(key);
-        }
+        mChoiceSet.toggle(cache.id);
 
         updateActionBar();
         mAdapter.notifyDataSetChanged();
@@ -654,108 +683,200 @@ public class MultiPickContactActivity extends ListActivity implements
 
     private class DeleteContactsThread extends Thread implements
             DialogInterface.OnCancelListener, DialogInterface.OnClickListener {
-        boolean mCanceled = false;
-        private String name = null;
-        private String number = null;
-        private final String[] PROJECTION = new String[] {
-                Phone.CONTACT_ID,
-                Phone.NUMBER,
-                Phone.DISPLAY_NAME
+        // The maximum number of operations per batch (aka yield point) is 500.
+        private static final int BATCH_SIZE = 499;
+        // Let other writers into the database every this many deletes.
+        private static final int YIELD_INTERVAL = 100;
+
+        private final String[] SIM_RAW_CONTACTS_PROJECTION = new String[] {
+                RawContacts.CONTACT_ID,
+                RawContacts.ACCOUNT_NAME
         };
-        private final int COLUMN_NUMBER = 1;
-        private final int COLUMN_NAME = 2;
+        private final int SIM_COLUMN_CONTACT_ID = 0;
+        private final int SIM_COLUMN_ACCOUNT_NAME = 1;
 
-        private ArrayList<ContentProviderOperation> mOpsCalls = null;
-        private ArrayList<ContentProviderOperation> mOpsContacts = null;
+        volatile boolean mCanceled = false;
 
-        public DeleteContactsThread() {
+        // The mChoiceSet object will change when activity restart, but
+        // DeleteContactsThread running in background, so it works on a copy of the IDs.
+        private final long[] mIds;
+
+        public DeleteContactsThread(long[] ids) {
+            mIds = ids;
         }
 
         @Override
         public void run() {
-            final Context context = MultiPickContactActivity.this;
-            final ContentResolver resolver = getContentResolver();
-
-            // The mChoiceSet object will change when activity restart, but
-            // DeleteContactsThread running in background, so we need clone the
-            // choiceSet to avoid ConcurrentModificationException.
-            Bundle choiceSet = (Bundle) mChoiceSet.clone();
-            Set<String> keySet = choiceSet.keySet();
-            Iterator<String> it = keySet.iterator();
-
-            ContentProviderOperation.Builder builder = null;
-            ContentProviderOperation cpo = null;
-
-            // Current contact count we can delete.
-            int count = 0;
-
-            // The contacts we batch delete once.
-            final int BATCH_DELETE_CONTACT_NUMBER = 100;
-
-            mOpsCalls = new ArrayList<ContentProviderOperation>();
-            mOpsContacts = new ArrayList<ContentProviderOperation>();
-
-            while (!mCanceled && it.hasNext()) {
-                String id = it.next();
-                Uri uri = null;
-                if (isPickCall()) {
-                    uri = Uri.withAppendedPath(Calls.CONTENT_URI, id);
-                    builder = ContentProviderOperation.newDelete(uri);
-                    cpo = builder.build();
-                    mOpsCalls.add(cpo);
-                } else {
-                    uri = Uri.withAppendedPath(Contacts.CONTENT_URI, id);
-                    long longId = Long.parseLong(id);
-                    int subscription = mSimContactsOperation.getSimSubscription(longId);
+            final long[] ids = mIds;
+            final int size = ids.length;
 
-                    if (subscription == SimContactsConstants.SUB_1
-                            || subscription == SimContactsConstants.SUB_2) {
-                        if (MoreContactUtils.isAPMOnAndSIMPowerDown(context)) {
-                            break;
-                        }
-                        ContentValues values =
-                                mSimContactsOperation.getSimAccountValues(longId);
-                        log("values is : " + values + "; sub is " + subscription);
-                        if (mSimContactsOperation.delete(values, subscription) == 0) {
-                            mProgressDialog.incrementProgressBy(1);
-                            continue;
-                        }
+            if (isPickCall()) {
+                deleteInBatches(CallLog.AUTHORITY, Calls.CONTENT_URI, ids, size, true);
+            } else {
+                // Resolve which of the selected contacts live on a SIM card in one query, so
+                // only those go through the (slow) SIM delete path.
+                final HashMap<Long, SimContact> simContacts = querySimContacts(ids, size);
+                final long[] phoneIds = new long[size];
+                final long[] simIds = new long[simContacts.size()];
+                int phoneCount = 0;
+                int simCount = 0;
+                for (int i = 0; i < size; i++) {
+                    if (simContacts.containsKey(ids[i])) {
+                        simIds[simCount++] = ids[i];
+                    } else {
+                        phoneIds[phoneCount++] = ids[i];
                     }
-                    builder = ContentProviderOperation.newDelete(uri);
-                    cpo = builder.build();
-                    mOpsContacts.add(cpo);
                 }
-                // If contacts more than 2000, delete all contacts
-                // one by one will cause UI nonresponse.
-                mProgressDialog.incrementProgressBy(1);
-                // We batch delete contacts every 100.
-                if (count % BATCH_DELETE_CONTACT_NUMBER == 0) {
-                    batchDelete();
+
+                // SIM cards are deleted from on their own thread while the provider
+                // deletes of the other contacts go ahead.
+                final Thread simThread = simCount > 0
+                        ? new SimDeleteThread(simIds, simCount, simContacts) : null;
+                if (simThread != null) {
+                    simThread.start();
+                }
+                deleteInBatches(ContactsContract.AUTHORITY, Contacts.CONTENT_URI,
+                        phoneIds, phoneCount, true);
+                if (simThread != null) {
+                    try {
+                        simThread.join();
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "Interrupted while deleting SIM contacts", e);
+                    }
                 }
-                count++;
             }
 
-            batchDelete();
-            mOpsCalls = null;
-            mOpsContacts = null;
             Log.d(TAG, "DeleteContactsThread run, progress:" + mProgressDialog.getProgress());
             mProgressDialog.dismiss();
             finish();
         }
 
+        /**
+         * Returns the subscription and SIM record of each selected contact that is stored on a
+         * SIM card. The SIM contacts are found with a single query; their records are read
+         * before any of them is deleted, so the SIM delete loop only talks to the SIM card.
+         */
+        private HashMap<Long, SimContact> querySimContacts(long[] ids, int size) {
+            final HashMap<Long, SimContact> result = new HashMap<Long, SimContact>();
+            if (size == 0) {
+                return result;
+            }
+            final HashSet<Long> selected = new HashSet<Long>(size * 2);
+            for (int i = 0; i < size; i++) {
+                selected.add(ids[i]);
+            }
+            final Cursor cursor = getContentResolver().query(RawContacts.CONTENT_URI,
+                    SIM_RAW_CONTACTS_PROJECTION,
+                    RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.DELETED + "=0",
+                    new String[] { SimContactsConstants.ACCOUNT_TYPE_SIM }, null);
+            if (cursor == null) {
+                return result;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final long contactId = cursor.getLong(SIM_COLUMN_CONTACT_ID);
+                    if (!selected.contains(contactId)) {
+                        continue;
+                    }
+                    final int subscription = MoreContactUtils.getSubscription(
+                            SimContactsConstants.ACCOUNT_TYPE_SIM,
+                            cursor.getString(SIM_COLUMN_ACCOUNT_NAME));
+                    if (subscription == SimContactsConstants.SUB_1
+                            || subscription == SimContactsConstants.SUB_2) {
+                        result.put(contactId, new SimContact(subscription, null));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            for (Long contactId : result.keySet()) {
+                if (mCanceled) {
+                    break;
+                }
+                result.get(contactId).values =
+                        mSimContactsOperation.getSimAccountValues(contactId);
+            }
+            return result;
+        }
+
+        /**
+         * Deletes the given rows in transactions of {@link #BATCH_SIZE} operations, with a
+         * yield point every {@link #YIELD_INTERVAL} operations.
+         *
+         * @param cancelable whether to stop once the user cancels; rows that must go with
+         *     something already deleted elsewhere are deleted regardless
+         */
+        private void deleteInBatches(String authority, Uri baseUri, long[] ids, int size,
+                boolean cancelable) {
+            final ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>(Math.min(size, BATCH_SIZE));
+            for (int i = 0; i < size && !(cancelable && mCanceled); i++) {
+                operations.add(ContentProviderOperation
+                        .newDelete(ContentUris.withAppendedId(baseUri, ids[i]))
+                        .withYieldAllowed(operations.size() % YIELD_INTERVAL == 0)
+                        .build());
+                if (operations.size() == BATCH_SIZE) {
+                    applyBatch(authority, operations);
+                }
+            }
+            applyBatch(authority, operations);
+        }
+
         /**
          * Batch delete contacts more efficient than one by one.
          */
-        private void batchDelete() {
+        private void applyBatch(String authority,
+                ArrayList<ContentProviderOperation> operations) {
+            if (operations.isEmpty()) {
+                return;
+            }
             try {
-                getContentResolver().applyBatch(CallLog.AUTHORITY, mOpsCalls);
-                getContentResolver().applyBatch(ContactsContract.AUTHORITY, mOpsContacts);
-                mOpsCalls.clear();
-                mOpsContacts.clear();
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            } catch (OperationApplicationException e) {
-                e.printStackTrace();
+                getContentResolver().applyBatch(authority, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Failed to delete " + operations.size() + " entries", e);
+            }
+            mProgressDialog.incrementProgressBy(operations.size());
+            operations.clear();
+        }
+
+        private class SimDeleteThread extends Thread {
+            private final long[] mIds;
+            private final int mSize;
+            private final HashMap<Long, SimContact> mSimContacts;
+
+            SimDeleteThread(long[] ids, int size, HashMap<Long, SimContact> simContacts) {
+                mIds = ids;
+                mSize = size;
+                mSimContacts = simContacts;
+            }
+
+            @Override
+            public void run() {
+                final Context context = MultiPickContactActivity.this;
+                // Only contacts removed from the SIM card are removed from the provider.
+                final long[] deleted = new long[mSize];
+                int deletedCount = 0;
+                for (int i = 0; i < mSize && !mCanceled; i++) {
+                    if (MoreContactUtils.isAPMOnAndSIMPowerDown(context)) {
+                        break;
+                    }
+                    final SimContact contact = mSimContacts.get(mIds[i]);
+                    final ContentValues values = contact.values;
+                    if (values == null) {
+                        // Not read because the delete was canceled.
+                        break;
+                    }
+                    log("values is : " + values + "; sub is " + contact.subscription);
+                    if (mSimContactsOperation.delete(values, contact.subscription) == 0) {
+                        mProgressDialog.incrementProgressBy(1);
+                        continue;
+                    }
+                    deleted[deletedCount++] = mIds[i];
+                }
+                // These are gone from the SIM card, so they go from the provider as well even
+                // if the user has canceled meanwhile.
+                deleteInBatches(ContactsContract.AUTHORITY, Contacts.CONTENT_URI,
+                        deleted, deletedCount, false);
             }
         }
 
@@ -802,8 +923,14 @@ public class MultiPickContactActivity extends ListActivity implements
             message = getString(R.string.delete_contacts_message);
         }
 
-        Thread thread = isPickSim()
-                ? new ImportAllSimContactsThread() : new DeleteContactsThread();
+        Thread thread;
+        if (isPickSim()) {
+            // Read the values of the selected SIM contacts while the cursor is still open.
+            mChoiceSet.materialize(mAdapter.getCursor());
+            thread = new ImportAllSimContactsThread(mChoiceSet.getIds());
+        } else {
+            thread = new DeleteContactsThread(mChoiceSet.getIds());
+        }
 
         mProgressDialog = new ProgressDialog(MultiPickContactActivity.this);
         mProgressDialog.setTitle(title);
@@ -825,10 +952,13 @@ public class MultiPickContactActivity extends ListActivity implements
 
     @Override
     public void onDestroy() {
+        mHandler.removeCallbacks(mSearchRunnable);
+        cancelQueries();
         mQueryHandler.removeCallbacksAndMessages(QUERY_TOKEN);
         if (mAdapter.getCursor() != null) {
             mAdapter.getCursor().close();
         }
+        releaseSearchResults();
 
         if (mProgressDialog != null) {
             mProgressDialog.cancel();
@@ -1090,25 +1220,165 @@ public class MultiPickContactActivity extends ListActivity implements
             }
         }
         String[] projection = getProjectionForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection,
+        mHandler.removeCallbacks(mSearchRunnable);
+        cancelQueries();
+        mQueryHandler.startQuery(QUERY_TOKEN, mQuerySequence, uri, projection,
                 getSelectionForQuery(), getSelectionArgsForQuery(), getSortOrder(projection));
     }
 
+    /**
+     * Searches for {@code s} once the user stops typing for {@link #SEARCH_DELAY_MS}.
+     */
     public void doFilter(CharSequence s) {
+        mHandler.removeCallbacks(mSearchRunnable);
         if (TextUtils.isEmpty(s)) {
             startQuery();
             return;
         }
+        mPendingSearch = s.toString();
+        mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MS);
+    }
+
+    /**
+     * Shows the results for {@code query}. If it extends the query of the last provider
+     * results, those are narrowed down in memory; otherwise the provider is queried.
+     *
+     * @param reload whether the provider has to be queried in any case, e.g. because the
+     *         data changed
+     */
+    private void search(String query, boolean reload) {
+        if (!reload && mSearchResultsQuery != null && query.startsWith(mSearchResultsQuery)) {
+            cancelQueries();
+            final FilteredCursor source = mFilteredResults != null
+                    && query.startsWith(mFilteredQuery) && !mFilteredResults.isClosed()
+                    ? mFilteredResults : FilteredCursor.wrap(mSearchResults);
+            showSearchResults(source.filter(newSearchFilter(query)), query);
+            return;
+        }
 
-        Uri uri = Uri.withAppendedPath(getFilterUri(), Uri.encode(s.toString()));
+        cancelQueries();
+        mRequestedSearch = query;
+        Uri uri = Uri.withAppendedPath(getFilterUri(), Uri.encode(query));
         String[] projection = getProjectionForQuery();
-        mQueryHandler.startQuery(QUERY_TOKEN, null, uri, projection,
+        mQueryHandler.startQuery(SEARCH_QUERY_TOKEN, mQuerySequence, uri, projection,
                 getSelectionForQuery(), getSelectionArgsForQuery(), getSortOrder(projection));
     }
 
+    /**
+     * Cancels the queries that have not been started yet, and makes sure the results of
+     * those that are running are dropped.
+     */
+    private void cancelQueries() {
+        mQueryHandler.cancelOperation(QUERY_TOKEN);
+        mQueryHandler.cancelOperation(SEARCH_QUERY_TOKEN);
+        mQuerySequence++;
+    }
+
+    private void onSearchQueryComplete(Cursor cursor) {
+        final Cursor previous = mSearchResults;
+        mSearchResults = cursor;
+        mSearchResultsQuery = null;
+        if (cursor == null) {
+            mFilteredResults = null;
+            mFilteredQuery = null;
+            mAdapter.changeCursor(null);
+            Toast.makeText(this, R.string.listFoundAllContactsZero, Toast.LENGTH_SHORT).show();
+        } else {
+            final FilteredCursor results = FilteredCursor.wrap(cursor);
+            final FilteredCursor.RowFilter filter = newSearchFilter(mRequestedSearch);
+            // The provider may match columns that are not loaded (e.g. nicknames), in which
+            // case the results cannot be narrowed down in memory.
+            if (filter != null && results.matchesAll(filter)) {
+                mSearchResultsQuery = mRequestedSearch;
+            }
+            showSearchResults(results, mRequestedSearch);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    private void showSearchResults(FilteredCursor results, String query) {
+        mFilteredResults = results;
+        mFilteredQuery = query;
+        mAdapter.changeCursor(results);
+        if (results.getCount() == 0) {
+            Toast.makeText(this, R.string.listFoundAllContactsZero, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void releaseSearchResults() {
+        if (mSearchResults != null) {
+            mSearchResults.close();
+            mSearchResults = null;
+        }
+        mSearchResultsQuery = null;
+        mFilteredResults = null;
+        mFilteredQuery = null;
+    }
+
+    /**
+     * Returns a filter that approximates the provider's matching on the loaded columns: every
+     * word of the query must be a prefix of a word of the name, or the query must match the
+     * number or email address. Returns null in modes that have no filter URI.
+     */
+    private FilteredCursor.RowFilter newSearchFilter(String query) {
+        if (!isPickContact() && !isPickPhone() && !isPickEmail()) {
+            return null;
+        }
+        final String[] words = NameNormalizer.splitWords(NameNormalizer.normalize(query).trim());
+        final String digits = isPickPhone() && DIALABLE_PATTERN.matcher(query).matches()
+                ? PhoneNumberUtils.normalizeNumber(query) : null;
+        final String lowerQuery = query.toLowerCase();
+        return new FilteredCursor.RowFilter() {
+            @Override
+            public boolean accept(Cursor cursor) {
+                if (nameMatches(cursor.getString(CONTACT_COLUMN_DISPLAY_NAME), words)) {
+                    return true;
+                }
+                if (digits != null && !digits.isEmpty()) {
+                    final String number = cursor.getString(PHONE_COLUMN_NUMBER);
+                    return number != null
+                            && PhoneNumberUtils.normalizeNumber(number).contains(digits);
+                }
+                if (isPickEmail()) {
+                    final String address = cursor.getString(EMAIL_COLUMN_ADDRESS);
+                    return address != null && address.toLowerCase().startsWith(lowerQuery);
+                }
+                return false;
+            }
+        };
+    }
+
+    private static boolean nameMatches(String name, String[] words) {
+        if (TextUtils.isEmpty(name)) {
+            return false;
+        }
+        final String[] tokens = NameNormalizer.splitWords(NameNormalizer.normalize(name));
+        for (String word : words) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void updateContent() {
         if (isSearchMode()) {
-            doFilter(mSearchView.getQuery().toString());
+            mHandler.removeCallbacks(mSearchRunnable);
+            final String query = mSearchView.getQuery().toString();
+            if (TextUtils.isEmpty(query)) {
+                startQuery();
+            } else {
+                search(query, true);
+            }
         } else {
             startQuery();
         }
@@ -1145,29 +1415,56 @@ public class MultiPickContactActivity extends ListActivity implements
     }
 
     private void selectAll(boolean isSelected) {
-        // update mChoiceSet.
-        // TODO: make it more efficient
         Cursor cursor = mAdapter.getCursor();
         if (cursor == null) {
             log("cursor is null.");
             return;
         }
 
-        cursor.moveToPosition(-1);
-        while (cursor.moveToNext()) {
-            String id = null;
-            String[] value = null;
+        // Only the IDs are recorded here; the values are read when the result is built.
+        mChoiceSet.setAll(cursor, isSelected);
+
+        updateActionBar();
+        mAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * Returns the selection in the format handed back to callers.
+     */
+    private Bundle getChoiceBundle() {
+        mChoiceSet.materialize(mAdapter.getCursor());
+        return mChoiceSet.toBundle();
+    }
+
+    private final MultiPickSelection.RowReader mRowReader = new MultiPickSelection.RowReader() {
+        @Override
+        public long getId(Cursor cursor) {
             if (isPickContact()) {
-                id = String.valueOf(cursor.getLong(CONTACT_COLUMN_ID));
-                value = new String[] {
-                        cursor.getString(CONTACT_COLUMN_LOOKUP_KEY), id,
+                return cursor.getLong(CONTACT_COLUMN_ID);
+            } else if (isPickPhone()) {
+                return cursor.getLong(PHONE_COLUMN_ID);
+            } else if (isPickEmail()) {
+                return cursor.getLong(EMAIL_COLUMN_ID);
+            } else if (isPickCall()) {
+                return cursor.getLong(CALLLOG_COLUMN_ID);
+            } else if (isPickSim()) {
+                return cursor.getLong(SIM_COLUMN_ID);
+            }
+            return -1;
+        }
+
+        @Override
+        public String[] getValues(Cursor cursor) {
+            if (isPickContact()) {
+                return new String[] {
+                        cursor.getString(CONTACT_COLUMN_LOOKUP_KEY),
+                        String.valueOf(cursor.getLong(CONTACT_COLUMN_ID)),
                         cursor.getString(CONTACT_COLUMN_RAW_CONTACT_ID),
                         cursor.getString(CONTACT_COLUMN_PHOTO_URI),
                         cursor.getString(CONTACT_COLUMN_DISPLAY_NAME)
                 };
             } else if (isPickPhone()) {
-                id = String.valueOf(cursor.getLong(PHONE_COLUMN_ID));
-                value = new String[] {
+                return new String[] {
                         cursor.getString(CONTACT_COLUMN_DISPLAY_NAME),
                         cursor.getString(PHONE_COLUMN_NUMBER),
                         String.valueOf(cursor.getInt(PHONE_COLUMN_TYPE)),
@@ -1175,43 +1472,32 @@ public class MultiPickContactActivity extends ListActivity implements
                         String.valueOf(cursor.getLong(CONTACT_COLUMN_ID))
                 };
             } else if (isPickEmail()) {
-                id = String.valueOf(cursor.getLong(EMAIL_COLUMN_ID));
-                value = new String[] {
+                return new String[] {
                         cursor.getString(CONTACT_COLUMN_DISPLAY_NAME),
                         cursor.getString(EMAIL_COLUMN_ADDRESS),
-                        id
+                        String.valueOf(cursor.getLong(EMAIL_COLUMN_ID))
                 };
             } else if (isPickCall()) {
-                id = String.valueOf(cursor.getLong(CALLLOG_COLUMN_ID));
                 if (mSelectCallLog) {
-                    value = new String[] {
-                            cursor.getString(CALLLOG_COLUMN_NUMBER),
-                            cursor.getString(CALLLOG_COLUMN_CALLER_NAME)
-                    };
-                } else {
-                    value = new String[] {
-                            id
+                    return new String[] {
+                            cursor.getString(CALLLOG_COLUMN_CALLER_NAME),
+                            cursor.getString(CALLLOG_COLUMN_NUMBER)
                     };
                 }
+                return new String[] {
+                        String.valueOf(cursor.getLong(CALLLOG_COLUMN_ID))
+                };
             } else if (isPickSim()) {
-                id = String.valueOf(cursor.getLong(SIM_COLUMN_ID));
-                value = new String[] {
+                return new String[] {
                         cursor.getString(SIM_COLUMN_DISPLAY_NAME),
                         cursor.getString(SIM_COLUMN_NUMBER),
                         cursor.getString(SIM_COLUMN_EMAILS),
                         cursor.getString(SIM_COLUMN_ANRS)
                 };
             }
-            if (isSelected) {
-                mChoiceSet.putStringArray(id, value);
-            } else {
-                mChoiceSet.remove(id);
-            }
+            return null;
         }
-
-        updateActionBar();
-        mAdapter.notifyDataSetChanged();
-    }
+    };
 
     private class QueryHandler extends AsyncQueryHandler {
         public QueryHandler(Context context) {
@@ -1220,7 +1506,19 @@ public class MultiPickContactActivity extends ListActivity implements
 
         @Override
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            if (isFinishing() || !Integer.valueOf(mQuerySequence).equals(cookie)) {
+                // Superseded by a later query.
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+            if (token == SEARCH_QUERY_TOKEN) {
+                onSearchQueryComplete(cursor);
+                return;
+            }
             mAdapter.changeCursor(cursor);
+            releaseSearchResults();
             if (cursor == null || cursor.getCount() == 0) {
                 Toast.makeText(MultiPickContactActivity.this,
                         R.string.listFoundAllContactsZero, Toast.LENGTH_SHORT).show();
@@ -1271,7 +1569,7 @@ public class MultiPickContactActivity extends ListActivity implements
             CharSequence query = mSearchView != null ? mSearchView.getQuery() : null;
             cliv.setHighlightedPrefix(query != null ? query.toString().toUpperCase() : null);
             cliv.setDisplayName(cache.name);
-            cliv.setChecked(mChoiceSet.containsKey(String.valueOf(cache.id)), !rebound);
+            cliv.setChecked(mChoiceSet.contains(cache.id), !rebound);
         }
 
         @Override
@@ -1320,7 +1618,7 @@ public class MultiPickContactActivity extends ListActivity implements
                 } else {
                     cliv.setPhoneNumber(null, null);
                 }
-                cliv.setChecked(mChoiceSet.containsKey(String.valueOf(cache.id)), true);
+                cliv.setChecked(mChoiceSet.contains(cache.id), true);
             } else if (isPickEmail()) {
                 cache.id = cursor.getLong(EMAIL_COLUMN_ID);
                 cache.email = cursor.getString(EMAIL_COLUMN_ADDRESS);
@@ -1413,7 +1711,7 @@ public class MultiPickContactActivity extends ListActivity implements
                 }
 
                 CheckBox checkBox = (CheckBox) view.findViewById(R.id.pick_contact_check);
-                checkBox.setChecked(mChoiceSet.containsKey(String.valueOf(cache.id)));
+                checkBox.setChecked(mChoiceSet.contains(cache.id));
             }
         }
 
@@ -1437,6 +1735,8 @@ public class MultiPickContactActivity extends ListActivity implements
 
         @Override
         public void changeCursor(Cursor cursor) {
+            // The old cursor is closed below, read the selected rows it holds first.
+            mChoiceSet.materialize(getCursor());
             super.changeCursor(cursor);
             String[] sections = null;
             int[] counts = null;
@@ -1557,22 +1857,37 @@ public class MultiPickContactActivity extends ListActivity implements
         return mAccountManager.getAccountsByType(SimContactsConstants.ACCOUNT_TYPE_SIM);
     }
 
+    /**
+     * A contact stored on a SIM card, with the values that identify its SIM record.
+     */
+    private static class SimContact {
+        final int subscription;
+        /** As returned by {@link SimContactsOperation#getSimAccountValues}. */
+        ContentValues values;
+
+        SimContact(int subscription, ContentValues values) {
+            this.subscription = subscription;
+            this.values = values;
+        }
+    }
+
     private class ImportAllSimContactsThread extends Thread
             implements DialogInterface.OnCancelListener, DialogInterface.OnClickListener {
-        boolean mCanceled = false;
+        volatile boolean mCanceled = false;
+        // Whether to tell the user how many contacts were imported once the import stops.
+        private volatile boolean mShowResult = false;
         // The total count how many to import.
         private int mTotalCount = 0;
-        // The real count have imported.
-        private int mActualCount = 0;
 
         private Account mAccount;
+        private final long[] mIds;
 
-        public ImportAllSimContactsThread() {
+        public ImportAllSimContactsThread(long[] ids) {
+            mIds = ids;
         }
 
         @Override
         public void run() {
-            final ContentValues emptyContentValues = new ContentValues();
             final ContentResolver resolver = getContentResolver();
 
             String type = getIntent().getStringExtra(SimContactsConstants.ACCOUNT_TYPE);
@@ -1580,34 +1895,54 @@ public class MultiPickContactActivity extends ListActivity implements
             mAccount = new Account(name != null ? name : SimContactsConstants.PHONE_NAME,
                     type != null ? type : SimContactsConstants.ACCOUNT_TYPE_PHONE);
             log("import sim contact to account: " + mAccount);
-            mTotalCount = mChoiceSet.size();
+            mTotalCount = mIds.length;
 
-            for (String key : mChoiceSet.keySet()) {
+            final SimContactsImporter importer = new SimContactsImporter(resolver, mAccount);
+            for (long id : mIds) {
                 if (mCanceled) {
                     break;
                 }
-                String[] values = mChoiceSet.getStringArray(key);
-                actuallyImportOneSimContact(values, resolver, mAccount);
-                mActualCount++;
+                String[] values = mChoiceSet.getValues(id);
+                if (values == null) {
+                    continue;
+                }
+                importer.add(values[SIM_COLUMN_DISPLAY_NAME], values[SIM_COLUMN_NUMBER],
+                        values[SIM_COLUMN_EMAILS], values[SIM_COLUMN_ANRS]);
                 mProgressDialog.incrementProgressBy(1);
             }
+            // Write out the last batch and aggregate everything imported, even if canceled.
+            importer.finish();
+            if (mShowResult) {
+                // Only contacts the provider accepted count as imported.
+                final int actualCount = importer.getImportedCount();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showImportResult(actualCount);
+                    }
+                });
+            }
             finish();
         }
 
-        @Override
-        public void onCancel(DialogInterface dialog) {
+        private void showImportResult(int actualCount) {
             final Context context = MultiPickContactActivity.this;
-            mCanceled = true;
             // Give a toast show to tell user import termination.
-            if (mActualCount < mTotalCount) {
+            if (actualCount < mTotalCount) {
                 String text = getResources().getQuantityString(R.plurals.import_progress,
-                        mActualCount, mActualCount);
+                        actualCount, actualCount);
                 Toast.makeText(context, text, Toast.LENGTH_SHORT).show();
             } else {
                 Toast.makeText(context, R.string.import_finish, Toast.LENGTH_SHORT).show();
             }
         }
 
+        @Override
+        public void onCancel(DialogInterface dialog) {
+            mShowResult = true;
+            mCanceled = true;
+        }
+
         public void onClick(DialogInterface dialog, int which) {
             if (which == DialogInterface.BUTTON_NEGATIVE) {
                 mCanceled = true;
@@ -1616,84 +1951,6 @@ public class MultiPickContactActivity extends ListActivity implements
         }
     }
 
-    private static void actuallyImportOneSimContact(
-            String[] values, final ContentResolver resolver, Account account) {
-
-        final String name = values[SIM_COLUMN_DISPLAY_NAME];
-        final String phoneNumber = values[SIM_COLUMN_NUMBER];
-        final String emailAddresses = values[SIM_COLUMN_EMAILS];
-        final String anrs = values[SIM_COLUMN_ANRS];
-        final String[] emailAddressArray;
-        final String[] anrArray;
-        if (!TextUtils.isEmpty(emailAddresses)) {
-            emailAddressArray = emailAddresses.split(",");
-        } else {
-            emailAddressArray = null;
-        }
-        if (!TextUtils.isEmpty(anrs)) {
-            anrArray = anrs.split(",");
-        } else {
-            anrArray = null;
-        }
-        log(" actuallyImportOneSimContact: name= " + name +
-                ", phoneNumber= " + phoneNumber + ", emails= " + emailAddresses
-                + ", anrs= " + anrs + ", account is " + account);
-        final ArrayList<ContentProviderOperation> operationList =
-                new ArrayList<ContentProviderOperation>();
-        ContentProviderOperation.Builder builder =
-                ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
-        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
-        if (account != null) {
-            builder.withValue(RawContacts.ACCOUNT_NAME, account.name);
-            builder.withValue(RawContacts.ACCOUNT_TYPE, account.type);
-        }
-        operationList.add(builder.build());
-
-        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, 0);
-        builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-        builder.withValue(StructuredName.DISPLAY_NAME, name);
-        operationList.add(builder.build());
-
-        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-        builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
-        builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-        builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
-        builder.withValue(Phone.NUMBER, phoneNumber);
-        builder.withValue(Data.IS_PRIMARY, 1);
-        operationList.add(builder.build());
-
-        if (anrArray != null) {
-            for (String anr : anrArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Phone.RAW_CONTACT_ID, 0);
-                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
-                builder.withValue(Phone.NUMBER, anr);
-                operationList.add(builder.build());
-            }
-        }
-
-        if (emailAddresses != null) {
-            for (String emailAddress : emailAddressArray) {
-                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
-                builder.withValueBackReference(Email.RAW_CONTACT_ID, 0);
-                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
-                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
-                builder.withValue(Email.ADDRESS, emailAddress);
-                operationList.add(builder.build());
-            }
-        }
-
-        try {
-            resolver.applyBatch(ContactsContract.AUTHORITY, operationList);
-        } catch (RemoteException e) {
-            log(String.format("%s: %s", e.toString(), e.getMessage()));
-        } catch (OperationApplicationException e) {
-            log(String.format("%s: %s", e.toString(), e.getMessage()));
-        }
-    }
-
     /**
      * After turn on airplane mode, cancel import sim contacts operation.
      */
@@ -1753,7 +2010,7 @@ public class MultiPickContactActivity extends ListActivity implements
 
     private class ChooseActionListener implements DialogInterface.OnClickListener {
         public void onClick(DialogInterface dialog, int which) {
-            new MoveGroupMemberTask(mChoiceSet,
+            new MoveGroupMemberTask(mChoiceSet.getIds(),
                     getIntent().getLongExtra(EXTRA_GROUP_ID, -1),
                     mGroupIds.get(which)).execute();
         }
@@ -1768,25 +2025,22 @@ public class MultiPickContactActivity extends ListActivity implements
         private static final String GROUP_QUERY_RAW_CONTACTS_SELECTION =
                 RawContacts.CONTACT_ID + "=?";
 
-        private static final String GROUP_DELETE_MEMBER_SELECTION = Data.CONTACT_ID
-                + "=? AND "
-                + Data.MIMETYPE
+        private static final String GROUP_MOVE_MEMBER_SELECTION = Data.MIMETYPE
                 + "=? AND "
                 + GroupMembership.GROUP_ROW_ID
-                + "=?";
+                + "=? AND "
+                + Data.CONTACT_ID
+                + " IN (";
 
-        private static final int BUFFER_LENGTH = 499;
+        // Number of contacts moved or removed by each update or delete.
+        private static final int CHUNK_SIZE = 500;
 
-        private Bundle mChoiceSet;
+        private long[] mChoiceSet;
         private long mDestGroupId;
         private long mSrcGroupId;
-        private boolean mCanceled = false;
-
-        private ArrayList<ContentProviderOperation> mAddOrMoveOperation;
-        private ArrayList<ContentProviderOperation> mDeleteOperation;
-        private ArrayList<String> mGroupMemberList = new ArrayList<String>();
+        private volatile boolean mCanceled = false;
 
-        public MoveGroupMemberTask(Bundle choiceSet,
+        public MoveGroupMemberTask(long[] choiceSet,
                 long srcGroupId, long destGroupId) {
             mChoiceSet = choiceSet;
             mSrcGroupId = srcGroupId;
@@ -1800,7 +2054,7 @@ public class MultiPickContactActivity extends ListActivity implements
             mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
             mProgressDialog.setTitle(getProgressDialogTitle());
             mProgressDialog.setMessage(getProgressDialogMessage());
-            mProgressDialog.setMax(mChoiceSet != null ? mChoiceSet.keySet().size() : 100);
+            mProgressDialog.setMax(mChoiceSet != null ? mChoiceSet.length : 100);
             mProgressDialog.setProgress(0);
             mProgressDialog.setCanceledOnTouchOutside(false);
             mProgressDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
@@ -1813,113 +2067,65 @@ public class MultiPickContactActivity extends ListActivity implements
 
         @Override
         protected Bundle doInBackground(Object... params) {
-            if (mChoiceSet == null || mSrcGroupId <= 0) {
+            if (mChoiceSet == null || mSrcGroupId <= 0 || mDestGroupId <= 0) {
                 return null;
             }
-            ContentResolver resolver = getContentResolver();
-            Cursor memberCursor = null;
-
-            memberCursor = resolver.query(Data.CONTENT_URI,
-                    new String[] {
-                            Data.CONTACT_ID
-                    },
-                    GROUP_QUERY_GROUP_MEMBER_SELECTION,
-                    new String[] {
-                            GroupMembership.CONTENT_ITEM_TYPE,
-                            String.valueOf(mDestGroupId)
-                    },
-                    null);
-
-            if (memberCursor != null && memberCursor.getCount() > 0) {
-                try {
-                    while (memberCursor.moveToNext()) {
-                        // Mark those contacts that already exist in the dest
-                        // group
-                        mGroupMemberList.add(String.valueOf(memberCursor.getLong(0)));
-                    }
-                } finally {
-                    if (memberCursor != null) {
-                        memberCursor.close();
-                    }
-                }
-            }
-
-            Set<String> keySet = mChoiceSet.keySet();
-            Iterator<String> it = keySet.iterator();
-
-            ContentProviderOperation.Builder builder;
-
-            mAddOrMoveOperation = new ArrayList<ContentProviderOperation>();
-            mDeleteOperation = new ArrayList<ContentProviderOperation>();
-            String id;
-            int count = 0;
-            int maxSize = mChoiceSet.keySet().size();
-            while (!mCanceled && it.hasNext()) {
-                id = it.next();
-                ++count;
+            final ContentResolver resolver = getContentResolver();
 
-                if (mDestGroupId <= 0) {
-                    // Invalid group id, cancel the task
-                    return null;
-                }
-                if (mProgressDialog != null && mProgressDialog.isShowing()
-                        && count < maxSize - (maxSize) / 100) {
-                    mProgressDialog.incrementProgressBy(1);
-                }
-                if (mGroupMemberList.contains(id)) {
-                    // If the contact already exists in the group, need to
-                    // delete those
-                    // contacts that in the previous group
-                    builder = ContentProviderOperation.newDelete(Data.CONTENT_URI);
-                    builder.withSelection(GROUP_DELETE_MEMBER_SELECTION,
-                            new String[] {
-                                    id,
-                                    GroupMembership.CONTENT_ITEM_TYPE,
-                                    String.valueOf(mSrcGroupId)
-                            });
-                    mDeleteOperation.add(builder.build());
-                    continue;
+            // Contacts that already exist in the dest group only have to leave the source
+            // group, the others are moved.
+            final LongHashSet destMembers = queryGroupMembers(resolver, mDestGroupId);
+            final long[] moveIds = new long[mChoiceSet.length];
+            final long[] removeIds = new long[mChoiceSet.length];
+            int moveCount = 0;
+            int removeCount = 0;
+            for (long id : mChoiceSet) {
+                if (destMembers.contains(id)) {
+                    removeIds[removeCount++] = id;
+                } else {
+                    moveIds[moveCount++] = id;
                 }
-                ContentValues values = new ContentValues();
-                values.put(GroupMembership.GROUP_ROW_ID, mDestGroupId);
-                builder = ContentProviderOperation.newUpdate(Data.CONTENT_URI);
-                builder.withSelection(GROUP_DELETE_MEMBER_SELECTION,
-                        new String[] {
-                                id,
-                                GroupMembership.CONTENT_ITEM_TYPE,
-                                String.valueOf(mSrcGroupId)
-                        });
-                builder.withValues(values);
-                mAddOrMoveOperation.add(builder.build());
             }
 
-            if (mDeleteOperation.size() > 0) {
-                if (mDeleteOperation.size() > BUFFER_LENGTH) {
-                    addOrMoveApplyBatchByBuffer(mDeleteOperation, resolver);
-                } else {
-                    try {
-                        resolver.applyBatch(ContactsContract.AUTHORITY, mDeleteOperation);
-                    } catch (RemoteException e) {
-                        e.printStackTrace();
-                    } catch (OperationApplicationException e) {
-                        e.printStackTrace();
-                    }
-                }
+            final String[] args = new String[] {
+                    GroupMembership.CONTENT_ITEM_TYPE, String.valueOf(mSrcGroupId)
+            };
+            final ContentValues values = new ContentValues();
+            values.put(GroupMembership.GROUP_ROW_ID, mDestGroupId);
+            final long start = SystemClock.elapsedRealtime();
+            // The chosen contacts are members of the source group, and each update or delete
+            // takes all of their raw contacts, so the member counts change by whole chunks.
+            int done = 0;
+            int movedContacts = 0;
+            for (int i = 0; i < removeCount && !mCanceled; i += CHUNK_SIZE) {
+                final int end = Math.min(i + CHUNK_SIZE, removeCount);
+                resolver.delete(Data.CONTENT_URI, buildSelection(removeIds, i, end), args);
+                done += end - i;
+                publishProgress(done);
             }
-            if (mAddOrMoveOperation.size() > BUFFER_LENGTH) {
-                addOrMoveApplyBatchByBuffer(mAddOrMoveOperation, resolver);
-            } else {
-                try {
-                    resolver.applyBatch(ContactsContract.AUTHORITY, mAddOrMoveOperation);
-                } catch (RemoteException e) {
-                    e.printStackTrace();
-                } catch (OperationApplicationException e) {
-                    e.printStackTrace();
-                }
+            for (int i = 0; i < moveCount && !mCanceled; i += CHUNK_SIZE) {
+                final int end = Math.min(i + CHUNK_SIZE, moveCount);
+                resolver.update(Data.CONTENT_URI, values, buildSelection(moveIds, i, end), args);
+                done += end - i;
+                movedContacts += end - i;
+                publishProgress(done);
             }
+            final GroupMemberCountCache counts =
+                    GroupMemberCountCache.getInstance(MultiPickContactActivity.this);
+            counts.adjust(mSrcGroupId, -done);
+            counts.adjust(mDestGroupId, movedContacts);
+            log("Moved " + done + " of " + mChoiceSet.length + " group members in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
             return null;
         }
 
+        @Override
+        protected void onProgressUpdate(Object... values) {
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                mProgressDialog.setProgress((Integer) values[0]);
+            }
+        }
+
         @Override
         protected void onPostExecute(Object result) {
             if (mProgressDialog != null && mProgressDialog.isShowing()) {
@@ -1928,31 +2134,39 @@ public class MultiPickContactActivity extends ListActivity implements
             }
         }
 
-        private void addOrMoveApplyBatchByBuffer(ArrayList<ContentProviderOperation> list,
-                ContentResolver cr) {
-            final ArrayList<ContentProviderOperation> temp
-                    = new ArrayList<ContentProviderOperation>(BUFFER_LENGTH);
-            int bufferSize = list.size() / BUFFER_LENGTH;
-            for (int index = 0; index <= bufferSize; index++) {
-                temp.clear();
-                if (index == bufferSize) {
-                    for (int i = index * BUFFER_LENGTH; i < list.size(); i++) {
-                        temp.add(list.get(i));
-                    }
-                } else {
-                    for (int i = index * BUFFER_LENGTH;
-                         i < index * BUFFER_LENGTH + BUFFER_LENGTH; i++) {
-                        temp.add(list.get(i));
+        private LongHashSet queryGroupMembers(ContentResolver resolver, long groupId) {
+            final LongHashSet members = new LongHashSet();
+            final Cursor memberCursor = resolver.query(Data.CONTENT_URI,
+                    new String[] {
+                            Data.CONTACT_ID
+                    },
+                    GROUP_QUERY_GROUP_MEMBER_SELECTION,
+                    new String[] {
+                            GroupMembership.CONTENT_ITEM_TYPE,
+                            String.valueOf(groupId)
+                    },
+                    null);
+            if (memberCursor != null) {
+                try {
+                    while (memberCursor.moveToNext()) {
+                        members.add(memberCursor.getLong(0));
                     }
+                } finally {
+                    memberCursor.close();
                 }
-                if (!temp.isEmpty()) {
-                    try {
-                        cr.applyBatch(ContactsContract.AUTHORITY, temp);
-                    } catch (Exception e) {
-                        Log.e(TAG, "apply batch by buffer error:" + e);
-                    }
+            }
+            return members;
+        }
+
+        private String buildSelection(long[] ids, int start, int end) {
+            final StringBuilder selection = new StringBuilder(GROUP_MOVE_MEMBER_SELECTION);
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
                 }
+                selection.append(ids[i]);
             }
+            return selection.append(')').toString();
         }
 
         private String getProgressDialogTitle() {
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.activities;
+
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.android.contacts.util.LongHashSet;
+import com.android.contacts.util.MultiPickResult;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The items selected in {@link MultiPickContactActivity}.
+ *
+ * Only IDs are stored when items are selected. The row values handed back to callers are
+ * read from a cursor the first time they are needed, or before the cursor holding them is
+ * replaced, so selecting every row of a large list does not copy any strings.
+ */
+final class MultiPickSelection {
+
+    /** Reads the ID and the values returned to the caller from the current cursor row. */
+    interface RowReader {
+        long getId(Cursor cursor);
+        String[] getValues(Cursor cursor);
+    }
+
+    private final RowReader mReader;
+    private final LongHashSet mIds = new LongHashSet();
+    /** Selected IDs whose values have not been read yet. */
+    private final LongHashSet mPending = new LongHashSet();
+    private final HashMap<Long, String[]> mValues = new HashMap<Long, String[]>();
+
+    MultiPickSelection(RowReader reader) {
+        mReader = reader;
+    }
+
+    public int size() {
+        return mIds.size();
+    }
+
+    public boolean isEmpty() {
+        return mIds.isEmpty();
+    }
+
+    public boolean contains(long id) {
+        return mIds.contains(id);
+    }
+
+    public void add(long id) {
+        if (mIds.add(id)) {
+            mPending.add(id);
+        }
+    }
+
+    public void remove(long id) {
+        if (mIds.remove(id)) {
+            mPending.remove(id);
+            mValues.remove(id);
+        }
+    }
+
+    /**
+     * @return true if the item is selected afterwards
+     */
+    public boolean toggle(long id) {
+        if (mIds.contains(id)) {
+            remove(id);
+            return false;
+        }
+        add(id);
+        return true;
+    }
+
+    /**
+     * Selects or deselects every row of the cursor. Only the ID column is read.
+     */
+    public void setAll(Cursor cursor, boolean selected) {
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            final long id = mReader.getId(cursor);
+            if (selected) {
+                add(id);
+            } else {
+                remove(id);
+            }
+        }
+    }
+
+    /**
+     * Reads the values of the selected rows in the cursor that have not been read yet. Must
+     * be called before the cursor is closed.
+     */
+    public void materialize(Cursor cursor) {
+        if (mPending.isEmpty() || cursor == null || cursor.isClosed()) {
+            return;
+        }
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext() && !mPending.isEmpty()) {
+            final long id = mReader.getId(cursor);
+            if (mPending.remove(id)) {
+                mValues.put(id, mReader.getValues(cursor));
+            }
+        }
+    }
+
+    /**
+     * Returns the selected IDs, in no particular order.
+     */
+    public long[] getIds() {
+        return mIds.toArray();
+    }
+
+    /**
+     * Returns the values of the given selected item, or null if they have not been read from
+     * a cursor.
+     */
+    public String[] getValues(long id) {
+        return mValues.get(id);
+    }
+
+    /**
+     * Returns the selection as a Bundle keyed by ID, the format returned to callers. Items
+     * whose values could not be read are left out.
+     */
+    public Bundle toBundle() {
+        final Bundle bundle = new Bundle();
+        for (Map.Entry<Long, String[]> entry : mValues.entrySet()) {
+            bundle.putStringArray(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return bundle;
+    }
+
+    /**
+     * Writes the selection into a result file. Items whose values could not be read are left
+     * out.
+     */
+    public void writeTo(MultiPickResult.Writer writer) throws IOException {
+        for (Map.Entry<Long, String[]> entry : mValues.entrySet()) {
+            writer.add(entry.getKey(), entry.getValue());
+        }
+    }
+}
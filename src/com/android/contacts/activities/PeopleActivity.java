@@ -22,7 +22,6 @@ import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.BroadcastReceiver;
 import android.content.IntentFilter;
@@ -84,6 +83,7 @@ import com.android.contacts.interactions.ContactMultiDeletionInteraction;
 import com.android.contacts.interactions.ContactMultiDeletionInteraction.MultiContactDeleteListener;
 import com.android.contacts.interactions.JoinContactsDialogFragment;
 import com.android.contacts.interactions.JoinContactsDialogFragment.JoinContactsListener;
+import com.android.contacts.interactions.ShareContactsInteraction;
 import com.android.contacts.list.MultiSelectContactsListFragment;
 import com.android.contacts.list.MultiSelectContactsListFragment.OnCheckBoxListActionListener;
 import com.android.contacts.list.ContactTileListFragment;
@@ -108,12 +108,14 @@ import com.android.contacts.common.util.Constants;
 import com.android.contacts.common.vcard.ExportVCardActivity;
 import com.android.contacts.common.vcard.VCardCommonArguments;
 import com.android.contacts.util.DialogManager;
+import com.android.contacts.util.MultiPickResult;
 import com.android.contactsbind.HelpUtils;
 import com.android.phone.common.incall.ContactsDataSubscription;
 import com.android.phone.common.incall.CallMethodInfo;
 import com.android.phone.common.incall.utils.CallMethodFilters;
 import com.android.phone.common.incall.utils.CallMethodUtils;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
@@ -121,7 +123,6 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -1542,31 +1543,14 @@ public class PeopleActivity extends ContactsActivity implements
     }
 
     /**
-     * Share all contacts that are currently selected in mAllFragment. This method is pretty
-     * inefficient for handling large numbers of contacts. I don't expect this to be a problem.
+     * Share all contacts that are currently selected in mAllFragment.
      */
     private void shareSelectedContacts() {
-        final StringBuilder uriListBuilder = new StringBuilder();
-        boolean firstIteration = true;
-        for (Long contactId : mAllFragment.getSelectedContactIds()) {
-            if (!firstIteration)
-                uriListBuilder.append(':');
-            final Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId);
-            final Uri lookupUri = Contacts.getLookupUri(getContentResolver(), contactUri);
-            List<String> pathSegments = lookupUri.getPathSegments();
-            uriListBuilder.append(Uri.encode(pathSegments.get(pathSegments.size() - 2)));
-            firstIteration = false;
-        }
-        final Uri uri = Uri.withAppendedPath(
-                Contacts.CONTENT_MULTI_VCARD_URI,
-                Uri.encode(uriListBuilder.toString()));
-        final Intent intent = new Intent(Intent.ACTION_SEND);
-        intent.setType(Contacts.CONTENT_VCARD_TYPE);
-        intent.putExtra(Intent.EXTRA_STREAM, uri);
-        ImplicitIntentsUtil.startActivityOutsideApp(this, intent);
+        ShareContactsInteraction.start(this, mAllFragment.getSelectedContactIds().toArray());
     }
+
     private void joinSelectedContacts() {
-        JoinContactsDialogFragment.start(this, mAllFragment.getSelectedContactIds());
+        JoinContactsDialogFragment.start(this, mAllFragment.getSelectedContactIds().toArray());
     }
 
     @Override
@@ -1576,7 +1560,7 @@ public class PeopleActivity extends ContactsActivity implements
 
     private void deleteSelectedContacts() {
         ContactMultiDeletionInteraction.start(PeopleActivity.this,
-                mAllFragment.getSelectedContactIds());
+                mAllFragment.getSelectedContactIds().toArray());
     }
 
     private void createNewGroup() {
@@ -1590,6 +1574,19 @@ public class PeopleActivity extends ContactsActivity implements
         mActionBarAdapter.setSelectionMode(false);
     }
 
+    @Override
+    public void startActivityForResult(Intent intent, int requestCode, Bundle options) {
+        switch (requestCode) {
+            case ImportExportDialogFragment.SUBACTIVITY_MULTI_PICK_CONTACT:
+            case ImportExportDialogFragment.SUBACTIVITY_EXPORT_CONTACTS:
+            case ImportExportDialogFragment.SUBACTIVITY_SHARE_VISILBLE_CONTACTS:
+                // The results of these picks are read with MultiPickResult.open().
+                intent.putExtra(MultiPickResult.EXTRA_ACCEPT_RESULT_FILE, true);
+                break;
+        }
+        super.startActivityForResult(intent, requestCode, options);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         switch (requestCode) {
@@ -1625,13 +1622,18 @@ public class PeopleActivity extends ContactsActivity implements
             case ImportExportDialogFragment.SUBACTIVITY_MULTI_PICK_CONTACT:
                 if (resultCode == RESULT_OK) {
                     mContactList = new ArrayList<String[]>();
-                    Bundle b = data.getExtras();
-                    Bundle choiceSet = b.getBundle(SimContactsConstants.RESULT_KEY);
-                    Set<String> set = choiceSet.keySet();
-                    Iterator<String> i = set.iterator();
-                    while (i.hasNext()) {
-                        String contactInfo[] = choiceSet.getStringArray(i.next());
-                        mContactList.add(contactInfo);
+                    MultiPickResult.Reader reader = null;
+                    try {
+                        reader = MultiPickResult.open(this, data);
+                        while (reader.moveToNext()) {
+                            mContactList.add(reader.getValues());
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to read picked contacts", e);
+                    } finally {
+                        if (reader != null) {
+                            reader.close();
+                        }
                     }
                     Log.d(TAG, "return " + mContactList.size() + " contacts");
                     if (!mContactList.isEmpty()) {
@@ -1648,17 +1650,23 @@ public class PeopleActivity extends ContactsActivity implements
                 break;
         case ImportExportDialogFragment.SUBACTIVITY_EXPORT_CONTACTS:
             if (resultCode == RESULT_OK) {
-                Bundle result = data.getExtras().getBundle(
-                        SimContactsConstants.RESULT_KEY);
-                Set<String> keySet = result.keySet();
-                Iterator<String> it = keySet.iterator();
                 StringBuilder selExportBuilder = new StringBuilder();
-                while (it.hasNext()) {
-                    String id = it.next();
-                    if (0 != selExportBuilder.length()) {
-                        selExportBuilder.append(",");
+                MultiPickResult.Reader reader = null;
+                try {
+                    reader = MultiPickResult.open(this, data);
+                    while (reader.moveToNext()) {
+                        if (0 != selExportBuilder.length()) {
+                            selExportBuilder.append(",");
+                        }
+                        selExportBuilder.append(reader.getId());
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read contacts picked for export", e);
+                    return;
+                } finally {
+                    if (reader != null) {
+                        reader.close();
                     }
-                    selExportBuilder.append(id);
                 }
                 selExportBuilder.insert(0, "_id IN (");
                 selExportBuilder.append(")");
@@ -1673,30 +1681,42 @@ public class PeopleActivity extends ContactsActivity implements
             break;
         case ImportExportDialogFragment.SUBACTIVITY_SHARE_VISILBLE_CONTACTS:
             if (resultCode == RESULT_OK) {
-                Bundle result = data.getExtras().getBundle(
-                        SimContactsConstants.RESULT_KEY);
                 StringBuilder uriListBuilder = new StringBuilder();
                 int index = 0;
-                int size = result.keySet().size();
+                MultiPickResult.Reader reader = null;
+                try {
+                    reader = MultiPickResult.open(this, data);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read contacts picked for sharing", e);
+                    Toast.makeText(this, R.string.share_failed, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                int size = reader.getCount();
                 // The premise of allowing to share contacts is that the
                 // amount of those contacts which have been selected to
                 // append and will be put into intent as extra data to
                 // deliver is not more that 2000, because too long arguments
                 // will cause TransactionTooLargeException in binder.
                 if (size > ImportExportDialogFragment.MAX_COUNT_ALLOW_SHARE_CONTACT) {
+                    reader.close();
                     Toast.makeText(this, R.string.share_failed,
                             Toast.LENGTH_SHORT).show();
                     return;
                 }
-                Iterator<String> it = result.keySet().iterator();
-                String[] values = null;
-                while (it.hasNext()) {
-                    if (index != 0) {
-                        uriListBuilder.append(':');
+                try {
+                    while (reader.moveToNext()) {
+                        if (index != 0) {
+                            uriListBuilder.append(':');
+                        }
+                        uriListBuilder.append(reader.getValues()[0]);
+                        index++;
                     }
-                    values = result.getStringArray(it.next());
-                    uriListBuilder.append(values[0]);
-                    index++;
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read contacts picked for sharing", e);
+                    Toast.makeText(this, R.string.share_failed, Toast.LENGTH_SHORT).show();
+                    return;
+                } finally {
+                    reader.close();
                 }
                 Uri uri = Uri.withAppendedPath(
                         Contacts.CONTENT_MULTI_VCARD_URI,
@@ -21,31 +21,43 @@ import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.OperationCanceledException;
 import android.os.Process;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.AggregationSuggestions;
 import android.provider.ContactsContract.Contacts.AggregationSuggestions.Builder;
 import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
 
 import com.android.contacts.common.model.ValuesDelta;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Runs asynchronous queries to obtain aggregation suggestions in the as-you-type mode.
+ *
+ * Suggestions are cached by name, so typing a name again does not query the provider. A query
+ * that is still running when the name changes is cancelled. Changes to contacts are collected
+ * for a while and then checked, at most every few seconds: only if a contact was inserted,
+ * updated or deleted in the meantime are the cache dropped and the suggestions read again.
  */
 public class AggregationSuggestionEngine extends HandlerThread {
     public static final String TAG = "AggregationSuggestionEngine";
@@ -75,14 +87,15 @@ public class AggregationSuggestionEngine extends HandlerThread {
         public String phoneNumber;
         public String emailAddress;
         public String nickname;
-        public byte[] photo;
+        /** ID of the contact's photo, loaded through the photo manager; 0 if it has none. */
+        public long photoId;
         public List<RawContact> rawContacts;
 
         @Override
         public String toString() {
             return "ID: " + contactId + " rawContacts: " + rawContacts + " name: " + name
             + " phone: " + phoneNumber + " email: " + emailAddress + " nickname: "
-            + nickname + (photo != null ? " [has photo]" : "");
+            + nickname + (photoId != 0 ? " [has photo]" : "");
         }
     }
 
@@ -93,37 +106,57 @@ public class AggregationSuggestionEngine extends HandlerThread {
 
         @Override
         public void onChange(boolean selfChange) {
-            scheduleSuggestionLookup();
+            scheduleContentChangeCheck();
         }
     }
 
     private static final int MESSAGE_RESET = 0;
     private static final int MESSAGE_NAME_CHANGE = 1;
-    private static final int MESSAGE_DATA_CURSOR = 2;
+    private static final int MESSAGE_SUGGESTIONS = 2;
+    private static final int MESSAGE_CONTENT_CHANGE = 3;
 
     private static final long SUGGESTION_LOOKUP_DELAY_MILLIS = 300;
 
+    /** Quiet time after a change to contacts before the suggestions are checked. */
+    private static final long CONTENT_CHANGE_DELAY_MILLIS = 1000;
+    /** Longest a burst of changes can hold back the check. */
+    private static final long MAX_CONTENT_CHANGE_DELAY_MILLIS = 5000;
+    /** Shortest time between two checks, so a long sync does not keep querying. */
+    private static final long MIN_CONTENT_CHECK_INTERVAL_MILLIS = 10000;
+
     private static final int MAX_SUGGESTION_COUNT = 3;
 
+    private static final int SUGGESTION_CACHE_SIZE = 16;
+
     private final Context mContext;
 
+    // Accessed on the engine thread only.
     private long[] mSuggestedContactIds = new long[0];
+    private List<Suggestion> mLoadedSuggestions = Collections.emptyList();
+    private final LruCache<String, List<Suggestion>> mSuggestionCache =
+            new LruCache<String, List<Suggestion>>(SUGGESTION_CACHE_SIZE);
+    private long mFirstContentChangeTime;
+    private long mLastContentCheckTime;
+    private long mLastContentCheckUptime;
 
     private Handler mMainHandler;
     private Handler mHandler;
     private long mContactId;
     private Listener mListener;
-    private Cursor mDataCursor;
+    private List<Suggestion> mSuggestions = Collections.emptyList();
     private ContentObserver mContentObserver;
-    private Uri mSuggestionsUri;
+    private volatile Uri mSuggestionsUri;
+    private volatile CancellationSignal mCancellationSignal;
 
     public AggregationSuggestionEngine(Context context) {
         super("AggregationSuggestions", Process.THREAD_PRIORITY_BACKGROUND);
         mContext = context.getApplicationContext();
         mMainHandler = new Handler() {
             @Override
+            @SuppressWarnings("unchecked")
             public void handleMessage(Message msg) {
-                AggregationSuggestionEngine.this.deliverNotification((Cursor) msg.obj);
+                AggregationSuggestionEngine.this.deliverNotification(
+                        (List<Suggestion>) msg.obj);
             }
         };
     }
@@ -153,10 +186,8 @@ public class AggregationSuggestionEngine extends HandlerThread {
 
     @Override
     public boolean quit() {
-        if (mDataCursor != null) {
-            mDataCursor.close();
-        }
-        mDataCursor = null;
+        cancelQuery();
+        mSuggestions = Collections.emptyList();
         if (mContentObserver != null) {
             mContext.getContentResolver().unregisterContentObserver(mContentObserver);
             mContentObserver = null;
@@ -167,24 +198,53 @@ public class AggregationSuggestionEngine extends HandlerThread {
     public void reset() {
         Handler handler = getHandler();
         handler.removeMessages(MESSAGE_NAME_CHANGE);
+        cancelQuery();
         handler.sendEmptyMessage(MESSAGE_RESET);
     }
 
     public void onNameChange(ValuesDelta values) {
         mSuggestionsUri = buildAggregationSuggestionUri(values);
+        // The results of a running query are for the previous name.
+        cancelQuery();
         if (mSuggestionsUri != null) {
             if (mContentObserver == null) {
                 mContentObserver = new SuggestionContentObserver(getHandler());
                 mContext.getContentResolver().registerContentObserver(
-                        Contacts.CONTENT_URI, true, mContentObserver);
+                        Contacts.CONTENT_URI, false, mContentObserver);
+                getHandler().sendEmptyMessage(MESSAGE_CONTENT_CHANGE);
             }
         } else if (mContentObserver != null) {
             mContext.getContentResolver().unregisterContentObserver(mContentObserver);
             mContentObserver = null;
+            getHandler().removeMessages(MESSAGE_CONTENT_CHANGE);
         }
         scheduleSuggestionLookup();
     }
 
+    private void cancelQuery() {
+        final CancellationSignal signal = mCancellationSignal;
+        if (signal != null) {
+            signal.cancel();
+        }
+    }
+
+    /**
+     * Coalesces a burst of changes into one check, which runs once the changes have stopped
+     * for {@link #CONTENT_CHANGE_DELAY_MILLIS} or the burst has lasted
+     * {@link #MAX_CONTENT_CHANGE_DELAY_MILLIS}. Called on the engine thread.
+     */
+    private void scheduleContentChangeCheck() {
+        final Handler handler = getHandler();
+        final long now = SystemClock.uptimeMillis();
+        if (!handler.hasMessages(MESSAGE_CONTENT_CHANGE)) {
+            mFirstContentChangeTime = now;
+        }
+        final long deadline = mFirstContentChangeTime + MAX_CONTENT_CHANGE_DELAY_MILLIS;
+        handler.removeMessages(MESSAGE_CONTENT_CHANGE);
+        handler.sendEmptyMessageAtTime(MESSAGE_CONTENT_CHANGE,
+                Math.min(now + CONTENT_CHANGE_DELAY_MILLIS, deadline));
+    }
+
     protected void scheduleSuggestionLookup() {
         Handler handler = getHandler();
         handler.removeMessages(MESSAGE_NAME_CHANGE);
@@ -247,13 +307,78 @@ public class AggregationSuggestionEngine extends HandlerThread {
         switch (msg.what) {
             case MESSAGE_RESET:
                 mSuggestedContactIds = new long[0];
+                mLoadedSuggestions = Collections.emptyList();
+                mSuggestionCache.evictAll();
                 break;
             case MESSAGE_NAME_CHANGE:
-                loadAggregationSuggestions((Uri) msg.obj);
+                loadAggregationSuggestions((Uri) msg.obj, false);
+                break;
+            case MESSAGE_CONTENT_CHANGE:
+                onContentChange();
                 break;
         }
     }
 
+    /**
+     * Drops the cached suggestions and reads them again if any contact was inserted, updated
+     * or deleted since the last check, as a new contact may match any of the names. Checks
+     * are at least {@link #MIN_CONTENT_CHECK_INTERVAL_MILLIS} apart. The first check, when
+     * observation starts, only records the time.
+     */
+    private void onContentChange() {
+        final long uptime = SystemClock.uptimeMillis();
+        if (mLastContentCheckUptime != 0
+                && uptime - mLastContentCheckUptime < MIN_CONTENT_CHECK_INTERVAL_MILLIS) {
+            final Handler handler = getHandler();
+            handler.removeMessages(MESSAGE_CONTENT_CHANGE);
+            handler.sendEmptyMessageAtTime(MESSAGE_CONTENT_CHANGE,
+                    mLastContentCheckUptime + MIN_CONTENT_CHECK_INTERVAL_MILLIS);
+            return;
+        }
+        mLastContentCheckUptime = uptime;
+        final long now = System.currentTimeMillis();
+        final long since = mLastContentCheckTime;
+        mLastContentCheckTime = now;
+        if (since == 0 || !hasContactChanges(since)) {
+            return;
+        }
+        mSuggestionCache.evictAll();
+        final Uri uri = mSuggestionsUri;
+        if (uri != null && !getHandler().hasMessages(MESSAGE_NAME_CHANGE)) {
+            loadAggregationSuggestions(uri, true);
+        }
+    }
+
+    private boolean hasContactChanges(long since) {
+        final String[] args = new String[] { String.valueOf(since) };
+        return hasRows(Contacts.CONTENT_URI, Contacts._ID,
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?", args)
+                || hasRows(DeletedContacts.CONTENT_URI, DeletedContacts.CONTACT_ID,
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=?", args);
+    }
+
+    private boolean hasRows(Uri uri, String column, String selection, String[] args) {
+        final Uri limited = uri.buildUpon()
+                .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY, "1").build();
+        final Cursor cursor;
+        try {
+            cursor = mContext.getContentResolver().query(limited, new String[] { column },
+                    selection, args, null);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to check for contact changes", e);
+            // Assume there were changes, the suggestions are read again.
+            return true;
+        }
+        if (cursor == null) {
+            return true;
+        }
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
     private static final class DataQuery {
 
         public static final String SELECTION_PREFIX =
@@ -261,8 +386,7 @@ public class AggregationSuggestionEngine extends HandlerThread {
                     + Phone.CONTENT_ITEM_TYPE + "','"
                     + Email.CONTENT_ITEM_TYPE + "','"
                     + StructuredName.CONTENT_ITEM_TYPE + "','"
-                    + Nickname.CONTENT_ITEM_TYPE + "','"
-                    + Photo.CONTENT_ITEM_TYPE + "')"
+                    + Nickname.CONTENT_ITEM_TYPE + "')"
                 + " AND " + Data.CONTACT_ID + " IN (";
 
         public static final String[] COLUMNS = {
@@ -275,7 +399,6 @@ public class AggregationSuggestionEngine extends HandlerThread {
             Data.MIMETYPE,
             Data.DATA1,
             Data.IS_SUPER_PRIMARY,
-            Photo.PHOTO,
             RawContacts.ACCOUNT_TYPE,
             RawContacts.ACCOUNT_NAME,
             RawContacts.DATA_SET
@@ -290,150 +413,190 @@ public class AggregationSuggestionEngine extends HandlerThread {
         public static final int MIMETYPE = 6;
         public static final int DATA1 = 7;
         public static final int IS_SUPERPRIMARY = 8;
-        public static final int PHOTO = 9;
-        public static final int ACCOUNT_TYPE = 10;
-        public static final int ACCOUNT_NAME = 11;
-        public static final int DATA_SET = 12;
+        public static final int ACCOUNT_TYPE = 9;
+        public static final int ACCOUNT_NAME = 10;
+        public static final int DATA_SET = 11;
     }
 
-    private void loadAggregationSuggestions(Uri uri) {
-        ContentResolver contentResolver = mContext.getContentResolver();
-        Cursor cursor = contentResolver.query(uri, new String[]{Contacts._ID}, null, null, null);
-        if (cursor == null) {
+    /**
+     * @param force whether to read the data of the suggested contacts even if the same
+     *     contacts are suggested, as their data may have changed
+     */
+    private void loadAggregationSuggestions(Uri uri, boolean force) {
+        final String key = uri.toString();
+        final List<Suggestion> cached = mSuggestionCache.get(key);
+        if (cached != null && !force) {
+            if (updateSuggestedContactIds(cached)) {
+                deliverSuggestions(cached);
+            }
+            return;
+        }
+
+        final CancellationSignal signal = new CancellationSignal();
+        mCancellationSignal = signal;
+        // The name may have changed before the signal was published.
+        if (uri != mSuggestionsUri) {
+            mCancellationSignal = null;
             return;
         }
+        ContentResolver contentResolver = mContext.getContentResolver();
+        Cursor cursor = null;
         try {
+            cursor = contentResolver.query(uri, new String[]{Contacts._ID}, null, null, null,
+                    signal);
+            if (cursor == null) {
+                return;
+            }
             // If a new request is pending, chuck the result of the previous request
             if (getHandler().hasMessages(MESSAGE_NAME_CHANGE)) {
                 return;
             }
 
-            boolean changed = updateSuggestedContactIds(cursor);
-            if (!changed) {
+            // The suggested IDs are only replaced once their suggestions are delivered, so a
+            // cancelled data query does not leave them out of step with what is shown.
+            final long[] ids = readContactIds(cursor);
+            if (!force && Arrays.equals(ids, mSuggestedContactIds)) {
+                mSuggestionCache.put(key, mLoadedSuggestions);
                 return;
             }
 
             StringBuilder sb = new StringBuilder(DataQuery.SELECTION_PREFIX);
-            int count = mSuggestedContactIds.length;
-            for (int i = 0; i < count; i++) {
+            for (int i = 0; i < ids.length; i++) {
                 if (i > 0) {
                     sb.append(',');
                 }
-                sb.append(mSuggestedContactIds[i]);
+                sb.append(ids[i]);
             }
             sb.append(')');
-            sb.toString();
 
             Cursor dataCursor = contentResolver.query(Data.CONTENT_URI,
-                    DataQuery.COLUMNS, sb.toString(), null, Data.CONTACT_ID);
-            if (dataCursor != null) {
-                mMainHandler.sendMessage(mMainHandler.obtainMessage(MESSAGE_DATA_CURSOR, dataCursor));
+                    DataQuery.COLUMNS, sb.toString(), null, Data.CONTACT_ID, signal);
+            if (dataCursor == null) {
+                return;
             }
+            final List<Suggestion> suggestions;
+            try {
+                suggestions = readSuggestions(dataCursor);
+            } finally {
+                dataCursor.close();
+            }
+            mSuggestionCache.put(key, suggestions);
+            mSuggestedContactIds = ids;
+            deliverSuggestions(suggestions);
+        } catch (OperationCanceledException e) {
+            // A newer name arrived, its lookup is scheduled.
         } finally {
-            cursor.close();
+            mCancellationSignal = null;
+            if (cursor != null) {
+                cursor.close();
+            }
         }
     }
 
-    private boolean updateSuggestedContactIds(final Cursor cursor) {
-        final int count = cursor.getCount();
-        boolean changed = count != mSuggestedContactIds.length;
-        final ArrayList<Long> newIds = new ArrayList<Long>(count);
-        while (cursor.moveToNext()) {
-            final long contactId = cursor.getLong(0);
-            if (!changed &&
-                    Arrays.binarySearch(mSuggestedContactIds, contactId) < 0) {
-                changed = true;
-            }
-            newIds.add(contactId);
-        }
+    private void deliverSuggestions(List<Suggestion> suggestions) {
+        mLoadedSuggestions = suggestions;
+        mMainHandler.sendMessage(mMainHandler.obtainMessage(MESSAGE_SUGGESTIONS, suggestions));
+    }
 
-        if (changed) {
-            mSuggestedContactIds = new long[newIds.size()];
-            int i = 0;
-            for (final Long newId : newIds) {
-                mSuggestedContactIds[i++] = newId;
-            }
-            Arrays.sort(mSuggestedContactIds);
+    private boolean updateSuggestedContactIds(List<Suggestion> suggestions) {
+        final long[] ids = new long[suggestions.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = suggestions.get(i).contactId;
         }
-
-        return changed;
+        Arrays.sort(ids);
+        if (Arrays.equals(ids, mSuggestedContactIds)) {
+            return false;
+        }
+        mSuggestedContactIds = ids;
+        return true;
     }
 
-    protected void deliverNotification(Cursor dataCursor) {
-        if (mDataCursor != null) {
-            mDataCursor.close();
+    /**
+     * Returns the sorted contact IDs of the suggestion query.
+     */
+    private static long[] readContactIds(Cursor cursor) {
+        final long[] ids = new long[cursor.getCount()];
+        int count = 0;
+        while (cursor.moveToNext() && count < ids.length) {
+            ids[count++] = cursor.getLong(0);
         }
-        mDataCursor = dataCursor;
+        Arrays.sort(ids, 0, count);
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    protected void deliverNotification(List<Suggestion> suggestions) {
+        mSuggestions = suggestions;
         if (mListener != null) {
             mListener.onAggregationSuggestionChange();
         }
     }
 
     public int getSuggestedContactCount() {
-        return mDataCursor != null ? mDataCursor.getCount() : 0;
+        return mSuggestions.size();
     }
 
     public List<Suggestion> getSuggestions() {
+        return new ArrayList<Suggestion>(mSuggestions);
+    }
+
+    /**
+     * Reads the suggestions from the data of the suggested contacts. Called on the engine
+     * thread.
+     */
+    private static List<Suggestion> readSuggestions(Cursor cursor) {
         ArrayList<Suggestion> list = Lists.newArrayList();
-        if (mDataCursor != null) {
-            Suggestion suggestion = null;
-            long currentContactId = -1;
-            mDataCursor.moveToPosition(-1);
-            while (mDataCursor.moveToNext()) {
-                long contactId = mDataCursor.getLong(DataQuery.CONTACT_ID);
-                if (contactId != currentContactId) {
-                    suggestion = new Suggestion();
-                    suggestion.contactId = contactId;
-                    suggestion.name = mDataCursor.getString(DataQuery.DISPLAY_NAME);
-                    suggestion.lookupKey = mDataCursor.getString(DataQuery.LOOKUP_KEY);
-                    suggestion.rawContacts = Lists.newArrayList();
-                    list.add(suggestion);
-                    currentContactId = contactId;
-                }
+        Suggestion suggestion = null;
+        long currentContactId = -1;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            long contactId = cursor.getLong(DataQuery.CONTACT_ID);
+            if (contactId != currentContactId) {
+                suggestion = new Suggestion();
+                suggestion.contactId = contactId;
+                suggestion.name = cursor.getString(DataQuery.DISPLAY_NAME);
+                suggestion.lookupKey = cursor.getString(DataQuery.LOOKUP_KEY);
+                suggestion.photoId = cursor.getLong(DataQuery.PHOTO_ID);
+                suggestion.rawContacts = Lists.newArrayList();
+                list.add(suggestion);
+                currentContactId = contactId;
+            }
 
-                long rawContactId = mDataCursor.getLong(DataQuery.RAW_CONTACT_ID);
-                if (!containsRawContact(suggestion, rawContactId)) {
-                    RawContact rawContact = new RawContact();
-                    rawContact.rawContactId = rawContactId;
-                    rawContact.accountName = mDataCursor.getString(DataQuery.ACCOUNT_NAME);
-                    rawContact.accountType = mDataCursor.getString(DataQuery.ACCOUNT_TYPE);
-                    rawContact.dataSet = mDataCursor.getString(DataQuery.DATA_SET);
-                    suggestion.rawContacts.add(rawContact);
-                }
+            long rawContactId = cursor.getLong(DataQuery.RAW_CONTACT_ID);
+            if (!containsRawContact(suggestion, rawContactId)) {
+                RawContact rawContact = new RawContact();
+                rawContact.rawContactId = rawContactId;
+                rawContact.accountName = cursor.getString(DataQuery.ACCOUNT_NAME);
+                rawContact.accountType = cursor.getString(DataQuery.ACCOUNT_TYPE);
+                rawContact.dataSet = cursor.getString(DataQuery.DATA_SET);
+                suggestion.rawContacts.add(rawContact);
+            }
 
-                String mimetype = mDataCursor.getString(DataQuery.MIMETYPE);
-                if (Phone.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                    String data = mDataCursor.getString(DataQuery.DATA1);
-                    int superprimary = mDataCursor.getInt(DataQuery.IS_SUPERPRIMARY);
-                    if (!TextUtils.isEmpty(data)
-                            && (superprimary != 0 || suggestion.phoneNumber == null)) {
-                        suggestion.phoneNumber = data;
-                    }
-                } else if (Email.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                    String data = mDataCursor.getString(DataQuery.DATA1);
-                    int superprimary = mDataCursor.getInt(DataQuery.IS_SUPERPRIMARY);
-                    if (!TextUtils.isEmpty(data)
-                            && (superprimary != 0 || suggestion.emailAddress == null)) {
-                        suggestion.emailAddress = data;
-                    }
-                } else if (Nickname.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                    String data = mDataCursor.getString(DataQuery.DATA1);
-                    if (!TextUtils.isEmpty(data)) {
-                        suggestion.nickname = data;
-                    }
-                } else if (Photo.CONTENT_ITEM_TYPE.equals(mimetype)) {
-                    long dataId = mDataCursor.getLong(DataQuery.ID);
-                    long photoId = mDataCursor.getLong(DataQuery.PHOTO_ID);
-                    if (dataId == photoId && !mDataCursor.isNull(DataQuery.PHOTO)) {
-                        suggestion.photo = mDataCursor.getBlob(DataQuery.PHOTO);
-                    }
+            String mimetype = cursor.getString(DataQuery.MIMETYPE);
+            if (Phone.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                String data = cursor.getString(DataQuery.DATA1);
+                int superprimary = cursor.getInt(DataQuery.IS_SUPERPRIMARY);
+                if (!TextUtils.isEmpty(data)
+                        && (superprimary != 0 || suggestion.phoneNumber == null)) {
+                    suggestion.phoneNumber = data;
+                }
+            } else if (Email.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                String data = cursor.getString(DataQuery.DATA1);
+                int superprimary = cursor.getInt(DataQuery.IS_SUPERPRIMARY);
+                if (!TextUtils.isEmpty(data)
+                        && (superprimary != 0 || suggestion.emailAddress == null)) {
+                    suggestion.emailAddress = data;
+                }
+            } else if (Nickname.CONTENT_ITEM_TYPE.equals(mimetype)) {
+                String data = cursor.getString(DataQuery.DATA1);
+                if (!TextUtils.isEmpty(data)) {
+                    suggestion.nickname = data;
                 }
             }
         }
         return list;
     }
 
-    public boolean containsRawContact(Suggestion suggestion, long rawContactId) {
+    public static boolean containsRawContact(Suggestion suggestion, long rawContactId) {
         if (suggestion.rawContacts != null) {
             int count = suggestion.rawContacts.size();
             for (int i = 0; i < count; i++) {
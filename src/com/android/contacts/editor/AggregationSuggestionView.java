@@ -17,7 +17,6 @@
 package com.android.contacts.editor;
 
 import android.content.Context;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.provider.ContactsContract.Contacts;
 import android.text.TextUtils;
@@ -84,14 +83,10 @@ public class AggregationSuggestionView extends LinearLayout {
         mContactId = suggestion.contactId;
         mLookupKey = suggestion.lookupKey;
         mRawContacts = suggestion.rawContacts;
+        // The default avatar is shown until the thumbnail has been decoded.
         ImageView photo = (ImageView) findViewById(R.id.aggregation_suggestion_photo);
-        if (suggestion.photo != null) {
-            photo.setImageBitmap(BitmapFactory.decodeByteArray(
-                    suggestion.photo, 0, suggestion.photo.length));
-        } else {
-            photo.setImageDrawable(ContactPhotoManager.getDefaultAvatarDrawableForContact(
-                    getResources(), false, null));
-        }
+        ContactPhotoManager.getInstance(getContext()).loadThumbnail(photo, suggestion.photoId,
+                null, false, false, null);
 
         TextView name = (TextView) findViewById(R.id.aggregation_suggestion_name);
         name.setText(suggestion.name);
@@ -28,6 +28,7 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import com.android.contacts.GroupListLoader;
+import com.android.contacts.GroupMemberCountCache;
 import com.android.contacts.R;
 import com.android.contacts.common.model.account.AccountType;
 import com.android.contacts.common.model.account.PhoneAccountType;
@@ -42,6 +43,7 @@ public class GroupBrowseListAdapter extends BaseAdapter {
     private final Context mContext;
     private final LayoutInflater mLayoutInflater;
     private final AccountTypeManager mAccountTypeManager;
+    private final GroupMemberCountCache mCountCache;
 
     private Cursor mCursor;
 
@@ -52,6 +54,7 @@ public class GroupBrowseListAdapter extends BaseAdapter {
         mContext = context;
         mLayoutInflater = LayoutInflater.from(context);
         mAccountTypeManager = AccountTypeManager.getInstance(mContext);
+        mCountCache = GroupMemberCountCache.getInstance(mContext);
     }
 
     public void setCursor(Cursor cursor) {
@@ -122,7 +125,12 @@ public class GroupBrowseListAdapter extends BaseAdapter {
         String dataSet = mCursor.getString(GroupListLoader.DATA_SET);
         long groupId = mCursor.getLong(GroupListLoader.GROUP_ID);
         String title = mCursor.getString(GroupListLoader.TITLE);
-        int memberCount = mCursor.getInt(GroupListLoader.MEMBER_COUNT);
+        int memberCount = mCountCache.getCount(groupId);
+        if (memberCount < 0) {
+            // Created elsewhere since the counts were read, show it once they are read again.
+            memberCount = 0;
+            mCountCache.reconcile();
+        }
 
         // Figure out if this is the first group for this account name / account type pair by
         // checking the previous entry. This is to determine whether or not we need to display an
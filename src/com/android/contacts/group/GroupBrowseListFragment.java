@@ -43,6 +43,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.android.contacts.GroupListLoader;
+import com.android.contacts.GroupMemberCountCache;
 import com.android.contacts.R;
 import com.android.contacts.common.util.ImplicitIntentsUtil;
 import com.android.contacts.group.GroupBrowseListAdapter.GroupListItemViewCache;
@@ -177,9 +178,27 @@ public class GroupBrowseListFragment extends Fragment
     @Override
     public void onStart() {
         getLoaderManager().initLoader(LOADER_GROUPS, null, mGroupLoaderListener);
+        GroupMemberCountCache.getInstance(mContext).addListener(mCountListener);
         super.onStart();
     }
 
+    @Override
+    public void onStop() {
+        GroupMemberCountCache.getInstance(mContext).removeListener(mCountListener);
+        super.onStop();
+    }
+
+    /**
+     * Rebinds the groups when their member counts change.
+     */
+    private final GroupMemberCountCache.Listener mCountListener =
+            new GroupMemberCountCache.Listener() {
+        @Override
+        public void onGroupMemberCountsChanged() {
+            mAdapter.notifyDataSetChanged();
+        }
+    };
+
     /**
      * The listener for the group meta data loader for all groups.
      */
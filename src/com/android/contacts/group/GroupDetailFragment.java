@@ -28,6 +28,7 @@ import android.content.Intent;
 import android.content.Loader;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
@@ -112,6 +113,7 @@ public class GroupDetailFragment extends Fragment implements OnScrollListener {
     private Listener mListener;
 
     private ContactTileAdapter mAdapter;
+    private Cursor mMemberCursor;
     private ContactPhotoManager mPhotoManager;
     private AccountTypeManager mAccountTypeManager;
 
@@ -164,6 +166,9 @@ public class GroupDetailFragment extends Fragment implements OnScrollListener {
         mMemberListView = (ListView) mRootView.findViewById(android.R.id.list);
         mMemberListView.setItemsCanFocus(true);
         mMemberListView.setAdapter(mAdapter);
+        // Jumps to a letter through the address book index, the members around it are loaded
+        // then.
+        mMemberListView.setFastScrollEnabled(true);
 
         return mRootView;
     }
@@ -237,6 +242,16 @@ public class GroupDetailFragment extends Fragment implements OnScrollListener {
         }
     };
 
+    /**
+     * Rebinds the members once the page of the member cursor they are on has been loaded.
+     */
+    private final DataSetObserver mMemberPageObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            mAdapter.notifyDataSetChanged();
+        }
+    };
+
     /**
      * The listener for the group metadata loader.
      */
@@ -292,6 +307,11 @@ public class GroupDetailFragment extends Fragment implements OnScrollListener {
             }
             getActivity().invalidateOptionsMenu();
             updateSize(data.getCount());
+            if (data != mMemberCursor) {
+                // The cursor unregisters the observer when the loader closes it.
+                data.registerDataSetObserver(mMemberPageObserver);
+                mMemberCursor = data;
+            }
             mAdapter.setContactCursor(data);
             mMemberListView.setEmptyView(mEmptyView);
         }
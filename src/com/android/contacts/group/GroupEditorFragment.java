@@ -32,6 +32,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Parcel;
@@ -59,6 +60,7 @@ import android.widget.Toast;
 
 import com.android.contacts.ContactSaveService;
 import com.android.contacts.GroupMemberLoader;
+import com.android.contacts.GroupMemberPageCursor;
 import com.android.contacts.GroupMemberLoader.GroupEditorQuery;
 import com.android.contacts.GroupMetaDataLoader;
 import com.android.contacts.R;
@@ -75,11 +77,14 @@ import com.android.contacts.common.model.AccountTypeManager;
 import com.android.contacts.common.util.AccountsListAdapter.AccountListFilter;
 import com.android.contacts.common.util.ViewUtil;
 import com.android.contacts.common.SimContactsConstants;
+import com.android.contacts.util.LongHashSet;
 
 import com.google.common.base.Objects;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -97,9 +102,12 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
     private static final String KEY_DATA_SET = "dataSet";
     private static final String KEY_GROUP_NAME_IS_READ_ONLY = "groupNameIsReadOnly";
     private static final String KEY_ORIGINAL_GROUP_NAME = "originalGroupName";
-    private static final String KEY_MEMBERS_TO_ADD = "membersToAdd";
+    private static final String KEY_MEMBERS_TO_ADD_RAW_CONTACT_IDS = "membersToAddRawContactIds";
+    private static final String KEY_MEMBERS_TO_ADD_CONTACT_IDS = "membersToAddContactIds";
+    private static final String KEY_MEMBERS_TO_ADD_LOOKUP_KEYS = "membersToAddLookupKeys";
+    private static final String KEY_MEMBERS_TO_ADD_NAMES = "membersToAddNames";
+    private static final String KEY_MEMBERS_TO_ADD_PHOTO_URIS = "membersToAddPhotoUris";
     private static final String KEY_MEMBERS_TO_REMOVE = "membersToRemove";
-    private static final String KEY_MEMBERS_TO_DISPLAY = "membersToDisplay";
 
     private static final String CURRENT_EDITOR_TAG = "currentEditorForAccount";
 
@@ -206,9 +214,19 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
     private ContentResolver mContentResolver;
     private SuggestedMemberListAdapter mAutoCompleteAdapter;
 
-    private ArrayList<Member> mListMembersToAdd = new ArrayList<Member>();
-    private ArrayList<Member> mListMembersToRemove = new ArrayList<Member>();
-    private ArrayList<Member> mListToDisplay = new ArrayList<Member>();
+    // The existing members, read a page at a time, and the changes keyed by raw contact ID.
+    // Only the members to add and the raw contact IDs to remove are saved, the existing members
+    // are loaded again.
+    private GroupMemberPageCursor mExistingMembers;
+    private final LongHashSet mExistingRawContactIds = new LongHashSet();
+    private final LinkedHashMap<Long, Member> mMembersToAdd = new LinkedHashMap<Long, Member>();
+    private final LongHashSet mMembersToRemove = new LongHashSet();
+    // The cursor positions of the existing members that are not removed, followed by the
+    // members to add, rebuilt on demand after a change.
+    private int[] mDisplayedPositions = new int[0];
+    private int mDisplayedExistingCount;
+    private final ArrayList<Member> mDisplayedMembersToAdd = new ArrayList<Member>();
+    private boolean mDisplayDirty;
 
     public GroupEditorFragment() {
     }
@@ -242,6 +260,11 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
                 startGroupMetaDataLoader();
             } else {
                 setupEditorForAccount();
+                if (Intent.ACTION_EDIT.equals(mAction)) {
+                    // The existing members are not saved, load them again.
+                    getLoaderManager().initLoader(LOADER_EXISTING_MEMBERS, null,
+                            mGroupMemberListLoaderListener);
+                }
             }
         } else if (Intent.ACTION_EDIT.equals(mAction)) {
             startGroupMetaDataLoader();
@@ -267,6 +290,14 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
         }
     }
 
+    @Override
+    public void onDestroy() {
+        if (mAutoCompleteAdapter != null) {
+            mAutoCompleteAdapter.close();
+        }
+        super.onDestroy();
+    }
+
     private void startGroupMetaDataLoader() {
         mStatus = Status.LOADING;
         getLoaderManager().initLoader(LOADER_GROUP_METADATA, null,
@@ -288,9 +319,28 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
         outState.putBoolean(KEY_GROUP_NAME_IS_READ_ONLY, mGroupNameIsReadOnly);
         outState.putString(KEY_ORIGINAL_GROUP_NAME, mOriginalGroupName);
 
-        outState.putParcelableArrayList(KEY_MEMBERS_TO_ADD, mListMembersToAdd);
-        outState.putParcelableArrayList(KEY_MEMBERS_TO_REMOVE, mListMembersToRemove);
-        outState.putParcelableArrayList(KEY_MEMBERS_TO_DISPLAY, mListToDisplay);
+        // Only the membership changes are saved, as parallel arrays.
+        final int addCount = mMembersToAdd.size();
+        final long[] rawContactIds = new long[addCount];
+        final long[] contactIds = new long[addCount];
+        final String[] lookupKeys = new String[addCount];
+        final String[] names = new String[addCount];
+        final String[] photoUris = new String[addCount];
+        int i = 0;
+        for (Member member : mMembersToAdd.values()) {
+            rawContactIds[i] = member.getRawContactId();
+            contactIds[i] = member.getContactId();
+            lookupKeys[i] = member.getLookupKey();
+            names[i] = member.getDisplayName();
+            photoUris[i] = member.getPhotoUri() != null ? member.getPhotoUri().toString() : null;
+            i++;
+        }
+        outState.putLongArray(KEY_MEMBERS_TO_ADD_RAW_CONTACT_IDS, rawContactIds);
+        outState.putLongArray(KEY_MEMBERS_TO_ADD_CONTACT_IDS, contactIds);
+        outState.putStringArray(KEY_MEMBERS_TO_ADD_LOOKUP_KEYS, lookupKeys);
+        outState.putStringArray(KEY_MEMBERS_TO_ADD_NAMES, names);
+        outState.putStringArray(KEY_MEMBERS_TO_ADD_PHOTO_URIS, photoUris);
+        outState.putLongArray(KEY_MEMBERS_TO_REMOVE, mMembersToRemove.toArray());
     }
 
     private void onRestoreInstanceState(Bundle state) {
@@ -306,9 +356,26 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
         mGroupNameIsReadOnly = state.getBoolean(KEY_GROUP_NAME_IS_READ_ONLY);
         mOriginalGroupName = state.getString(KEY_ORIGINAL_GROUP_NAME);
 
-        mListMembersToAdd = state.getParcelableArrayList(KEY_MEMBERS_TO_ADD);
-        mListMembersToRemove = state.getParcelableArrayList(KEY_MEMBERS_TO_REMOVE);
-        mListToDisplay = state.getParcelableArrayList(KEY_MEMBERS_TO_DISPLAY);
+        final long[] rawContactIds = state.getLongArray(KEY_MEMBERS_TO_ADD_RAW_CONTACT_IDS);
+        final long[] contactIds = state.getLongArray(KEY_MEMBERS_TO_ADD_CONTACT_IDS);
+        final String[] lookupKeys = state.getStringArray(KEY_MEMBERS_TO_ADD_LOOKUP_KEYS);
+        final String[] names = state.getStringArray(KEY_MEMBERS_TO_ADD_NAMES);
+        final String[] photoUris = state.getStringArray(KEY_MEMBERS_TO_ADD_PHOTO_URIS);
+        mMembersToAdd.clear();
+        if (rawContactIds != null) {
+            for (int i = 0; i < rawContactIds.length; i++) {
+                mMembersToAdd.put(rawContactIds[i], new Member(rawContactIds[i], lookupKeys[i],
+                        contactIds[i], names[i], photoUris[i]));
+            }
+        }
+        mMembersToRemove.clear();
+        final long[] removed = state.getLongArray(KEY_MEMBERS_TO_REMOVE);
+        if (removed != null) {
+            for (long rawContactId : removed) {
+                mMembersToRemove.add(rawContactId);
+            }
+        }
+        mDisplayDirty = true;
     }
 
     public void setContentResolver(ContentResolver resolver) {
@@ -400,6 +467,9 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
             }
             editorView = mLayoutInflater.inflate(newGroupEditorId, mRootView, false);
             editorView.setTag(CURRENT_EDITOR_TAG);
+            if (mAutoCompleteAdapter != null) {
+                mAutoCompleteAdapter.close();
+            }
             mAutoCompleteAdapter = null;
             mLastGroupEditorId = newGroupEditorId;
             isNewEditor = true;
@@ -440,6 +510,9 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
         // account name and type. For groups that cannot have membership edited, there will be no
         // autocomplete text view.
         if (mAutoCompleteTextView != null) {
+            if (mAutoCompleteAdapter != null) {
+                mAutoCompleteAdapter.close();
+            }
             mAutoCompleteAdapter = new SuggestedMemberListAdapter(mContext,
                     android.R.layout.simple_dropdown_item_1line);
             mAutoCompleteTextView.setThreshold(1);
@@ -465,9 +538,9 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
                     mAutoCompleteTextView.setText("");
                 }
             });
-            // Update the exempt list.  (mListToDisplay might have been restored from the saved
-            // state.)
-            mAutoCompleteAdapter.updateExistingMembersList(mListToDisplay);
+            // Update the exempt list.  (The membership changes might have been restored from the
+            // saved state.)
+            mAutoCompleteAdapter.updateExistingMembersList(getDisplayedContactIds());
         }
 
         if (mAddGroupMemberView != null) {
@@ -652,9 +725,6 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
             return false;
         }
 
-        // If we are about to close the editor - there is no need to refresh the data
-        getLoaderManager().destroyLoader(LOADER_EXISTING_MEMBERS);
-
         // If there are no changes, then go straight to onSaveCompleted()
         if (!hasNameChange() && !hasMembershipChange()) {
             onSaveCompleted(false, mGroupUri);
@@ -671,7 +741,7 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
         Intent saveIntent = null;
         if (Intent.ACTION_INSERT.equals(mAction)) {
             // Create array of raw contact IDs for contacts to add to the group
-            long[] membersToAddArray = convertToArray(mListMembersToAdd);
+            long[] membersToAddArray = convertToArray(mMembersToAdd.keySet());
 
             // Create the save intent to create the group and add members at the same time
             saveIntent = ContactSaveService.createNewGroupIntent(activity,
@@ -681,10 +751,10 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
                     GroupEditorActivity.ACTION_SAVE_COMPLETED);
         } else if (Intent.ACTION_EDIT.equals(mAction)) {
             // Create array of raw contact IDs for contacts to add to the group
-            long[] membersToAddArray = convertToArray(mListMembersToAdd);
+            long[] membersToAddArray = convertToArray(mMembersToAdd.keySet());
 
-            // Create array of raw contact IDs for contacts to add to the group
-            long[] membersToRemoveArray = convertToArray(mListMembersToRemove);
+            // Create array of raw contact IDs for contacts to remove from the group
+            long[] membersToRemoveArray = mMembersToRemove.toArray();
 
             // Create the update intent (which includes the updated group name if necessary)
             saveIntent = ContactSaveService.createGroupUpdateIntent(activity, mGroupId,
@@ -744,7 +814,7 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
     }
 
     private boolean hasMembershipChange() {
-        return mListMembersToAdd.size() > 0 || mListMembersToRemove.size() > 0;
+        return mMembersToAdd.size() > 0 || mMembersToRemove.size() > 0;
     }
 
     /**
@@ -760,41 +830,120 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
         return groupNameFromTextView;
     }
 
-    private static long[] convertToArray(List<Member> listMembers) {
-        int size = listMembers.size();
-        long[] membersArray = new long[size];
-        for (int i = 0; i < size; i++) {
-            membersArray[i] = listMembers.get(i).getRawContactId();
+    private static long[] convertToArray(Collection<Long> rawContactIds) {
+        long[] membersArray = new long[rawContactIds.size()];
+        int i = 0;
+        for (long rawContactId : rawContactIds) {
+            membersArray[i++] = rawContactId;
         }
         return membersArray;
     }
 
-    private void addExistingMembers(List<Member> members) {
+    /**
+     * Rebuilds the positions of the members to display if the membership changed.
+     */
+    private void updateDisplayedMembers() {
+        if (!mDisplayDirty) {
+            return;
+        }
+        final int existingCount = mExistingMembers != null ? mExistingMembers.getCount() : 0;
+        if (mDisplayedPositions.length < existingCount) {
+            mDisplayedPositions = new int[existingCount];
+        }
+        int count = 0;
+        for (int i = 0; i < existingCount; i++) {
+            final long rawContactId = mExistingMembers.getRawContactId(i);
+            if (!mMembersToRemove.contains(rawContactId)
+                    && !mMembersToAdd.containsKey(rawContactId)) {
+                mDisplayedPositions[count++] = i;
+            }
+        }
+        mDisplayedExistingCount = count;
+        mDisplayedMembersToAdd.clear();
+        mDisplayedMembersToAdd.addAll(mMembersToAdd.values());
+        mDisplayDirty = false;
+    }
 
-        // Re-create the list to display
-        mListToDisplay.clear();
-        mListToDisplay.addAll(members);
-        mListToDisplay.addAll(mListMembersToAdd);
-        mListToDisplay.removeAll(mListMembersToRemove);
+    private int getDisplayedMemberCount() {
+        updateDisplayedMembers();
+        return mDisplayedExistingCount + mDisplayedMembersToAdd.size();
+    }
+
+    /**
+     * Returns the displayed member at {@code position}. Existing members whose page has not
+     * been loaded yet only have their IDs.
+     */
+    private Member getDisplayedMember(int position) {
+        updateDisplayedMembers();
+        if (position >= mDisplayedExistingCount) {
+            return mDisplayedMembersToAdd.get(position - mDisplayedExistingCount);
+        }
+        final int cursorPosition = mDisplayedPositions[position];
+        final Cursor cursor = mExistingMembers;
+        cursor.moveToPosition(cursorPosition);
+        return new Member(mExistingMembers.getRawContactId(cursorPosition),
+                cursor.getString(GroupEditorQuery.CONTACT_LOOKUP_KEY),
+                mExistingMembers.getContactId(cursorPosition),
+                cursor.getString(GroupEditorQuery.CONTACT_DISPLAY_NAME_PRIMARY),
+                cursor.getString(GroupEditorQuery.CONTACT_PHOTO_URI));
+    }
+
+    private long[] getDisplayedContactIds() {
+        final int count = getDisplayedMemberCount();
+        final long[] contactIds = new long[count];
+        for (int i = 0; i < mDisplayedExistingCount; i++) {
+            contactIds[i] = mExistingMembers.getContactId(mDisplayedPositions[i]);
+        }
+        for (int i = mDisplayedExistingCount; i < count; i++) {
+            contactIds[i] = mDisplayedMembersToAdd.get(i - mDisplayedExistingCount).getContactId();
+        }
+        return contactIds;
+    }
+
+    private void onMembersChanged() {
+        mDisplayDirty = true;
         mMemberListAdapter.notifyDataSetChanged();
+    }
 
+    private void setExistingMembers(GroupMemberPageCursor members) {
+        if (members != null && members != mExistingMembers) {
+            // The cursor unregisters the observer when the loader closes it.
+            members.registerDataSetObserver(mMemberPageObserver);
+        }
+        mExistingMembers = members;
+        mExistingRawContactIds.clear();
+        final int count = members != null ? members.getCount() : 0;
+        for (int i = 0; i < count; i++) {
+            mExistingRawContactIds.add(members.getRawContactId(i));
+        }
+        // Re-create the list to display
+        onMembersChanged();
 
         // Update the autocomplete adapter (if there is one) so these contacts don't get suggested
         if (mAutoCompleteAdapter != null) {
-            mAutoCompleteAdapter.updateExistingMembersList(members);
+            mAutoCompleteAdapter.updateExistingMembersList(getDisplayedContactIds());
         }
     }
 
+    /**
+     * Rebinds the existing members once the page of the cursor they are on has been loaded.
+     */
+    private final DataSetObserver mMemberPageObserver = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            mMemberListAdapter.notifyDataSetChanged();
+        }
+    };
+
     private void addMember(Member member) {
+        final long rawContactId = member.getRawContactId();
         // If the contact was just removed during this session, remove it from
         // the list of members to remove
-        if (mListMembersToRemove.contains(member)) {
-            mListMembersToRemove.remove(member);
-        } else {
-            mListMembersToAdd.add(member);
+        if (!mMembersToRemove.remove(rawContactId)
+                && !mExistingRawContactIds.contains(rawContactId)) {
+            mMembersToAdd.put(rawContactId, member);
         }
-        mListToDisplay.add(member);
-        mMemberListAdapter.notifyDataSetChanged();
+        onMembersChanged();
 
         // Update the autocomplete adapter so the contact doesn't get suggested again
         mAutoCompleteAdapter.addNewMember(member.getContactId());
@@ -803,17 +952,14 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
     private void removeMember(Member member) {
         // If the contact was just added during this session, remove it from the list of
         // members to add
-        if (mListMembersToAdd.contains(member)) {
-            mListMembersToAdd.remove(member);
-        } else {
+        if (mMembersToAdd.remove(member.getRawContactId()) == null) {
             // Otherwise this contact was already part of the existing list of contacts,
             // so we need to do a content provider deletion operation
-            mListMembersToRemove.add(member);
+            mMembersToRemove.add(member.getRawContactId());
         }
         // In either case, update the UI so the contact is no longer in the list of
         // members
-        mListToDisplay.remove(member);
-        mMemberListAdapter.notifyDataSetChanged();
+        onMembersChanged();
 
         // Update the autocomplete adapter so the contact can get suggested again
         mAutoCompleteAdapter.removeMember(member.getContactId());
@@ -856,28 +1002,15 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
 
         @Override
         public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-            List<Member> listExistingMembers = new ArrayList<Member>();
-            data.moveToPosition(-1);
-            while (data.moveToNext()) {
-                long contactId = data.getLong(GroupEditorQuery.CONTACT_ID);
-                long rawContactId = data.getLong(GroupEditorQuery.RAW_CONTACT_ID);
-                String lookupKey = data.getString(GroupEditorQuery.CONTACT_LOOKUP_KEY);
-                String displayName = data.getString(GroupEditorQuery.CONTACT_DISPLAY_NAME_PRIMARY);
-                String photoUri = data.getString(GroupEditorQuery.CONTACT_PHOTO_URI);
-                listExistingMembers.add(new Member(rawContactId, lookupKey, contactId,
-                        displayName, photoUri));
-            }
-
-            // Update the display list
-            addExistingMembers(listExistingMembers);
-
-            // No more updates
-            // TODO: move to a runnable
-            getLoaderManager().destroyLoader(LOADER_EXISTING_MEMBERS);
+            // Update the display list. The cursor stays loaded, it backs the list and its
+            // pages are read as the list is scrolled.
+            setExistingMembers((GroupMemberPageCursor) data);
         }
 
         @Override
-        public void onLoaderReset(Loader<Cursor> loader) {}
+        public void onLoaderReset(Loader<Cursor> loader) {
+            setExistingMembers(null);
+        }
     };
 
     /**
@@ -1061,12 +1194,12 @@ public class GroupEditorFragment extends Fragment implements SelectAccountDialog
 
         @Override
         public int getCount() {
-            return mListToDisplay.size();
+            return getDisplayedMemberCount();
         }
 
         @Override
         public Member getItem(int position) {
-            return mListToDisplay.get(position);
+            return getDisplayedMember(position);
         }
 
         @Override
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.contacts.group;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.contacts.util.LongHashSet;
+import com.android.contacts.util.NameNormalizer;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * In-memory prefix index over the names of the raw contacts of one account, used to suggest
+ * group members without querying the provider for every character typed.
+ *
+ * The index is loaded on first use. Afterwards, changes to raw contacts only mark it as
+ * stale, and the next lookup re-reads just the raw contacts whose version changed.
+ * All methods may be called from a background thread.
+ */
+final class SuggestedMemberIndex {
+    private static final String TAG = "SuggestedMemberIndex";
+
+    private static final String[] PROJECTION = new String[] {
+        RawContacts._ID,                        // 0
+        RawContacts.CONTACT_ID,                 // 1
+        RawContacts.VERSION,                    // 2
+        RawContacts.DISPLAY_NAME_PRIMARY,       // 3
+        RawContacts.DISPLAY_NAME_ALTERNATIVE,   // 4
+    };
+
+    private static final int RAW_CONTACT_ID_COLUMN_INDEX = 0;
+    private static final int CONTACT_ID_COLUMN_INDEX = 1;
+    private static final int VERSION_COLUMN_INDEX = 2;
+    private static final int DISPLAY_NAME_PRIMARY_COLUMN_INDEX = 3;
+    private static final int DISPLAY_NAME_ALTERNATIVE_COLUMN_INDEX = 4;
+
+    private static final String[] VERSION_PROJECTION = new String[] {
+        RawContacts._ID,
+        RawContacts.VERSION,
+    };
+
+    /** Number of raw contact IDs listed in each query for changed raw contacts. */
+    private static final int REFRESH_CHUNK_SIZE = 500;
+
+
+    /** A raw contact in the index. */
+    static final class Entry {
+        final long rawContactId;
+        long contactId;
+        int version;
+        String displayName;
+        String displayNameAlternative;
+        /** Position of the entry when sorted by display name. */
+        int rank;
+
+        Entry(long rawContactId) {
+            this.rawContactId = rawContactId;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+
+    private final HashMap<Long, Entry> mEntries = new HashMap<Long, Entry>();
+    // Normalized names and name words, sorted, and the entry each of them belongs to.
+    private String[] mKeys = new String[0];
+    private Entry[] mKeyEntries = new Entry[0];
+
+    private boolean mLoaded;
+    private boolean mKeysDirty;
+    private volatile boolean mChanged;
+    private boolean mObserverRegistered;
+    private boolean mClosed;
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mChanged = true;
+        }
+    };
+
+    SuggestedMemberIndex(ContentResolver resolver, String accountName, String accountType,
+            String dataSet) {
+        mResolver = resolver;
+        String selection = RawContacts.ACCOUNT_NAME + "=? AND " +
+                RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.DELETED + "!= 1";
+        if (dataSet == null) {
+            mSelection = selection + " AND " + RawContacts.DATA_SET + " IS NULL";
+            mSelectionArgs = new String[] {accountName, accountType};
+        } else {
+            mSelection = selection + " AND " + RawContacts.DATA_SET + "=?";
+            mSelectionArgs = new String[] {accountName, accountType, dataSet};
+        }
+    }
+
+    /**
+     * Loads the index, or reads the raw contacts that changed since it was last used. Called
+     * by {@link #query}, but may be called beforehand so that the query itself does not hit
+     * the provider.
+     */
+    synchronized void update() {
+        if (mClosed) {
+            return;
+        }
+        if (!mLoaded) {
+            if (!mObserverRegistered) {
+                mResolver.registerContentObserver(RawContacts.CONTENT_URI, true, mObserver);
+                mObserverRegistered = true;
+            }
+            mChanged = false;
+            load();
+            mLoaded = true;
+        } else if (mChanged) {
+            mChanged = false;
+            refresh();
+        }
+        if (mKeysDirty) {
+            buildKeys();
+            mKeysDirty = false;
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} raw contacts whose name, or a word of it, starts with
+     * {@code prefix}, in display name order.
+     *
+     * @param excludedContactIds contacts to leave out
+     */
+    synchronized List<Entry> query(CharSequence prefix, int limit,
+            LongHashSet excludedContactIds) {
+        update();
+        final String key = NameNormalizer.normalize(prefix.toString());
+        final Entry[] best = new Entry[limit];
+        int count = 0;
+        for (int i = lowerBound(key); i < mKeys.length && mKeys[i].startsWith(key); i++) {
+            final Entry entry = mKeyEntries[i];
+            if (count == limit && entry.rank >= best[count - 1].rank) {
+                continue;
+            }
+            if (excludedContactIds.contains(entry.contactId) || contains(best, count, entry)) {
+                continue;
+            }
+            // Insert in rank order, dropping the last entry if the array is full.
+            int j = count < limit ? count++ : count - 1;
+            while (j > 0 && best[j - 1].rank > entry.rank) {
+                best[j] = best[j - 1];
+                j--;
+            }
+            best[j] = entry;
+        }
+        return Arrays.asList(best).subList(0, count);
+    }
+
+    /**
+     * Stops watching for changes and releases the index. Queries return nothing afterwards.
+     */
+    synchronized void close() {
+        if (mObserverRegistered) {
+            mResolver.unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mClosed = true;
+        mEntries.clear();
+        mKeys = new String[0];
+        mKeyEntries = new Entry[0];
+    }
+
+    private void load() {
+        final long start = SystemClock.elapsedRealtime();
+        mEntries.clear();
+        readEntries(mSelection, mSelectionArgs);
+        mKeysDirty = true;
+        Log.d(TAG, "Loaded " + mEntries.size() + " raw contacts in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    /**
+     * Re-reads the raw contacts that were added or changed since the index was loaded, and
+     * drops the ones that are gone.
+     */
+    private void refresh() {
+        final Cursor cursor = mResolver.query(RawContacts.CONTENT_URI, VERSION_PROJECTION,
+                mSelection, mSelectionArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        final LongHashSet present = new LongHashSet(cursor.getCount());
+        final ArrayList<Long> changed = new ArrayList<Long>();
+        try {
+            while (cursor.moveToNext()) {
+                final long rawContactId = cursor.getLong(0);
+                present.add(rawContactId);
+                final Entry entry = mEntries.get(rawContactId);
+                if (entry == null || entry.version != cursor.getInt(1)) {
+                    changed.add(rawContactId);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int removed = 0;
+        final Iterator<Long> it = mEntries.keySet().iterator();
+        while (it.hasNext()) {
+            if (!present.contains(it.next())) {
+                it.remove();
+                removed++;
+            }
+        }
+        for (int start = 0; start < changed.size(); start += REFRESH_CHUNK_SIZE) {
+            final int end = Math.min(start + REFRESH_CHUNK_SIZE, changed.size());
+            readEntries(mSelection + " AND " + RawContacts._ID + " IN ("
+                    + TextUtils.join(",", changed.subList(start, end)) + ")", mSelectionArgs);
+        }
+        if (removed > 0 || !changed.isEmpty()) {
+            mKeysDirty = true;
+        }
+    }
+
+    private void readEntries(String selection, String[] selectionArgs) {
+        final Cursor cursor = mResolver.query(RawContacts.CONTENT_URI, PROJECTION, selection,
+                selectionArgs, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final long rawContactId = cursor.getLong(RAW_CONTACT_ID_COLUMN_INDEX);
+                Entry entry = mEntries.get(rawContactId);
+                if (entry == null) {
+                    entry = new Entry(rawContactId);
+                    mEntries.put(rawContactId, entry);
+                }
+                entry.contactId = cursor.getLong(CONTACT_ID_COLUMN_INDEX);
+                entry.version = cursor.getInt(VERSION_COLUMN_INDEX);
+                entry.displayName = cursor.getString(DISPLAY_NAME_PRIMARY_COLUMN_INDEX);
+                entry.displayNameAlternative =
+                        cursor.getString(DISPLAY_NAME_ALTERNATIVE_COLUMN_INDEX);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void buildKeys() {
+        final ArrayList<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        final Collator collator = Collator.getInstance();
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return collator.compare(lhs.displayName != null ? lhs.displayName : "",
+                        rhs.displayName != null ? rhs.displayName : "");
+            }
+        });
+
+        final ArrayList<Key> keys = new ArrayList<Key>(entries.size() * 3);
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            entry.rank = i;
+            addKeys(keys, entry, entry.displayName, true);
+            addKeys(keys, entry, entry.displayNameAlternative, false);
+        }
+        Collections.sort(keys);
+
+        mKeys = new String[keys.size()];
+        mKeyEntries = new Entry[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            mKeys[i] = keys.get(i).key;
+            mKeyEntries[i] = keys.get(i).entry;
+        }
+    }
+
+    /**
+     * Adds the whole name and, if {@code words} is set, each of its following words.
+     */
+    private static void addKeys(List<Key> keys, Entry entry, String name, boolean words) {
+        if (TextUtils.isEmpty(name)) {
+            return;
+        }
+        final String normalized = NameNormalizer.normalize(name);
+        keys.add(new Key(normalized, entry));
+        if (!words) {
+            return;
+        }
+        final String[] tokens = NameNormalizer.splitWords(normalized);
+        for (int i = 1; i < tokens.length; i++) {
+            if (!tokens[i].isEmpty()) {
+                keys.add(new Key(tokens[i], entry));
+            }
+        }
+    }
+
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = mKeys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mKeys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static boolean contains(Entry[] entries, int count, Entry entry) {
+        for (int i = 0; i < count; i++) {
+            if (entries[i] == entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Key implements Comparable<Key> {
+        final String key;
+        final Entry entry;
+
+        Key(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(Key another) {
+            return key.compareTo(another.key);
+        }
+    }
+}
@@ -39,6 +39,7 @@ import android.widget.TextView;
 import com.android.contacts.R;
 import com.android.contacts.common.ContactPhotoManager;
 import com.android.contacts.group.SuggestedMemberListAdapter.SuggestedMember;
+import com.android.contacts.util.LongHashSet;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -51,15 +52,7 @@ import java.util.List;
  */
 public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
 
-    private static final String[] PROJECTION_FILTERED_MEMBERS = new String[] {
-        RawContacts._ID,                        // 0
-        RawContacts.CONTACT_ID,                 // 1
-        RawContacts.DISPLAY_NAME_PRIMARY        // 2
-    };
-
     private static final int RAW_CONTACT_ID_COLUMN_INDEX = 0;
-    private static final int CONTACT_ID_COLUMN_INDEX = 1;
-    private static final int DISPLAY_NAME_PRIMARY_COLUMN_INDEX = 2;
 
     private static final String[] PROJECTION_MEMBER_DATA = new String[] {
         RawContacts._ID,                        // 0
@@ -81,9 +74,11 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
     private String mAccountName;
     private String mDataSet;
 
-    // TODO: Make this a Map for better performance when we check if a new contact is in the list
-    // or not
-    private final List<Long> mExistingMemberContactIds = new ArrayList<Long>();
+    // Built on first use, for the account set at that time.
+    private SuggestedMemberIndex mIndex;
+
+    // Accessed from the filter thread too, guarded by itself.
+    private final LongHashSet mExistingMemberContactIds = new LongHashSet();
 
     private static final int SUGGESTIONS_LIMIT = 5;
 
@@ -108,29 +103,52 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
         mContentResolver = resolver;
     }
 
-    public void updateExistingMembersList(List<GroupEditorFragment.Member> list) {
-        mExistingMemberContactIds.clear();
-        for (GroupEditorFragment.Member member : list) {
-            mExistingMemberContactIds.add(member.getContactId());
+    public void updateExistingMembersList(long[] contactIds) {
+        synchronized (mExistingMemberContactIds) {
+            mExistingMemberContactIds.clear();
+            for (long contactId : contactIds) {
+                mExistingMemberContactIds.add(contactId);
+            }
         }
     }
 
     public void addNewMember(long contactId) {
-        if (!containsMember(contactId)) {
+        synchronized (mExistingMemberContactIds) {
             mExistingMemberContactIds.add(contactId);
         }
     }
 
     public boolean containsMember(long contactId) {
-        return mExistingMemberContactIds.contains(contactId);
+        synchronized (mExistingMemberContactIds) {
+            return mExistingMemberContactIds.contains(contactId);
+        }
     }
 
     public void removeMember(long contactId) {
-        if (mExistingMemberContactIds.contains(contactId)) {
+        synchronized (mExistingMemberContactIds) {
             mExistingMemberContactIds.remove(contactId);
         }
     }
 
+    /**
+     * Releases the name index and stops watching for contact changes. Must be called once the
+     * adapter is no longer used.
+     */
+    public synchronized void close() {
+        if (mIndex != null) {
+            mIndex.close();
+            mIndex = null;
+        }
+    }
+
+    private synchronized SuggestedMemberIndex getIndex() {
+        if (mIndex == null && mContentResolver != null) {
+            mIndex = new SuggestedMemberIndex(mContentResolver, mAccountName, mAccountType,
+                    mDataSet);
+        }
+        return mIndex;
+    }
+
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         View result = convertView;
@@ -169,8 +187,8 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
     }
 
     /**
-     * This filter queries for raw contacts that match the given account name and account type,
-     * as well as the search query.
+     * This filter looks up raw contacts that match the given account name and account type,
+     * as well as the search query, and queries the data of the best matches.
      */
     public class SuggestedMemberFilter extends Filter {
 
@@ -181,6 +199,11 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
                 return results;
             }
 
+            final SuggestedMemberIndex index = getIndex();
+            if (index == null) {
+                return results;
+            }
+
             // Create a list to store the suggested contacts (which will be alphabetically ordered),
             // but also keep a map of raw contact IDs to {@link SuggestedMember}s to make it easier
             // to add supplementary data to the contact (photo, phone, email) to the members based
@@ -188,54 +211,20 @@ public class SuggestedMemberListAdapter extends ArrayAdapter<SuggestedMember> {
             List<SuggestedMember> suggestionsList = new ArrayList<SuggestedMember>();
             HashMap<Long, SuggestedMember> suggestionsMap = new HashMap<Long, SuggestedMember>();
 
-            // First query for all the raw contacts that match the given search query
-            // and have the same account name and type as specified in this adapter
-            String searchQuery = prefix.toString() + "%";
-            String accountClause = RawContacts.ACCOUNT_NAME + "=? AND " +
-                    RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.DELETED + "!= 1";
-            String[] args;
-            if (mDataSet == null) {
-                accountClause += " AND " + RawContacts.DATA_SET + " IS NULL";
-                args = new String[] {mAccountName, mAccountType, searchQuery, searchQuery};
-            } else {
-                accountClause += " AND " + RawContacts.DATA_SET + "=?";
-                args = new String[] {
-                        mAccountName, mAccountType, mDataSet, searchQuery, searchQuery
-                };
-            }
-
-            Cursor cursor = mContentResolver.query(
-                    RawContacts.CONTENT_URI, PROJECTION_FILTERED_MEMBERS,
-                    accountClause + " AND (" +
-                    RawContacts.DISPLAY_NAME_PRIMARY + " LIKE ? OR " +
-                    RawContacts.DISPLAY_NAME_ALTERNATIVE + " LIKE ? )",
-                    args, RawContacts.DISPLAY_NAME_PRIMARY + " COLLATE LOCALIZED ASC");
-
-            if (cursor == null) {
-                return results;
+            // Look up the raw contacts of the account whose name matches the search query in
+            // the in-memory index, leaving out contacts that have already been added to this
+            // group.
+            index.update();
+            final List<SuggestedMemberIndex.Entry> entries;
+            synchronized (mExistingMemberContactIds) {
+                entries = index.query(prefix, SUGGESTIONS_LIMIT, mExistingMemberContactIds);
             }
-
-            // Read back the results from the cursor and filter out existing group members.
-            // For valid suggestions, add them to the hash map of suggested members.
-            try {
-                cursor.moveToPosition(-1);
-                while (cursor.moveToNext() && suggestionsMap.keySet().size() < SUGGESTIONS_LIMIT) {
-                    long rawContactId = cursor.getLong(RAW_CONTACT_ID_COLUMN_INDEX);
-                    long contactId = cursor.getLong(CONTACT_ID_COLUMN_INDEX);
-                    // Filter out contacts that have already been added to this group
-                    if (mExistingMemberContactIds.contains(contactId)) {
-                        continue;
-                    }
-                    // Otherwise, add the contact as a suggested new group member
-                    String displayName = cursor.getString(DISPLAY_NAME_PRIMARY_COLUMN_INDEX);
-                    SuggestedMember member = new SuggestedMember(rawContactId, displayName,
-                            contactId);
-                    // Store the member in the list of suggestions and add it to the hash map too.
-                    suggestionsList.add(member);
-                    suggestionsMap.put(rawContactId, member);
-                }
-            } finally {
-                cursor.close();
+            for (SuggestedMemberIndex.Entry entry : entries) {
+                SuggestedMember member = new SuggestedMember(entry.rawContactId,
+                        entry.displayName, entry.contactId);
+                // Store the member in the list of suggestions and add it to the hash map too.
+                suggestionsList.add(member);
+                suggestionsMap.put(entry.rawContactId, member);
             }
 
             int numSuggestions = suggestionsMap.keySet().size();
@@ -31,5 +31,6 @@ public class CallMethodStatusReceiver extends BroadcastReceiver {
     public void onReceive(Context context, Intent intent) {
         if (DEBUG) Log.d(TAG, "plugin status changed");
         ContactsDataSubscription.get(context).refresh();
+        InCallMetricsHelper.onPluginsChanged(context);
     }
 }
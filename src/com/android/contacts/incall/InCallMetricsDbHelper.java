@@ -22,10 +22,14 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
 import android.util.Log;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class InCallMetricsDbHelper extends SQLiteOpenHelper {
     private static final String TAG = InCallMetricsDbHelper.class.getSimpleName();
@@ -33,21 +37,31 @@ public class InCallMetricsDbHelper extends SQLiteOpenHelper {
 
     private static InCallMetricsDbHelper mInstance = null;
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "contacts_incall_metrics.db";
 
     private final Context mContext;
 
-    // db query select statements
+    // Increments not written to the database yet, in the order they were first made, so that
+    // a manual merge recorded before an auto merge is still written first.
+    private final Object mPendingLock = new Object();
+    private LinkedHashMap<PendingKey, int[]> mPending = new LinkedHashMap<PendingKey, int[]>();
+    private final Object mFlushLock = new Object();
+    // diagnostics, only written under mFlushLock
+    private volatile long mFlushCount;
+    private volatile long mWrittenEntryCount;
+
+    // db query select statements, each matches the unique key of its table
     private static final String SELECT_NUDGE_ID_AND_ACCEPT_TIME =
             InAppColumns.NUDGE_ID + "==? AND " + InAppColumns.EVENT_ACCEPTANCE_TIME + " ==? ";
-    private static final String SELECT_PROVIDER_AND_EVENT =
-            UserActionsColumns.PROVIDER_NAME + "==? AND " + UserActionsColumns.EVENT_NAME + " ==?";
-    private static final String SELECT_PROVIDER_AND_EVENT_AND_RAWID =
-            UserActionsColumns.PROVIDER_NAME + "==? AND " + UserActionsColumns.EVENT_NAME +
-                    " ==? AND " + UserActionsColumns.RAW_ID + " ==?";
+    private static final String SELECT_EVENT_AND_RAWID_AND_PROVIDER =
+            UserActionsColumns.EVENT_NAME + " ==? AND " + UserActionsColumns.RAW_ID + " ==? AND "
+            + UserActionsColumns.PROVIDER_NAME + " ==?";
     private static final String SELECT_EVENT_AND_RAWID = UserActionsColumns.EVENT_NAME + " ==? AND "
             + UserActionsColumns.RAW_ID + " ==?";
+    // both tables use the same ID column
+    private static final String SELECT_AFTER_ID = InAppColumns._ID + " >?";
+    private static final String SELECT_UP_TO_ID = InAppColumns._ID + " <=?";
 
     public interface Tables {
         // stores events in the INAPP_ACTIONS category
@@ -99,6 +113,7 @@ public class InCallMetricsDbHelper extends SQLiteOpenHelper {
     /**
      * If there's an existing entry that matches the NUDGE_ID and the EVENT_ACCEPTANCE_TIME
      * is not set, increment the count stored "colName" column. Otherwise, create a new entry.
+     * The increment is buffered in memory until the next {@link #flush}.
      *
      * @param  provider  component name of the InCall provider
      * @param  event     metric event
@@ -108,39 +123,39 @@ public class InCallMetricsDbHelper extends SQLiteOpenHelper {
      */
     public void incrementInAppParam(String provider, String event, String cat, String nudgeId,
             String colName) {
-        // find entries that match nudge_id, and timestamp 0 to increment count
+        incrementInAppParam(provider, event, cat, nudgeId, colName, 1);
+    }
+
+    /**
+     * Same as {@link #incrementInAppParam(String, String, String, String, String)}, for
+     * "count" identical events at once.
+     */
+    public void incrementInAppParam(String provider, String event, String cat, String nudgeId,
+            String colName, int count) {
         if (nudgeId == null) {
             nudgeId = InCallMetricsHelper.NUDGE_ID_INVALID;
         }
-        ContentValues entry = new ContentValues();
-        entry.put(InAppColumns.EVENT_NAME, event);
-        entry.put(InAppColumns.CATEGORY, cat);
-        entry.put(InAppColumns.NUDGE_ID, nudgeId);
-        entry.put(InAppColumns.PROVIDER_NAME, provider);
-        String[] selectionArgs = new String[] {nudgeId, String.valueOf(0)};
-        SQLiteDatabase db = getWritableDatabase();
-        try (Cursor queryCursor = db.query(
-                Tables.INAPP_TABLE,
-                INAPP_PROJECTION,
-                SELECT_NUDGE_ID_AND_ACCEPT_TIME,
-                selectionArgs,
-                null,
-                null,
-                null)) {
-            if (queryCursor != null && queryCursor.moveToFirst()) {
-                // increment existing entry
-                entry.put(colName, queryCursor.getInt(queryCursor.getColumnIndex(colName)) + 1);
-                db.update(Tables.INAPP_TABLE, entry, SELECT_NUDGE_ID_AND_ACCEPT_TIME,
-                        selectionArgs);
-            } else {
-                // no entry where acceptance time is not set
-                entry.put(colName, 1);
-                db.insert(Tables.INAPP_TABLE, null, entry);
-            }
-        } catch (RuntimeException e) {
-            Log.e(TAG, "incrementInAppParam exception: ", e);
-        }
+        addPending(new PendingKey(Tables.INAPP_TABLE, provider, null, event, cat, nudgeId,
+                colName), count);
+    }
 
+    /**
+     * Write a buffered increment. Exceptions are left to {@link #flush}, which keeps the
+     * increments if its transaction fails.
+     */
+    private void writeInAppIncrement(SQLiteDatabase db, PendingKey key, int count) {
+        // make sure there is an entry for nudge_id with timestamp 0, then increment its count
+        db.execSQL("INSERT OR IGNORE INTO " + Tables.INAPP_TABLE + " (" +
+                InAppColumns.NUDGE_ID + ", " +
+                InAppColumns.EVENT_ACCEPTANCE_TIME + ") VALUES (?, 0)",
+                new Object[] {key.nudgeId});
+        db.execSQL("UPDATE " + Tables.INAPP_TABLE + " SET " +
+                key.column + " = " + key.column + " + ?, " +
+                InAppColumns.EVENT_NAME + " = ?, " +
+                InAppColumns.CATEGORY + " = ?, " +
+                InAppColumns.PROVIDER_NAME + " = ? WHERE " +
+                SELECT_NUDGE_ID_AND_ACCEPT_TIME,
+                new Object[] {count, key.event, key.category, key.provider, key.nudgeId, 0});
     }
 
     /**
@@ -161,38 +176,36 @@ public class InCallMetricsDbHelper extends SQLiteOpenHelper {
             String nudgeId) {
         // find entries that match nudge_id, and timestamp 0
         // if all matche entries have timestamp set, create a new entry
+        // pending impressions belong to the entry that is about to be closed
+        flush();
         if (nudgeId == null) {
             nudgeId = InCallMetricsHelper.NUDGE_ID_INVALID;
         }
-        String[] selectionArgs = new String[] {nudgeId, String.valueOf(0)};
         SQLiteDatabase db = getWritableDatabase();
-        try (
-            Cursor queryCursor = db.query(
-                    Tables.INAPP_TABLE,
-                    INAPP_PROJECTION,
-                    SELECT_NUDGE_ID_AND_ACCEPT_TIME,
-                    selectionArgs,
-                    null,
-                    null,
-                    null)) {
-
+        db.beginTransaction();
+        try {
+            // a new entry counts the acceptance itself, an existing one keeps its count
+            db.execSQL("INSERT OR IGNORE INTO " + Tables.INAPP_TABLE + " (" +
+                    InAppColumns.NUDGE_ID + ", " +
+                    InAppColumns.EVENT_ACCEPTANCE_TIME + ", " +
+                    InAppColumns.COUNT + ") VALUES (?, 0, 1)",
+                    new Object[] {nudgeId});
             ContentValues entry = new ContentValues();
             entry.put(InAppColumns.EVENT_NAME, event);
             entry.put(InAppColumns.CATEGORY, cat);
-            entry.put(InAppColumns.NUDGE_ID, nudgeId);
             entry.put(InAppColumns.PROVIDER_NAME, provider);
             entry.put(InAppColumns.EVENT_ACCEPTANCE, accept);
             entry.put(InAppColumns.EVENT_ACCEPTANCE_TIME, System.currentTimeMillis());
-            if (queryCursor != null && queryCursor.moveToFirst()) {
-                db.update(Tables.INAPP_TABLE, entry, SELECT_NUDGE_ID_AND_ACCEPT_TIME,
-                        selectionArgs);
-            } else {
-                entry.put(InAppColumns.COUNT, 1);
-                db.insert(Tables.INAPP_TABLE, null, entry);
+            db.update(Tables.INAPP_TABLE, entry, SELECT_NUDGE_ID_AND_ACCEPT_TIME,
+                    new String[] {nudgeId, String.valueOf(0)});
+            db.setTransactionSuccessful();
+            synchronized (mFlushLock) {
+                mWrittenEntryCount++;
             }
-            queryCursor.close();
         } catch (RuntimeException e) {
             Log.e(TAG, "setInAppAcceptance exception: ", e);
+        } finally {
+            db.endTransaction();
         }
     }
 
@@ -200,6 +213,7 @@ public class InCallMetricsDbHelper extends SQLiteOpenHelper {
      * Tables.USER_ACTIONS_TABLE stores auto/manual merge counts and invite counts.
      * If there's an existing entry that matches the PROVIDER_NAME and the EVENT_NAME,
      * increment the count stored in the "colName" column. Otherwise, create a new entry.
+     * The increment is buffered in memory until the next {@link #flush}.
      *
      * @param  provider component name of the InCall provider
      * @param  rawIds   raw Ids of the contacts that are merged (auto or manual)
@@ -209,107 +223,212 @@ public class InCallMetricsDbHelper extends SQLiteOpenHelper {
      */
     public void incrementUserActionsParam(String provider, String rawIds, String event, String
             cat, String colName) {
-        // query for event type, update, if not found insert
-        ContentValues entry = new ContentValues();
-        entry.put(UserActionsColumns.CATEGORY, cat);
-        entry.put(UserActionsColumns.PROVIDER_NAME, provider);
-        entry.put(UserActionsColumns.RAW_ID, rawIds);
-
-        String selectionString;
-        String[] selectionArgs = new String[] {provider, event};
-        SQLiteDatabase db = getWritableDatabase();
+        incrementUserActionsParam(provider, rawIds, event, cat, colName, 1);
+    }
+
+    /**
+     * Same as {@link #incrementUserActionsParam(String, String, String, String, String)}, for
+     * "count" identical events at once.
+     */
+    public void incrementUserActionsParam(String provider, String rawIds, String event, String
+            cat, String colName, int count) {
+        addPending(new PendingKey(Tables.USER_ACTIONS_TABLE, provider, rawIds, event, cat, null,
+                colName), count);
+    }
+
+    /**
+     * Same as {@link #writeInAppIncrement}, for Tables.USER_ACTIONS_TABLE.
+     */
+    private void writeUserActionsIncrement(SQLiteDatabase db, PendingKey key, int count) {
+        final String rawIds = key.rawIds != null ? key.rawIds : "";
+        final String provider = key.provider != null ? key.provider : "";
+        final String event = key.event;
         boolean isMergeEvent = event.equals(InCallMetricsHelper.Events.CONTACTS_AUTO_MERGED.value())
                 || event.equals(InCallMetricsHelper.Events.CONTACTS_MANUAL_MERGED.value());
         if (event.equals(InCallMetricsHelper.Events.CONTACTS_AUTO_MERGED.value())) {
             // contacts provider fires the auto aggregation intent even after a manual merge,
             // need to check if there's an existing manual merge entry first
-            try (Cursor queryCursor = db.query(
-                        Tables.USER_ACTIONS_TABLE,
-                        USER_ACTIONS_PROJECTION,
-                        SELECT_EVENT_AND_RAWID,
-                        new String[]
-                                {InCallMetricsHelper.Events.CONTACTS_MANUAL_MERGED.value(), rawIds},
-                        null,
-                        null,
-                        null)) {
-                if (queryCursor != null && queryCursor.moveToFirst()) {
-                    // there's already a manual entry, return
-                    return;
-                }
-            } catch (RuntimeException e) {
-                Log.e(TAG, "incrementUserActionsParam query existing entry exception: ", e);
+            if (DatabaseUtils.queryNumEntries(db, Tables.USER_ACTIONS_TABLE,
+                    SELECT_EVENT_AND_RAWID, new String[] {
+                            InCallMetricsHelper.Events.CONTACTS_MANUAL_MERGED.value(),
+                            rawIds}) > 0) {
+                // there's already a manual entry, return
+                return;
             }
         }
-        entry.put(UserActionsColumns.EVENT_NAME, event);
-        if (isMergeEvent) {
-            selectionString = SELECT_PROVIDER_AND_EVENT_AND_RAWID;
-            selectionArgs = new String[] {provider, event, rawIds};
-        } else {
-            selectionString = SELECT_PROVIDER_AND_EVENT;
-            selectionArgs = new String[] {provider, event};
+        // merges are only counted once, other events add to the existing entry
+        db.execSQL("INSERT OR IGNORE INTO " + Tables.USER_ACTIONS_TABLE + " (" +
+                UserActionsColumns.CATEGORY + ", " +
+                UserActionsColumns.EVENT_NAME + ", " +
+                UserActionsColumns.PROVIDER_NAME + ", " +
+                UserActionsColumns.RAW_ID + ", " +
+                key.column + ") VALUES (?, ?, ?, ?, ?)",
+                new Object[] {key.category, event, provider, rawIds, isMergeEvent ? 1 : 0});
+        if (!isMergeEvent) {
+            db.execSQL("UPDATE " + Tables.USER_ACTIONS_TABLE + " SET " +
+                    key.column + " = " + key.column + " + ? WHERE " +
+                    SELECT_EVENT_AND_RAWID_AND_PROVIDER,
+                    new Object[] {count, event, rawIds, provider});
+        }
+    }
+
+    /**
+     * Return up to "limit" entries from the table storing events from the corresponding
+     * category, in the order they were created, starting after the entry with ID "afterId".
+     * Buffered increments are not included, call {@link #flush} first.
+     *
+     * @param  cat      metric category
+     * @param  afterId  ID of the last entry already read, or -1 to start with the first one
+     * @param  limit    maximum number of entries to return
+     * @return List of ContentValues in the respective table
+     */
+    public List<ContentValues> getEntries(InCallMetricsHelper.Categories cat, long afterId,
+            int limit) {
+        String table = getTable(cat);
+        if (table == null) {
+            return new ArrayList<ContentValues>(0);
         }
+        String[] projection = Tables.INAPP_TABLE.equals(table) ?
+                INAPP_PROJECTION : USER_ACTIONS_PROJECTION;
+        List<ContentValues> list = new ArrayList<ContentValues>(limit);
+        SQLiteDatabase db = getWritableDatabase();
         try (Cursor cursor = db.query(
-                    Tables.USER_ACTIONS_TABLE,
-                    USER_ACTIONS_PROJECTION,
-                    selectionString,
-                    selectionArgs,
-                    null,
-                    null,
-                    null)) {
-            if (cursor != null && cursor.moveToFirst()) {
-                // increment count for an existing entry
-                if (!isMergeEvent) {
-                    // do not update existing merge count entries
-                    entry.put(colName,
-                            cursor.getInt(cursor.getColumnIndex(colName)) + 1);
-                    db.update(Tables.USER_ACTIONS_TABLE, entry, selectionString, selectionArgs);
+                table,
+                projection,
+                SELECT_AFTER_ID,
+                new String[] {String.valueOf(afterId)},
+                null,
+                null,
+                InAppColumns._ID,
+                String.valueOf(limit))) {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    ContentValues entry = new ContentValues(projection.length);
+                    DatabaseUtils.cursorRowToContentValues(cursor, entry);
+                    list.add(entry);
                 }
-            } else {
-                // no existing entry, create a new one
-                entry.put(colName, 1);
-                db.insert(Tables.USER_ACTIONS_TABLE, null, entry);
             }
         } catch (RuntimeException e) {
-            Log.e(TAG, "incrementUserActionsParam query and update exception: ", e);
+            Log.e(TAG, "getEntries exception: ", e);
         }
+        return list;
     }
 
     /**
-     * Return all entries in the table storing events from the corresponding category
+     * Delete the entries of the corresponding category up to and including the entry with ID
+     * "lastId", once they have been sent.
      *
-     * @param  cat    metric category
-     * @param  clear  if the database table should be cleared afterwards
-     * @return List of ContentValues in the respective table
+     * @param  cat     metric category
+     * @param  lastId  ID of the last entry to delete
      */
-    public List<ContentValues> getAllEntries(InCallMetricsHelper.Categories cat, boolean clear) {
-        List<ContentValues> list = new LinkedList<ContentValues>();
-        String table = "";
+    public void deleteEntries(InCallMetricsHelper.Categories cat, long lastId) {
+        String table = getTable(cat);
+        if (table == null || DEBUG) {
+            return;
+        }
+        try {
+            getWritableDatabase().delete(table, SELECT_UP_TO_ID,
+                    new String[] {String.valueOf(lastId)});
+        } catch (RuntimeException e) {
+            Log.e(TAG, "deleteEntries exception: ", e);
+        }
+    }
+
+    private static String getTable(InCallMetricsHelper.Categories cat) {
         switch (cat) {
             case USER_ACTIONS:
-                table = Tables.USER_ACTIONS_TABLE;
-                break;
+                return Tables.USER_ACTIONS_TABLE;
             case INAPP_NUDGES:
-                table = Tables.INAPP_TABLE;
-                break;
+                return Tables.INAPP_TABLE;
             default:
-                return list;
+                return null;
         }
-        SQLiteDatabase db = getWritableDatabase();
-        try (Cursor cursor = db.rawQuery("SELECT * FROM " + table, null)) {
-            if (cursor != null && cursor.moveToFirst()) {
-                do {
-                    ContentValues entry = new ContentValues();
-                    DatabaseUtils.cursorRowToContentValues(cursor, entry);
-                    list.add(entry);
-                } while (cursor.moveToNext());
+    }
+
+    /**
+     * Write all buffered increments to the database in a single transaction. If the
+     * transaction fails, the increments are kept for the next flush.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            final LinkedHashMap<PendingKey, int[]> pending;
+            synchronized (mPendingLock) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                pending = mPending;
+                mPending = new LinkedHashMap<PendingKey, int[]>();
             }
-            if (!DEBUG && clear) {
-                db.delete(table, null, null);
+            boolean written = false;
+            try {
+                SQLiteDatabase db = getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (Map.Entry<PendingKey, int[]> entry : pending.entrySet()) {
+                        PendingKey key = entry.getKey();
+                        if (Tables.INAPP_TABLE.equals(key.table)) {
+                            writeInAppIncrement(db, key, entry.getValue()[0]);
+                        } else {
+                            writeUserActionsIncrement(db, key, entry.getValue()[0]);
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                    written = true;
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "flush exception: ", e);
+            }
+            if (written) {
+                mFlushCount++;
+                mWrittenEntryCount += pending.size();
+            }
+            if (!written) {
+                synchronized (mPendingLock) {
+                    // put the unwritten increments back in front of the ones made meanwhile
+                    for (Map.Entry<PendingKey, int[]> entry : mPending.entrySet()) {
+                        int[] count = pending.get(entry.getKey());
+                        if (count != null) {
+                            count[0] += entry.getValue()[0];
+                        } else {
+                            pending.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    mPending = pending;
+                }
+            }
+            if (DEBUG) {
+                Log.d(TAG, "flush: " + pending.size() + " entries, written: " + written);
+            }
+        }
+    }
+
+    /**
+     * Number of transactions {@link #flush} has committed, for diagnostics.
+     */
+    public long getFlushCount() {
+        return mFlushCount;
+    }
+
+    /**
+     * Number of entries written, for diagnostics: the buffered entries {@link #flush} has
+     * written plus the acceptances {@link #setInAppAcceptance} has recorded. Each one is an
+     * insert or an update of a single row.
+     */
+    public long getWrittenEntryCount() {
+        return mWrittenEntryCount;
+    }
+
+    private void addPending(PendingKey key, int count) {
+        synchronized (mPendingLock) {
+            int[] pending = mPending.get(key);
+            if (pending == null) {
+                mPending.put(key, new int[] {count});
+            } else {
+                pending[0] += count;
             }
-        } catch (RuntimeException e) {
-            Log.e(TAG, "getAllEntries exception: ", e);
         }
-        return list;
     }
 
     @Override
@@ -321,10 +440,12 @@ public class InCallMetricsDbHelper extends SQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (oldVersion == 0) {
             Log.e(TAG, "Malformed database version..recreating database");
+            setupTables(db);
+            return;
         }
 
-        if (oldVersion < newVersion) {
-            setupTables(db);
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
         }
     }
 
@@ -353,29 +474,98 @@ public class InCallMetricsDbHelper extends SQLiteOpenHelper {
     private void setupTables(SQLiteDatabase db) {
         dropTables(db);
         try {
-            db.execSQL("CREATE TABLE " + Tables.INAPP_TABLE + " (" +
-                    InAppColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    InAppColumns.CATEGORY + " TEXT, " +
-                    InAppColumns.EVENT_NAME + " TEXT, " +
-                    InAppColumns.COUNT + " INTEGER DEFAULT 0, " +
-                    InAppColumns.NUDGE_ID + " TEXT, " +
-                    InAppColumns.EVENT_ACCEPTANCE + " INTEGER DEFAULT -1, " +
-                    InAppColumns.EVENT_ACCEPTANCE_TIME + " INTEGER DEFAULT 0, " +
-                    InAppColumns.PROVIDER_NAME + " TEXT" +
-                    ");");
-            db.execSQL("CREATE TABLE " + Tables.USER_ACTIONS_TABLE + " (" +
-                    UserActionsColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    UserActionsColumns.CATEGORY + " TEXT, " +
-                    UserActionsColumns.EVENT_NAME + " TEXT, " +
-                    UserActionsColumns.COUNT + " INTEGER DEFAULT 0, " +
-                    UserActionsColumns.PROVIDER_NAME + " TEXT, " +
-                    UserActionsColumns.RAW_ID + " INTEGER DEFAULT 0" +
-                    ");");
+            createTables(db);
         } catch (RuntimeException e) {
             Log.e(TAG, "setupTables exception: ", e);
         }
     }
 
+    private static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.INAPP_TABLE + " (" +
+                InAppColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                InAppColumns.CATEGORY + " TEXT, " +
+                InAppColumns.EVENT_NAME + " TEXT, " +
+                InAppColumns.COUNT + " INTEGER DEFAULT 0, " +
+                InAppColumns.NUDGE_ID + " TEXT NOT NULL DEFAULT '', " +
+                InAppColumns.EVENT_ACCEPTANCE + " INTEGER DEFAULT -1, " +
+                InAppColumns.EVENT_ACCEPTANCE_TIME + " INTEGER NOT NULL DEFAULT 0, " +
+                InAppColumns.PROVIDER_NAME + " TEXT, " +
+                "UNIQUE (" + InAppColumns.NUDGE_ID + ", " +
+                        InAppColumns.EVENT_ACCEPTANCE_TIME + ")" +
+                ");");
+        // the unique key starts with event_name and raw_id, so it also serves the lookup of
+        // manual merges by raw IDs
+        db.execSQL("CREATE TABLE " + Tables.USER_ACTIONS_TABLE + " (" +
+                UserActionsColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                UserActionsColumns.CATEGORY + " TEXT, " +
+                UserActionsColumns.EVENT_NAME + " TEXT NOT NULL DEFAULT '', " +
+                UserActionsColumns.COUNT + " INTEGER DEFAULT 0, " +
+                UserActionsColumns.PROVIDER_NAME + " TEXT NOT NULL DEFAULT '', " +
+                UserActionsColumns.RAW_ID + " TEXT NOT NULL DEFAULT '', " +
+                "UNIQUE (" + UserActionsColumns.EVENT_NAME + ", " +
+                        UserActionsColumns.RAW_ID + ", " +
+                        UserActionsColumns.PROVIDER_NAME + ")" +
+                ");");
+    }
+
+    /**
+     * Version 2 adds the unique keys increments are matched on. Rows that would share a key
+     * are merged by adding up their counts.
+     */
+    private void upgradeToVersion2(SQLiteDatabase db) {
+        final String oldInApp = Tables.INAPP_TABLE + "_v1";
+        final String oldUserActions = Tables.USER_ACTIONS_TABLE + "_v1";
+        try {
+            db.execSQL("ALTER TABLE " + Tables.INAPP_TABLE + " RENAME TO " + oldInApp);
+            db.execSQL("ALTER TABLE " + Tables.USER_ACTIONS_TABLE + " RENAME TO "
+                    + oldUserActions);
+            createTables(db);
+            db.execSQL("INSERT INTO " + Tables.INAPP_TABLE + " (" +
+                    InAppColumns._ID + ", " +
+                    InAppColumns.CATEGORY + ", " +
+                    InAppColumns.EVENT_NAME + ", " +
+                    InAppColumns.COUNT + ", " +
+                    InAppColumns.NUDGE_ID + ", " +
+                    InAppColumns.EVENT_ACCEPTANCE + ", " +
+                    InAppColumns.EVENT_ACCEPTANCE_TIME + ", " +
+                    InAppColumns.PROVIDER_NAME + ") SELECT " +
+                    "MIN(" + InAppColumns._ID + "), " +
+                    "MAX(" + InAppColumns.CATEGORY + "), " +
+                    "MAX(" + InAppColumns.EVENT_NAME + "), " +
+                    "SUM(" + InAppColumns.COUNT + "), " +
+                    "COALESCE(" + InAppColumns.NUDGE_ID + ", ''), " +
+                    "MAX(" + InAppColumns.EVENT_ACCEPTANCE + "), " +
+                    "COALESCE(" + InAppColumns.EVENT_ACCEPTANCE_TIME + ", 0), " +
+                    "MAX(" + InAppColumns.PROVIDER_NAME + ") FROM " + oldInApp +
+                    " GROUP BY COALESCE(" + InAppColumns.NUDGE_ID + ", ''), " +
+                    "COALESCE(" + InAppColumns.EVENT_ACCEPTANCE_TIME + ", 0)");
+            db.execSQL("INSERT INTO " + Tables.USER_ACTIONS_TABLE + " (" +
+                    UserActionsColumns._ID + ", " +
+                    UserActionsColumns.CATEGORY + ", " +
+                    UserActionsColumns.EVENT_NAME + ", " +
+                    UserActionsColumns.COUNT + ", " +
+                    UserActionsColumns.PROVIDER_NAME + ", " +
+                    UserActionsColumns.RAW_ID + ") SELECT " +
+                    "MIN(" + UserActionsColumns._ID + "), " +
+                    "MAX(" + UserActionsColumns.CATEGORY + "), " +
+                    "COALESCE(" + UserActionsColumns.EVENT_NAME + ", ''), " +
+                    "SUM(" + UserActionsColumns.COUNT + "), " +
+                    "COALESCE(" + UserActionsColumns.PROVIDER_NAME + ", ''), " +
+                    "CAST(COALESCE(" + UserActionsColumns.RAW_ID + ", '') AS TEXT) FROM " +
+                    oldUserActions + " GROUP BY " +
+                    "COALESCE(" + UserActionsColumns.EVENT_NAME + ", ''), " +
+                    "COALESCE(" + UserActionsColumns.PROVIDER_NAME + ", ''), " +
+                    "CAST(COALESCE(" + UserActionsColumns.RAW_ID + ", '') AS TEXT)");
+            db.execSQL("DROP TABLE " + oldInApp);
+            db.execSQL("DROP TABLE " + oldUserActions);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "upgradeToVersion2 exception, recreating database: ", e);
+            db.execSQL("DROP TABLE IF EXISTS " + oldInApp);
+            db.execSQL("DROP TABLE IF EXISTS " + oldUserActions);
+            setupTables(db);
+        }
+    }
+
     public void dropTables(SQLiteDatabase db) {
         try {
             db.execSQL("DROP TABLE IF EXISTS " + Tables.INAPP_TABLE);
@@ -384,4 +574,49 @@ public class InCallMetricsDbHelper extends SQLiteOpenHelper {
             Log.e(TAG, "dropTables exception: ", e);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Identifies the database entry a buffered increment is added to.
+     */
+    private static final class PendingKey {
+        final String table;
+        final String provider;
+        final String rawIds;
+        final String event;
+        final String category;
+        final String nudgeId;
+        final String column;
+
+        PendingKey(String table, String provider, String rawIds, String event, String category,
+                String nudgeId, String column) {
+            this.table = table;
+            this.provider = provider;
+            this.rawIds = rawIds;
+            this.event = event;
+            this.category = category;
+            this.nudgeId = nudgeId;
+            this.column = column;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey other = (PendingKey) o;
+            return TextUtils.equals(table, other.table)
+                    && TextUtils.equals(provider, other.provider)
+                    && TextUtils.equals(rawIds, other.rawIds)
+                    && TextUtils.equals(event, other.event)
+                    && TextUtils.equals(category, other.category)
+                    && TextUtils.equals(nudgeId, other.nudgeId)
+                    && TextUtils.equals(column, other.column);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] {
+                    table, provider, rawIds, event, category, nudgeId, column});
+        }
+    }
+}
@@ -20,9 +20,12 @@ import android.app.AlarmManager;
 import android.app.job.JobInfo;
 import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.database.ContentObserver;
 import android.database.Cursor;
 
 import android.os.Handler;
@@ -30,6 +33,7 @@ import android.os.HandlerThread;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.phone.common.ambient.AmbientConnection;
 import com.android.phone.common.incall.CallMethodInfo;
@@ -41,6 +45,7 @@ import com.cyanogen.ambient.incall.InCallServices;
 import com.google.common.base.Joiner;
 import cyanogenmod.providers.CMSettings;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -68,6 +73,76 @@ public class InCallMetricsHelper {
     private Context mContext;
     private int mAmbientStatus = CyanogenAmbientUtil.MISSING;
     private static final int SCHEDULER_JOB_ID = 1;
+    private static final int RAW_CONTACT_QUERY_CHUNK_SIZE = 500;
+    // number of metrics entries read, sent and deleted at a time
+    private static final int EXPORT_CHUNK_SIZE = 100;
+    private static final int MAX_CACHED_ACCOUNT_TYPES = 1000;
+    private static final String[] RAW_CONTACT_PROJECTION = new String[] {
+            RawContacts.ACCOUNT_TYPE,
+            RawContacts._ID
+    };
+    // account type to plugin component name, only accessed on the handler thread
+    private HashMap<String, String> mPluginAccountMap;
+    // account types of the raw contacts looked up so far, "" for raw contacts without one
+    private final LruCache<String, String> mAccountTypeByRawId =
+            new LruCache<String, String>(MAX_CACHED_ACCOUNT_TYPES);
+    private static final int MAX_CACHED_NUDGE_IDS = 32;
+    // nudge IDs by the subtitle they are generated from
+    private static final LruCache<String, String> sNudgeIds =
+            new LruCache<String, String>(MAX_CACHED_NUDGE_IDS);
+    // CMSettings.Secure.STATS_COLLECTION, read once and then kept up to date by
+    // mStatsOptInObserver, only accessed on the handler thread
+    private boolean mStatsOptIn;
+    private ContentObserver mStatsOptInObserver;
+    // events waiting for the handler thread
+    private static final int MAX_QUEUED_EVENTS = 256;
+    private final ArrayDeque<MetricsEvent> mQueue = new ArrayDeque<MetricsEvent>();
+    // the queued events that later identical events are merged into, guarded by mQueue
+    private final HashMap<MetricsEvent, MetricsEvent> mMergeableEvents =
+            new HashMap<MetricsEvent, MetricsEvent>();
+    // guarded by mQueue
+    private boolean mDrainScheduled;
+    private long mMergedEvents;
+    private long mDroppedEvents;
+
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainQueue();
+        }
+    };
+
+    // how long buffered metrics increments may stay in memory
+    private static final long FLUSH_INTERVAL_MS = 30 * 1000;
+    // only accessed on the handler thread
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            mDbHelper.flush();
+        }
+    };
+
+    private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                // the process went to the background and may be killed, write out the metrics
+                flushNow();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            flushNow();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
 
     public enum Categories {
         USER_ACTIONS("USER_ACTIONS"),
@@ -182,12 +257,31 @@ public class InCallMetricsHelper {
             sInstance.mHandlerThread.start();
             sInstance.mHandler = new Handler(sInstance.mHandlerThread.getLooper());
             sInstance.mDbHelper = InCallMetricsDbHelper.getInstance(context);
+            context.getApplicationContext().registerComponentCallbacks(
+                    sInstance.mComponentCallbacks);
         }
         return sInstance;
     }
 
     /**
-     * Gather all metrics entries from tables and send to Ambient.
+     * Write buffered increments to the database once FLUSH_INTERVAL_MS has passed. Must be
+     * called on the handler thread.
+     */
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushTask, FLUSH_INTERVAL_MS);
+        }
+    }
+
+    private void flushNow() {
+        mHandler.removeCallbacks(mFlushTask);
+        mHandler.post(mFlushTask);
+    }
+
+    /**
+     * Gather all metrics entries from tables, including buffered increments, and send to
+     * Ambient.
      *
      * @param  context  context to be used in db
      * @return the posted Runnable
@@ -206,23 +300,13 @@ public class InCallMetricsHelper {
                 }
 
                 InCallMetricsHelper helper = getInstance(context);
+                helper.mDbHelper.flush();
+                Set<String> plugins = ContactsDataSubscription.get(context)
+                        .getAllPluginComponentNames();
                 // In App events
-                List<ContentValues> allList =
-                        helper.mDbHelper.getAllEntries(Categories.INAPP_NUDGES, true);
+                sendEntries(context, helper.mDbHelper, Categories.INAPP_NUDGES, plugins);
                 // User Actions events
-                allList.addAll(helper.mDbHelper.getAllEntries(Categories.USER_ACTIONS, true));
-                for (ContentValues cv : allList) {
-                    Categories cat = cv.containsKey(Parameters.CATEGORY.toCol()) ?
-                            Categories.valueOf(cv.getAsString(Parameters.CATEGORY.toCol())) :
-                            Categories.UNKNOWN;
-                    Events event = cv.containsKey(Parameters.EVENT_NAME.toCol()) ?
-                            Events.valueOf(cv.getAsString(Parameters.EVENT_NAME.toCol())) :
-                            Events.UNKNOWN;
-                    Set<String> plugins = ContactsDataSubscription.get(context)
-                            .getAllPluginComponentNames();
-                    sendEvent(context, cat, event, getExtraFields(cat, event, cv), plugins);
-
-                }
+                sendEntries(context, helper.mDbHelper, Categories.USER_ACTIONS, plugins);
                 if (jobDoneCallback != null) {
                     jobDoneCallback.callback(params, false);
                 }
@@ -232,6 +316,66 @@ public class InCallMetricsHelper {
         return sendTask;
     }
 
+    /**
+     * Receives each entry read by {@link #exportEntries}.
+     */
+    interface EntryExporter {
+        void export(Categories cat, Events event, HashMap<Parameters, Object> extraFields);
+    }
+
+    /**
+     * Send the entries of a category to Ambient and the InCall plugins.
+     *
+     * @param  context  context
+     * @param  dbHelper database to read the entries from
+     * @param  cat      metric category
+     * @param  plugins  a set of available plugin component names for sending lookup
+     */
+    private static void sendEntries(final Context context, InCallMetricsDbHelper dbHelper,
+            Categories cat, final Set<String> plugins) {
+        exportEntries(dbHelper, cat, new EntryExporter() {
+            @Override
+            public void export(Categories cat, Events event,
+                    HashMap<Parameters, Object> extraFields) {
+                sendEvent(context, cat, event, extraFields, plugins);
+            }
+        });
+    }
+
+    /**
+     * Hand the entries of a category to the exporter EXPORT_CHUNK_SIZE at a time, deleting each
+     * chunk once it has been exported, so a job that dies halfway only leaves the unsent entries
+     * behind. Must be called on the handler thread, where all increments are written, so no
+     * entry changes between being exported and being deleted.
+     *
+     * @param  dbHelper database to read the entries from
+     * @param  cat      metric category
+     * @param  exporter receives the events
+     * @return the number of entries exported
+     */
+    static int exportEntries(InCallMetricsDbHelper dbHelper, Categories cat,
+            EntryExporter exporter) {
+        int exported = 0;
+        long lastId = -1;
+        List<ContentValues> entries;
+        do {
+            entries = dbHelper.getEntries(cat, lastId, EXPORT_CHUNK_SIZE);
+            if (entries.isEmpty()) {
+                break;
+            }
+            for (ContentValues cv : entries) {
+                Events event = cv.containsKey(Parameters.EVENT_NAME.toCol()) ?
+                        Events.valueOf(cv.getAsString(Parameters.EVENT_NAME.toCol())) :
+                        Events.UNKNOWN;
+                exporter.export(cat, event, getExtraFields(cat, event, cv));
+                lastId = cv.getAsLong(InCallMetricsDbHelper.InAppColumns._ID);
+            }
+            dbHelper.deleteEntries(cat, lastId);
+            exported += entries.size();
+        } while (entries.size() == EXPORT_CHUNK_SIZE);
+        return exported;
+    }
+
     /**
      * Map ContentValues pair from db to <Parameters, value> pairs
      *
@@ -348,18 +492,8 @@ public class InCallMetricsHelper {
 
     public static void increaseCount(final Context context, final Events event, final String
             provider) {
-        final InCallMetricsHelper helper = getInstance(context);
-        helper.mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (!statsOptIn(context)) {
-                    return;
-                }
-                helper.mDbHelper.incrementUserActionsParam(provider, "", event.value(),
-                        Categories.USER_ACTIONS.value(),
-                        Parameters.COUNT.value().toLowerCase());
-            }
-        });
+        getInstance(context).enqueue(
+                new MetricsEvent(MetricsEvent.TYPE_COUNT, event, provider, null, 0));
     }
 
     /**
@@ -376,29 +510,12 @@ public class InCallMetricsHelper {
     public static void setValue(final Context context, final ComponentName component,
             final Categories cat, final Events event, final Parameters param,
             final Object value, final String nudgeId) {
-        final InCallMetricsHelper helper = getInstance(context);
-        helper.mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (!statsOptIn(context)) {
-                    return;
-                }
-                switch (cat) {
-                    case INAPP_NUDGES:
-                        switch (param) {
-                            case EVENT_ACCEPTANCE:
-                                helper.mDbHelper.setInAppAcceptance(component.flattenToString(),
-                                        event.value(), cat.value(), (Integer) value, nudgeId);
-                                break;
-                            default:
-                                break;
-                        }
-                        break;
-                    default:
-                        break;
-                }
-            }
-        });
+        if (component == null || cat != Categories.INAPP_NUDGES
+                || param != Parameters.EVENT_ACCEPTANCE) {
+            return;
+        }
+        getInstance(context).enqueue(new MetricsEvent(MetricsEvent.TYPE_ACCEPTANCE, event,
+                component.flattenToString(), nudgeId, (Integer) value));
     }
 
     /**
@@ -413,39 +530,25 @@ public class InCallMetricsHelper {
         if (cmi == null || cmi.mComponent == null) {
             return;
         }
-        final InCallMetricsHelper helper = getInstance(context);
-        helper.mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (!statsOptIn(context)) {
+        String subtitle;
+        switch (event) {
+            case INAPP_NUDGE_CONTACTS_INSTALL:
+                subtitle = cmi.mInstallNudgeSubtitle;
+                break;
+            case INAPP_NUDGE_CONTACTS_LOGIN:
+                subtitle = cmi.mLoginNudgeSubtitle;
+                break;
+            case INAPP_NUDGE_CONTACTS_TAB_LOGIN:
+                if (cmi.mIsAuthenticated) {
                     return;
                 }
-                switch (event) {
-                    case INAPP_NUDGE_CONTACTS_INSTALL:
-                        helper.mDbHelper.incrementInAppParam(cmi.mComponent.flattenToString(),
-                                event.value(), Categories.INAPP_NUDGES.value(),
-                                generateNudgeId(cmi.mInstallNudgeSubtitle),
-                                Parameters.COUNT.toCol());
-                        break;
-                    case INAPP_NUDGE_CONTACTS_LOGIN:
-                        helper.mDbHelper.incrementInAppParam(cmi.mComponent.flattenToString(),
-                                event.value(), Categories.INAPP_NUDGES.value(),
-                                generateNudgeId(cmi.mLoginNudgeSubtitle),
-                                Parameters.COUNT.toCol());
-                        break;
-                    case INAPP_NUDGE_CONTACTS_TAB_LOGIN:
-                        if (!cmi.mIsAuthenticated) {
-                            helper.mDbHelper.incrementInAppParam(cmi.mComponent.flattenToString(),
-                                    event.value(),
-                                    Categories.INAPP_NUDGES.value(),
-                                    generateNudgeId(cmi.mLoginSubtitle),
-                                    Parameters.COUNT.toCol());
-                        }
-                    default:
-                        break;
-                }
-            }
-        });
+                subtitle = cmi.mLoginSubtitle;
+                break;
+            default:
+                return;
+        }
+        getInstance(context).enqueue(new MetricsEvent(MetricsEvent.TYPE_IMPRESSION, event,
+                cmi.mComponent.flattenToString(), generateNudgeId(subtitle), 0));
     }
 
     /**
@@ -457,27 +560,11 @@ public class InCallMetricsHelper {
      */
     public static void increaseContactManualMergeCount(final Context context,
             final long contactIdForJoin, final long contactId) {
-        final InCallMetricsHelper helper = getInstance(context);
-        helper.mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (!statsOptIn(context)) {
-                    return;
-                }
-                SortedSet<String> rawIdSet = new TreeSet<String>(sRawIdComparator);
-                SortedSet<String> providerSet = queryContactProviderByContactIds(context,
-                        contactIdForJoin, contactId, rawIdSet);
-                String[] rawIdArray = rawIdSet.toArray(new String[rawIdSet.size()]);
-                List<String> providerList = new ArrayList<String>(providerSet);
-                String joinedProvider = providerList.size() == 0 ? "" :
-                        Joiner.on(",").skipNulls().join(providerList);
-                String joinedRawIds = rawIdArray.length == 0 ? "" :
-                        Joiner.on(",").skipNulls().join(rawIdArray);
-                helper.mDbHelper.incrementUserActionsParam(joinedProvider, joinedRawIds,
-                        InCallMetricsHelper.Events.CONTACTS_MANUAL_MERGED.value(),
-                        Categories.USER_ACTIONS.value(), Parameters.COUNT.toCol());
-            }
-        });
+        MetricsEvent metricsEvent = new MetricsEvent(MetricsEvent.TYPE_MANUAL_MERGE,
+                Events.CONTACTS_MANUAL_MERGED, null, null, 0);
+        metricsEvent.contactId = contactIdForJoin;
+        metricsEvent.otherContactId = contactId;
+        getInstance(context).enqueue(metricsEvent);
     }
 
     /**
@@ -491,29 +578,156 @@ public class InCallMetricsHelper {
         if (helper.mAmbientStatus != CyanogenAmbientUtil.SUCCESS) {
             return;
         }
-        helper.mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (!statsOptIn(context)) {
+        MetricsEvent metricsEvent = new MetricsEvent(MetricsEvent.TYPE_AUTO_MERGE,
+                Events.CONTACTS_AUTO_MERGED, null, null, 0);
+        metricsEvent.rawIds = rawIds;
+        helper.enqueue(metricsEvent);
+    }
+
+    /**
+     * Number of events waiting to be written by the handler thread, for diagnostics.
+     */
+    public static int getQueuedEventCount(Context context) {
+        InCallMetricsHelper helper = getInstance(context);
+        synchronized (helper.mQueue) {
+            return helper.mQueue.size();
+        }
+    }
+
+    /**
+     * Number of events merged into an identical queued event, for diagnostics.
+     */
+    public static long getMergedEventCount(Context context) {
+        InCallMetricsHelper helper = getInstance(context);
+        synchronized (helper.mQueue) {
+            return helper.mMergedEvents;
+        }
+    }
+
+    /**
+     * Number of events dropped because the queue was full, for diagnostics.
+     */
+    public static long getDroppedEventCount(Context context) {
+        InCallMetricsHelper helper = getInstance(context);
+        synchronized (helper.mQueue) {
+            return helper.mDroppedEvents;
+        }
+    }
+
+    /**
+     * Queue an event for the handler thread. A counting event that is already queued only has
+     * its count increased. When MAX_QUEUED_EVENTS events are queued, new events are dropped.
+     */
+    private void enqueue(MetricsEvent metricsEvent) {
+        synchronized (mQueue) {
+            if (metricsEvent.isMergeable()) {
+                MetricsEvent queued = mMergeableEvents.get(metricsEvent);
+                if (queued != null) {
+                    queued.count++;
+                    mMergedEvents++;
                     return;
                 }
-                String[] rawIdArray = rawIds.split(",");
-                Arrays.sort(rawIdArray, sRawIdComparator);
-                SortedSet<String> providerSet = queryContactProviderByRawContactIds(context,
-                        rawIdArray);
-                List<String> providerList = new ArrayList<String>(providerSet);
-
-                String joinedProvider = providerList.size() == 0 ? "" :
-                        Joiner.on(",").skipNulls().join(providerList);
-                String joinedRawIds = rawIdArray.length == 0 ? "" :
-                        Joiner.on(",").skipNulls().join(rawIdArray);
-                helper.mDbHelper.incrementUserActionsParam(joinedProvider,
-                        joinedRawIds,
-                        InCallMetricsHelper.Events.CONTACTS_AUTO_MERGED.value(),
-                        Categories.USER_ACTIONS.value(), Parameters.COUNT.toCol());
+            } else {
+                // counts that follow this event must not be merged into ones queued before it,
+                // e.g. impressions after a nudge was accepted go to a new entry
+                mMergeableEvents.clear();
             }
-        });
+            if (mQueue.size() >= MAX_QUEUED_EVENTS) {
+                mDroppedEvents++;
+                if (DEBUG) Log.d(TAG, "queue full, dropped " + metricsEvent.event.value());
+                return;
+            }
+            mQueue.add(metricsEvent);
+            if (metricsEvent.isMergeable()) {
+                mMergeableEvents.put(metricsEvent, metricsEvent);
+            }
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mHandler.post(mDrainTask);
+            }
+        }
+    }
+
+    /**
+     * Write all queued events. Runs on the handler thread.
+     */
+    private void drainQueue() {
+        while (true) {
+            MetricsEvent metricsEvent;
+            synchronized (mQueue) {
+                metricsEvent = mQueue.poll();
+                if (metricsEvent == null) {
+                    mDrainScheduled = false;
+                    break;
+                }
+                if (mMergeableEvents.get(metricsEvent) == metricsEvent) {
+                    mMergeableEvents.remove(metricsEvent);
+                }
+            }
+            if (isStatsOptIn()) {
+                writeEvent(metricsEvent);
+            }
+        }
+        scheduleFlush();
+    }
+
+    private void writeEvent(MetricsEvent metricsEvent) {
+        switch (metricsEvent.type) {
+            case MetricsEvent.TYPE_COUNT:
+                mDbHelper.incrementUserActionsParam(metricsEvent.provider, "",
+                        metricsEvent.event.value(), Categories.USER_ACTIONS.value(),
+                        Parameters.COUNT.toCol(), metricsEvent.count);
+                break;
+            case MetricsEvent.TYPE_IMPRESSION:
+                mDbHelper.incrementInAppParam(metricsEvent.provider,
+                        metricsEvent.event.value(), Categories.INAPP_NUDGES.value(),
+                        metricsEvent.nudgeId, Parameters.COUNT.toCol(), metricsEvent.count);
+                break;
+            case MetricsEvent.TYPE_ACCEPTANCE:
+                mDbHelper.setInAppAcceptance(metricsEvent.provider, metricsEvent.event.value(),
+                        Categories.INAPP_NUDGES.value(), metricsEvent.value,
+                        metricsEvent.nudgeId);
+                break;
+            case MetricsEvent.TYPE_MANUAL_MERGE:
+                writeManualMerge(metricsEvent.contactId, metricsEvent.otherContactId);
+                break;
+            case MetricsEvent.TYPE_AUTO_MERGE:
+                writeAutoMerge(metricsEvent.rawIds);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void writeManualMerge(long contactIdForJoin, long contactId) {
+        SortedSet<String> rawIdSet = new TreeSet<String>(sRawIdComparator);
+        SortedSet<String> providerSet = queryContactProviderByContactIds(mContext,
+                contactIdForJoin, contactId, rawIdSet);
+        String[] rawIdArray = rawIdSet.toArray(new String[rawIdSet.size()]);
+        List<String> providerList = new ArrayList<String>(providerSet);
+        String joinedProvider = providerList.size() == 0 ? "" :
+                Joiner.on(",").skipNulls().join(providerList);
+        String joinedRawIds = rawIdArray.length == 0 ? "" :
+                Joiner.on(",").skipNulls().join(rawIdArray);
+        mDbHelper.incrementUserActionsParam(joinedProvider, joinedRawIds,
+                InCallMetricsHelper.Events.CONTACTS_MANUAL_MERGED.value(),
+                Categories.USER_ACTIONS.value(), Parameters.COUNT.toCol());
+    }
 
+    private void writeAutoMerge(String rawIds) {
+        String[] rawIdArray = rawIds.split(",");
+        Arrays.sort(rawIdArray, sRawIdComparator);
+        SortedSet<String> providerSet = queryContactProviderByRawContactIds(mContext, rawIdArray);
+        List<String> providerList = new ArrayList<String>(providerSet);
+
+        String joinedProvider = providerList.size() == 0 ? "" :
+                Joiner.on(",").skipNulls().join(providerList);
+        String joinedRawIds = rawIdArray.length == 0 ? "" :
+                Joiner.on(",").skipNulls().join(rawIdArray);
+        mDbHelper.incrementUserActionsParam(joinedProvider,
+                joinedRawIds,
+                InCallMetricsHelper.Events.CONTACTS_AUTO_MERGED.value(),
+                Categories.USER_ACTIONS.value(), Parameters.COUNT.toCol());
     }
 
     /**
@@ -524,27 +738,20 @@ public class InCallMetricsHelper {
      * @param  contactId2  the secondary contact ID to be merged
      * @param  rawIdSet    merged raw contac ID set filled by this method
      */
-    private static SortedSet<String> queryContactProviderByContactIds(Context context, long
+    private SortedSet<String> queryContactProviderByContactIds(Context context, long
             contactId, long contactId2, Set<String> rawIdSet) {
         SortedSet<String> providerSet = new TreeSet<String>();
-        HashMap<String, String> pluginMap = InCallPluginUtils.getPluginAccountComponentPairs
-                (context);
         try (Cursor cursor = context.getContentResolver().query(RawContacts.CONTENT_URI,
-                    new String[]{RawContacts.ACCOUNT_TYPE, RawContacts._ID},
+                    RAW_CONTACT_PROJECTION,
                     RawContacts.CONTACT_ID + "=? OR " + RawContacts.CONTACT_ID + "=?",
                     new String[]{String.valueOf(contactId), String.valueOf(contactId2)}, null)) {
             if (cursor != null) {
                 while (cursor.moveToNext()) {
-                    String accountType = cursor.getString(0); // RawContacts.ACCOUNT_TYPE
-                    if (pluginMap.containsKey(accountType)) {
-                        // a plugin, use component name
-                        providerSet.add(pluginMap.get(accountType));
-                    } else {
-                        // not a plugin, use account type instead
-                        providerSet.add(accountType);
-                    }
-                    rawIdSet.add(String.valueOf(cursor.getInt(1))); // _ID
-                    if (DEBUG) Log.d(TAG, "queryContactProvider:" + cursor.getString(0));
+                    String rawId = String.valueOf(cursor.getLong(1)); // _ID
+                    String accountType = cacheAccountType(rawId, cursor.getString(0));
+                    addProvider(context, providerSet, accountType);
+                    rawIdSet.add(rawId);
+                    if (DEBUG) Log.d(TAG, "queryContactProvider:" + accountType);
                 }
             }
         } catch (RuntimeException e) {
@@ -555,30 +762,41 @@ public class InCallMetricsHelper {
 
     /**
      * Check if the provided raw contact IDs is from an account type that matches an InCall
-     * provider.
+     * provider. Raw contacts that were not looked up before are read with one query per
+     * RAW_CONTACT_QUERY_CHUNK_SIZE IDs.
      *
      * @param  context  context
      * @param  rawIds   raw contact IDs of the contacts
      */
-    private static SortedSet<String> queryContactProviderByRawContactIds(Context context, String[]
+    private SortedSet<String> queryContactProviderByRawContactIds(Context context, String[]
             rawIds) {
         SortedSet<String> providerSet = new TreeSet<String>();
-        HashMap<String, String> pluginMap = InCallPluginUtils.getPluginAccountComponentPairs
-                (context);
+        List<String> missingRawIds = new ArrayList<String>();
         for (String rawId : rawIds) {
+            String accountType = mAccountTypeByRawId.get(rawId);
+            if (accountType != null) {
+                addProvider(context, providerSet, accountType);
+            } else if (!TextUtils.isEmpty(rawId)) {
+                missingRawIds.add(rawId);
+            }
+        }
+        for (int start = 0; start < missingRawIds.size();
+                start += RAW_CONTACT_QUERY_CHUNK_SIZE) {
+            List<String> chunk = missingRawIds.subList(start,
+                    Math.min(start + RAW_CONTACT_QUERY_CHUNK_SIZE, missingRawIds.size()));
+            StringBuilder selection = new StringBuilder(RawContacts._ID + " IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(')');
             try (Cursor cursor = context.getContentResolver().query(RawContacts.CONTENT_URI,
-                        new String[]{RawContacts.ACCOUNT_TYPE},
-                        RawContacts._ID + "=?",
-                        new String[]{rawId}, null)) {
+                        RAW_CONTACT_PROJECTION, selection.toString(),
+                        chunk.toArray(new String[chunk.size()]), null)) {
                 if (cursor != null) {
-                    while (cursor.moveToFirst()) {
-                        String accountType = cursor.getString(0); // RawContacts.ACCOUNT_TYPE
-                        if (pluginMap.containsKey(accountType)) {
-                            providerSet.add(pluginMap.get(accountType));
-                        } else {
-                            providerSet.add(accountType);
-                        }
-                        providerSet.add(accountType);
+                    while (cursor.moveToNext()) {
+                        String accountType = cacheAccountType(
+                                String.valueOf(cursor.getLong(1)), cursor.getString(0));
+                        addProvider(context, providerSet, accountType);
                         if (DEBUG) Log.d(TAG, "queryContactProvider:" + accountType);
                     }
                 }
@@ -589,15 +807,87 @@ public class InCallMetricsHelper {
         return providerSet;
     }
 
+    /**
+     * Remember the account type of a raw contact, which does not change for its lifetime.
+     *
+     * @return the account type, or "" if the raw contact has none
+     */
+    private String cacheAccountType(String rawId, String accountType) {
+        if (accountType == null) {
+            accountType = "";
+        }
+        mAccountTypeByRawId.put(rawId, accountType);
+        return accountType;
+    }
+
+    /**
+     * Add the component name of the InCall plugin for the account type to the set, or the
+     * account type itself if it doesn't belong to a plugin.
+     */
+    private void addProvider(Context context, Set<String> providerSet, String accountType) {
+        if (TextUtils.isEmpty(accountType)) {
+            return;
+        }
+        if (mPluginAccountMap == null) {
+            mPluginAccountMap = InCallPluginUtils.getPluginAccountComponentPairs(context);
+        }
+        String component = mPluginAccountMap.get(accountType);
+        providerSet.add(component != null ? component : accountType);
+    }
+
+    /**
+     * Called when InCall plugins are installed, removed or change state, to drop the cached
+     * account type to plugin mapping.
+     *
+     * @param  context  context
+     */
+    public static void onPluginsChanged(Context context) {
+        final InCallMetricsHelper helper = getInstance(context);
+        helper.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                helper.mPluginAccountMap = null;
+            }
+        });
+    }
+
     public static String generateNudgeId(String data) {
         if (TextUtils.isEmpty(data)) {
             return "";
         }
-        return java.util.UUID.nameUUIDFromBytes(data.getBytes()).toString();
+        String nudgeId = sNudgeIds.get(data);
+        if (nudgeId == null) {
+            nudgeId = java.util.UUID.nameUUIDFromBytes(data.getBytes()).toString();
+            sNudgeIds.put(data, nudgeId);
+        }
+        return nudgeId;
     }
 
+    /**
+     * Must be called on the handler thread.
+     */
     private static boolean statsOptIn(Context context) {
-        return CMSettings.Secure.getInt(context.getContentResolver(),
+        return getInstance(context).isStatsOptIn();
+    }
+
+    private boolean isStatsOptIn() {
+        if (mStatsOptInObserver == null) {
+            mStatsOptInObserver = new ContentObserver(mHandler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    mStatsOptIn = readStatsOptIn();
+                }
+            };
+            mContext.getContentResolver().registerContentObserver(
+                    CMSettings.Secure.getUriFor(CMSettings.Secure.STATS_COLLECTION), false,
+                    mStatsOptInObserver);
+            mStatsOptIn = readStatsOptIn();
+        }
+        return mStatsOptIn;
+    }
+
+    private boolean readStatsOptIn() {
+        return CMSettings.Secure.getInt(mContext.getContentResolver(),
                 CMSettings.Secure.STATS_COLLECTION, 1) == 1;
     }
 
@@ -605,4 +895,61 @@ public class InCallMetricsHelper {
         final InCallMetricsHelper helper = getInstance(context);
         helper.mHandler.removeCallbacks(task);
     }
-}
\ No newline at end of file
+
+    /**
+     * A metrics event waiting in the queue for the handler thread.
+     */
+    private static final class MetricsEvent {
+        // increments of a user actions count, merged when identical
+        static final int TYPE_COUNT = 0;
+        // increments of an in-app nudge impression count, merged when identical
+        static final int TYPE_IMPRESSION = 1;
+        static final int TYPE_ACCEPTANCE = 2;
+        static final int TYPE_MANUAL_MERGE = 3;
+        static final int TYPE_AUTO_MERGE = 4;
+
+        final int type;
+        final Events event;
+        final String provider;
+        final String nudgeId;
+        final int value;
+        long contactId;
+        long otherContactId;
+        String rawIds;
+        // number of identical events merged into this one
+        int count = 1;
+
+        MetricsEvent(int type, Events event, String provider, String nudgeId, int value) {
+            this.type = type;
+            this.event = event;
+            this.provider = provider;
+            this.nudgeId = nudgeId;
+            this.value = value;
+        }
+
+        boolean isMergeable() {
+            return type == TYPE_COUNT || type == TYPE_IMPRESSION;
+        }
+
+        // only used for mergeable events, which are identified by these fields
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MetricsEvent)) {
+                return false;
+            }
+            MetricsEvent other = (MetricsEvent) o;
+            return type == other.type && event == other.event
+                    && TextUtils.equals(provider, other.provider)
+                    && TextUtils.equals(nudgeId, other.nudgeId);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = type;
+            result = 31 * result + (event != null ? event.hashCode() : 0);
+            result = 31 * result + (provider != null ? provider.hashCode() : 0);
+            result = 31 * result + (nudgeId != null ? nudgeId.hashCode() : 0);
+            return result;
+        }
+    }
+}
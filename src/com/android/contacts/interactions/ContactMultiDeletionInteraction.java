@@ -16,12 +16,11 @@
 
 package com.android.contacts.interactions;
 
-import com.google.common.collect.Sets;
-
 import com.android.contacts.ContactSaveService;
 import com.android.contacts.R;
 import com.android.contacts.common.model.AccountTypeManager;
 import com.android.contacts.common.model.account.AccountType;
+import com.android.contacts.util.LongHashSet;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -38,9 +37,6 @@ import android.os.Bundle;
 import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
 
-import java.util.HashSet;
-import java.util.TreeSet;
-
 /**
  * An interaction invoked to delete multiple contacts.
  *
@@ -72,7 +68,7 @@ public class ContactMultiDeletionInteraction extends Fragment
     private static final int COLUMN_INDEX_CONTACT_ID = 3;
 
     private boolean mIsLoaderActive;
-    private TreeSet<Long> mContactIds;
+    private long[] mContactIds;
     private Context mContext;
     private AlertDialog mDialog;
 
@@ -84,7 +80,7 @@ public class ContactMultiDeletionInteraction extends Fragment
      * @return the newly created interaction
      */
     public static ContactMultiDeletionInteraction start(
-            Activity activity, TreeSet<Long> contactIds) {
+            Activity activity, long[] contactIds) {
         if (contactIds == null) {
             return null;
         }
@@ -119,12 +115,12 @@ public class ContactMultiDeletionInteraction extends Fragment
         }
     }
 
-    public void setContactIds(TreeSet<Long> contactIds) {
+    public void setContactIds(long[] contactIds) {
         mContactIds = contactIds;
         mIsLoaderActive = true;
         if (isStarted()) {
             Bundle args = new Bundle();
-            args.putSerializable(ARG_CONTACT_IDS, mContactIds);
+            args.putLongArray(ARG_CONTACT_IDS, mContactIds);
             getLoaderManager().restartLoader(R.id.dialog_delete_multiple_contact_loader_id,
                     args, this);
         }
@@ -138,7 +134,7 @@ public class ContactMultiDeletionInteraction extends Fragment
     public void onStart() {
         if (mIsLoaderActive) {
             Bundle args = new Bundle();
-            args.putSerializable(ARG_CONTACT_IDS, mContactIds);
+            args.putLongArray(ARG_CONTACT_IDS, mContactIds);
             getLoaderManager().initLoader(
                     R.id.dialog_delete_multiple_contact_loader_id, args, this);
         }
@@ -155,21 +151,20 @@ public class ContactMultiDeletionInteraction extends Fragment
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        final TreeSet<Long> contactIds = (TreeSet<Long>) args.getSerializable(ARG_CONTACT_IDS);
-        final Object[] parameterObject = contactIds.toArray();
-        final String[] parameters = new String[contactIds.size()];
-
-        final StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < contactIds.size(); i++) {
-            parameters[i] = String.valueOf(parameterObject[i]);
-            builder.append(RawContacts.CONTACT_ID + " =?");
-            if (i == contactIds.size() -1) {
-                break;
+        final long[] contactIds = args.getLongArray(ARG_CONTACT_IDS);
+
+        // The IDs are listed inline rather than as selection arguments, as a large selection
+        // would exceed the number of arguments SQLite allows.
+        final StringBuilder builder = new StringBuilder(RawContacts.CONTACT_ID + " IN (");
+        for (int i = 0; i < contactIds.length; i++) {
+            if (i > 0) {
+                builder.append(',');
             }
-            builder.append(" OR ");
+            builder.append(contactIds[i]);
         }
+        builder.append(')');
         return new CursorLoader(mContext, RawContacts.CONTENT_URI, RAW_CONTACT_PROJECTION,
-                builder.toString(), parameters, null);
+                builder.toString(), null, null);
     }
 
     @Override
@@ -189,9 +184,9 @@ public class ContactMultiDeletionInteraction extends Fragment
         }
 
         // This cursor may contain duplicate raw contacts, so we need to de-dupe them first
-        final HashSet<Long> readOnlyRawContacts = Sets.newHashSet();
-        final HashSet<Long> writableRawContacts = Sets.newHashSet();
-        final HashSet<Long> contactIds = Sets.newHashSet();
+        final LongHashSet readOnlyRawContacts = new LongHashSet();
+        final LongHashSet writableRawContacts = new LongHashSet(cursor.getCount());
+        final LongHashSet contactIds = new LongHashSet(cursor.getCount());
 
         AccountTypeManager accountTypes = AccountTypeManager.getInstance(getActivity());
         cursor.moveToPosition(-1);
@@ -222,15 +217,7 @@ public class ContactMultiDeletionInteraction extends Fragment
             messageId = R.string.batch_delete_confirmation;
         }
 
-        // Convert set of contact ids into a format that is easily parcellable and iterated upon
-        // for the sake of ContactSaveService.
-        final Long[] contactIdObjectArray = contactIds.toArray(new Long[contactIds.size()]);
-        final long[] contactIdArray = new long[contactIds.size()];
-        for (int i = 0; i < contactIds.size(); i++) {
-            contactIdArray[i] = contactIdObjectArray[i];
-        }
-
-        showDialog(messageId, contactIdArray);
+        showDialog(messageId, contactIds.toArray());
 
         // We don't want onLoadFinished() calls any more, which may come when the database is
         // updating.
@@ -270,7 +257,7 @@ public class ContactMultiDeletionInteraction extends Fragment
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putBoolean(KEY_ACTIVE, mIsLoaderActive);
-        outState.putSerializable(KEY_CONTACTS_IDS, mContactIds);
+        outState.putLongArray(KEY_CONTACTS_IDS, mContactIds);
     }
 
     @Override
@@ -278,7 +265,7 @@ public class ContactMultiDeletionInteraction extends Fragment
         super.onActivityCreated(savedInstanceState);
         if (savedInstanceState != null) {
             mIsLoaderActive = savedInstanceState.getBoolean(KEY_ACTIVE);
-            mContactIds = (TreeSet<Long>) savedInstanceState.getSerializable(KEY_CONTACTS_IDS);
+            mContactIds = savedInstanceState.getLongArray(KEY_CONTACTS_IDS);
         }
     }
 
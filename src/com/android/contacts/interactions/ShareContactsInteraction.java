@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.interactions;
+
+import com.android.contacts.R;
+import com.android.contacts.common.util.ImplicitIntentsUtil;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.app.ProgressDialog;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.provider.ContactsContract.Contacts;
+import android.support.v4.content.FileProvider;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An interaction invoked to share multiple contacts as vCards.
+ *
+ * The lookup keys of the contacts are resolved in the background, a chunk of contacts per
+ * query, while a progress dialog is shown. Small selections are shared as a multi-vCard URI
+ * listing the lookup keys. Larger ones are written to a vCard file in the cache directory,
+ * which is shared instead, as the URI would grow with every contact.
+ */
+public class ShareContactsInteraction extends Fragment {
+    private static final String TAG = "ShareContactsInteraction";
+    private static final String FRAGMENT_TAG = "shareContacts";
+
+    /** Selections larger than this are shared through a vCard file. */
+    static final int MAX_URI_SHARE_COUNT = 200;
+
+    /** Number of contact IDs listed in each lookup key query. */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    /** Number of contacts whose vCards are read from the provider at a time. */
+    private static final int VCARD_CHUNK_SIZE = 100;
+
+    private static final String SHARE_DIR = "share";
+    private static final long SHARE_FILE_MAX_AGE_MS = DateUtils.DAY_IN_MILLIS;
+
+    private static final String[] LOOKUP_PROJECTION = new String[] {
+            Contacts.LOOKUP_KEY,
+    };
+
+    private long[] mContactIds;
+    private Context mContext;
+    private ShareTask mTask;
+    private ProgressDialog mDialog;
+    private int mProgress;
+    private int mMax;
+
+    private boolean mStarted;
+
+    // Set once the task is done, and delivered once an activity is started.
+    private boolean mFinished;
+    private boolean mFailed;
+    private Intent mShareIntent;
+
+    /**
+     * Starts the interaction, unless contacts are already being prepared for sharing.
+     *
+     * @param activity the activity within which to start the interaction
+     * @param contactIds the IDs of contacts to be shared
+     */
+    public static void start(Activity activity, long[] contactIds) {
+        if (contactIds == null || contactIds.length == 0) {
+            return;
+        }
+        final FragmentManager fragmentManager = activity.getFragmentManager();
+        if (fragmentManager.findFragmentByTag(FRAGMENT_TAG) != null) {
+            return;
+        }
+        final ShareContactsInteraction fragment = new ShareContactsInteraction();
+        fragment.mContactIds = contactIds;
+        fragmentManager.beginTransaction().add(fragment, FRAGMENT_TAG)
+                .commitAllowingStateLoss();
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+        mContext = getActivity().getApplicationContext();
+        if (mContactIds == null) {
+            // Recreated after the process was killed; the share went with it.
+            mFinished = true;
+            return;
+        }
+        final boolean streamToFile = mContactIds.length > MAX_URI_SHARE_COUNT;
+        mMax = streamToFile ? mContactIds.length * 2 : mContactIds.length;
+        mTask = new ShareTask(mContactIds, streamToFile);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mStarted = true;
+        if (mFinished) {
+            deliverResult();
+        } else {
+            showProgressDialog();
+        }
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mStarted = false;
+        dismissProgressDialog();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+    }
+
+    private void showProgressDialog() {
+        mDialog = new ProgressDialog(getActivity());
+        mDialog.setMessage(getString(R.string.share_contacts_progress));
+        mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mDialog.setProgressNumberFormat(null);
+        mDialog.setMax(mMax);
+        mDialog.setProgress(mProgress);
+        mDialog.setCanceledOnTouchOutside(false);
+        mDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        cancel();
+                    }
+                });
+        mDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                cancel();
+            }
+        });
+        mDialog.show();
+    }
+
+    private void dismissProgressDialog() {
+        if (mDialog != null) {
+            mDialog.setOnCancelListener(null);
+            mDialog.dismiss();
+            mDialog = null;
+        }
+    }
+
+    private void cancel() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+        mFinished = true;
+        deliverResult();
+    }
+
+    private void onProgress(int progress) {
+        mProgress = progress;
+        if (mDialog != null) {
+            mDialog.setProgress(progress);
+        }
+    }
+
+    private void onFinished(Intent shareIntent) {
+        mTask = null;
+        mShareIntent = shareIntent;
+        mFailed = shareIntent == null;
+        mFinished = true;
+        if (mStarted) {
+            deliverResult();
+        }
+    }
+
+    /**
+     * Starts the share, or reports the failure, and removes the interaction.
+     */
+    private void deliverResult() {
+        dismissProgressDialog();
+        final Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        if (mShareIntent != null) {
+            ImplicitIntentsUtil.startActivityOutsideApp(activity, mShareIntent);
+        } else if (mFailed) {
+            Toast.makeText(activity, R.string.share_failed, Toast.LENGTH_SHORT).show();
+        }
+        mShareIntent = null;
+        getFragmentManager().beginTransaction().remove(this).commitAllowingStateLoss();
+    }
+
+    /**
+     * Returns the multi-vCard URI of the contacts with lookup keys {@code start} (inclusive)
+     * to {@code end} (exclusive) of {@code lookupKeys}.
+     */
+    static Uri buildMultiVCardUri(List<String> lookupKeys, int start, int end) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                builder.append(':');
+            }
+            builder.append(Uri.encode(lookupKeys.get(i)));
+        }
+        return Uri.withAppendedPath(Contacts.CONTENT_MULTI_VCARD_URI,
+                Uri.encode(builder.toString()));
+    }
+
+    private static void deleteStaleFiles(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long cutoff = System.currentTimeMillis() - SHARE_FILE_MAX_AGE_MS;
+        for (File file : files) {
+            if (file.lastModified() < cutoff && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Resolves the lookup keys and builds the share Intent. Returns null if the contacts
+     * could not be shared.
+     */
+    private class ShareTask extends AsyncTask<Void, Integer, Intent> {
+        private final long[] mIds;
+        private final boolean mStreamToFile;
+        private final ContentResolver mResolver;
+
+        ShareTask(long[] ids, boolean streamToFile) {
+            mIds = ids;
+            mStreamToFile = streamToFile;
+            mResolver = mContext.getContentResolver();
+        }
+
+        @Override
+        protected Intent doInBackground(Void... params) {
+            final List<String> lookupKeys = new ArrayList<String>(mIds.length);
+            for (int start = 0; start < mIds.length; start += QUERY_CHUNK_SIZE) {
+                if (isCancelled()) {
+                    return null;
+                }
+                final int end = Math.min(start + QUERY_CHUNK_SIZE, mIds.length);
+                if (!queryLookupKeys(start, end, lookupKeys)) {
+                    return null;
+                }
+                publishProgress(end);
+            }
+            if (lookupKeys.isEmpty()) {
+                Log.w(TAG, "None of the " + mIds.length + " contacts to share exist");
+                return null;
+            }
+
+            final Uri uri;
+            if (mStreamToFile) {
+                uri = writeVCardFile(lookupKeys);
+                if (uri == null) {
+                    return null;
+                }
+            } else {
+                uri = buildMultiVCardUri(lookupKeys, 0, lookupKeys.size());
+            }
+            final Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType(Contacts.CONTENT_VCARD_TYPE);
+            intent.putExtra(Intent.EXTRA_STREAM, uri);
+            if (mStreamToFile) {
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            }
+            return intent;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            onProgress(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Intent result) {
+            onFinished(result);
+        }
+
+        /**
+         * Adds the lookup keys of the contacts {@code start} (inclusive) to {@code end}
+         * (exclusive) of the selection. Contacts that no longer exist are skipped.
+         */
+        private boolean queryLookupKeys(int start, int end, List<String> lookupKeys) {
+            final StringBuilder selection = new StringBuilder(Contacts._ID + " IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(mIds[i]);
+            }
+            selection.append(')');
+
+            final Cursor cursor;
+            try {
+                cursor = mResolver.query(Contacts.CONTENT_URI, LOOKUP_PROJECTION,
+                        selection.toString(), null, null);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to read lookup keys of contacts to share", e);
+                return false;
+            }
+            if (cursor == null) {
+                Log.e(TAG, "Failed to read lookup keys of contacts to share");
+                return false;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    final String lookupKey = cursor.getString(0);
+                    if (lookupKey != null) {
+                        lookupKeys.add(lookupKey);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return true;
+        }
+
+        /**
+         * Writes the vCards of the contacts to a new file in the cache directory, a chunk of
+         * contacts at a time, and returns a readable content URI to it.
+         */
+        private Uri writeVCardFile(List<String> lookupKeys) {
+            File file = null;
+            OutputStream out = null;
+            boolean success = false;
+            try {
+                final File dir = new File(mContext.getCacheDir(), SHARE_DIR);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("Unable to create " + dir);
+                }
+                deleteStaleFiles(dir);
+                file = File.createTempFile("contacts", ".vcf", dir);
+                out = new BufferedOutputStream(new FileOutputStream(file));
+
+                final byte[] buffer = new byte[8192];
+                final int count = lookupKeys.size();
+                for (int start = 0; start < count; start += VCARD_CHUNK_SIZE) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    final int end = Math.min(start + VCARD_CHUNK_SIZE, count);
+                    final InputStream in = mResolver.openInputStream(
+                            buildMultiVCardUri(lookupKeys, start, end));
+                    if (in == null) {
+                        throw new IOException("No vCards for contacts " + start + "-" + end);
+                    }
+                    try {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    publishProgress(mIds.length + (int) ((long) end * mIds.length / count));
+                }
+                out.close();
+                out = null;
+                final Uri uri = FileProvider.getUriForFile(mContext,
+                        mContext.getString(R.string.photo_file_provider_authority), file);
+                success = true;
+                return uri;
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(TAG, "Failed to write vCards of contacts to share", e);
+                return null;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Ignore, the file is deleted anyway.
+                    }
+                }
+                if (!success && file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+}
@@ -18,19 +18,26 @@ package com.android.contacts.list;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Bundle;
+import android.provider.ContactsContract.Data;
+import android.widget.SectionIndexer;
 
 import com.android.contacts.GroupMemberLoader;
 import com.android.contacts.common.list.ContactEntry;
 import com.android.contacts.common.list.ContactTileAdapter;
 import com.android.contacts.common.list.ContactTileView;
+import com.android.contacts.common.list.ContactsSectionIndexer;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
 
 /**
- * Tile adapter for groups.
+ * Tile adapter for groups. The sections of the address book index returned with the members
+ * map to rows of tiles.
  */
-public class GroupMemberTileAdapter extends ContactTileAdapter {
+public class GroupMemberTileAdapter extends ContactTileAdapter implements SectionIndexer {
+
+    private ContactsSectionIndexer mIndexer;
 
     public GroupMemberTileAdapter(Context context, ContactTileView.Listener listener, int numCols) {
         super(context, listener, numCols, DisplayType.GROUP_MEMBERS);
@@ -46,6 +53,19 @@ public class GroupMemberTileAdapter extends ContactTileAdapter {
         mStatusIndex = GroupMemberLoader.GroupDetailQuery.CONTACT_STATUS;
     }
 
+    @Override
+    public void setContactCursor(Cursor cursor) {
+        Bundle extras = cursor != null ? cursor.getExtras() : null;
+        if (extras != null && extras.containsKey(Data.EXTRA_ADDRESS_BOOK_INDEX_TITLES)) {
+            mIndexer = new ContactsSectionIndexer(
+                    extras.getStringArray(Data.EXTRA_ADDRESS_BOOK_INDEX_TITLES),
+                    extras.getIntArray(Data.EXTRA_ADDRESS_BOOK_INDEX_COUNTS));
+        } else {
+            mIndexer = null;
+        }
+        super.setContactCursor(cursor);
+    }
+
     @Override
     protected void saveNumFrequentsFromCursor(Cursor cursor) {
         mNumFrequents = 0;
@@ -82,4 +102,19 @@ public class GroupMemberTileAdapter extends ContactTileAdapter {
         }
         return resultList;
     }
+
+    @Override
+    public Object[] getSections() {
+        return mIndexer != null ? mIndexer.getSections() : null;
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        return mIndexer != null ? mIndexer.getPositionForSection(section) / mColumnCount : 0;
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return mIndexer != null ? mIndexer.getSectionForPosition(position * mColumnCount) : -1;
+    }
 }
@@ -20,13 +20,12 @@ import com.android.contacts.common.list.ContactListAdapter;
 import com.android.contacts.common.list.ContactListItemView;
 import com.android.contacts.common.list.DefaultContactListAdapter;
 import com.android.contacts.list.MultiSelectEntryContactListAdapter.SelectedContactsListener;
+import com.android.contacts.util.SortedLongSet;
 
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.TextUtils;
 
-import java.util.TreeSet;
-
 /**
  * Fragment containing a contact list used for browsing contacts and optionally selecting
  * multiple contacts via checkboxes.
@@ -69,16 +68,15 @@ public class MultiSelectContactsListFragment extends DefaultContactBrowseListFra
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         if (savedInstanceState != null) {
-            final TreeSet<Long> selectedContactIds = (TreeSet<Long>)
-                    savedInstanceState.getSerializable(EXTRA_KEY_SELECTED_CONTACTS);
-            getAdapter().setSelectedContactIds(selectedContactIds);
+            getAdapter().setSelectedContactIds(SortedLongSet.fromArray(
+                    savedInstanceState.getLongArray(EXTRA_KEY_SELECTED_CONTACTS)));
             if (mCheckBoxListListener != null) {
                 mCheckBoxListListener.onSelectedContactIdsChanged();
             }
         }
     }
 
-    public TreeSet<Long> getSelectedContactIds() {
+    public SortedLongSet getSelectedContactIds() {
         final MultiSelectEntryContactListAdapter adapter = getAdapter();
         return adapter.getSelectedContactIds();
     }
@@ -97,7 +95,7 @@ public class MultiSelectContactsListFragment extends DefaultContactBrowseListFra
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putSerializable(EXTRA_KEY_SELECTED_CONTACTS, getSelectedContactIds());
+        outState.putLongArray(EXTRA_KEY_SELECTED_CONTACTS, getSelectedContactIds().toArray());
     }
 
     public void displayCheckBoxes(boolean displayCheckBoxes) {
@@ -108,7 +106,7 @@ public class MultiSelectContactsListFragment extends DefaultContactBrowseListFra
     }
 
     public void clearCheckBoxes() {
-        getAdapter().setSelectedContactIds(new TreeSet<Long>());
+        getAdapter().setSelectedContactIds(new SortedLongSet());
     }
 
     @Override
@@ -121,7 +119,7 @@ public class MultiSelectContactsListFragment extends DefaultContactBrowseListFra
                 if (mCheckBoxListListener != null) {
                     mCheckBoxListListener.onStartDisplayingCheckBoxes();
                 }
-                getAdapter().toggleSelectionOfContactId(Long.valueOf(contactId));
+                getAdapter().toggleSelectionOfContactId(Long.parseLong(contactId));
             }
         }
         final int nowSelectedCount = getAdapter().getSelectedContactIds().size();
@@ -142,7 +140,7 @@ public class MultiSelectContactsListFragment extends DefaultContactBrowseListFra
         if (getAdapter().isDisplayingCheckBoxes()) {
             final String contactId = uri.getLastPathSegment();
             if (!TextUtils.isEmpty(contactId)) {
-                getAdapter().toggleSelectionOfContactId(Long.valueOf(contactId));
+                getAdapter().toggleSelectionOfContactId(Long.parseLong(contactId));
             }
         } else {
             super.onItemClick(position, id);
@@ -18,6 +18,7 @@ package com.android.contacts.list;
 
 import com.android.contacts.common.list.ContactListItemView;
 import com.android.contacts.common.list.DefaultContactListAdapter;
+import com.android.contacts.util.SortedLongSet;
 
 import android.content.Context;
 import android.database.Cursor;
@@ -25,8 +26,6 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.CheckBox;
 
-import java.util.TreeSet;
-
 /**
  * An extension of the default contact adapter that adds checkboxes and the ability
  * to select multiple contacts.
@@ -34,7 +33,7 @@ import java.util.TreeSet;
 public class MultiSelectEntryContactListAdapter extends DefaultContactListAdapter {
 
     private SelectedContactsListener mSelectedContactsListener;
-    private TreeSet<Long> mSelectedContactIds = new TreeSet<Long>();
+    private SortedLongSet mSelectedContactIds = new SortedLongSet();
     private boolean mDisplayCheckBoxes;
 
     public interface SelectedContactsListener {
@@ -51,16 +50,17 @@ public class MultiSelectEntryContactListAdapter extends DefaultContactListAdapte
     }
 
     /**
-     * Returns set of selected contacts.
+     * Returns set of selected contacts. The set is owned by the adapter; callers that keep it
+     * beyond the current selection should take a copy with {@link SortedLongSet#toArray}.
      */
-    public TreeSet<Long> getSelectedContactIds() {
+    public SortedLongSet getSelectedContactIds() {
         return mSelectedContactIds;
     }
 
     /**
      * Update set of selected contacts. This changes which checkboxes are set.
      */
-    public void setSelectedContactIds(TreeSet<Long> selectedContactIds) {
+    public void setSelectedContactIds(SortedLongSet selectedContactIds) {
         this.mSelectedContactIds = selectedContactIds;
         notifyDataSetChanged();
         if (mSelectedContactsListener != null) {
@@ -74,7 +74,7 @@ public class MultiSelectEntryContactListAdapter extends DefaultContactListAdapte
      */
     public void setDisplayCheckBoxes(boolean showCheckBoxes) {
         if (!mDisplayCheckBoxes && showCheckBoxes) {
-            setSelectedContactIds(new TreeSet<Long>());
+            setSelectedContactIds(new SortedLongSet());
         }
         mDisplayCheckBoxes = showCheckBoxes;
         notifyDataSetChanged();
@@ -94,9 +94,7 @@ public class MultiSelectEntryContactListAdapter extends DefaultContactListAdapte
      * Toggle the checkbox beside the contact for {@param contactId}.
      */
     public void toggleSelectionOfContactId(long contactId) {
-        if (mSelectedContactIds.contains(contactId)) {
-            mSelectedContactIds.remove(contactId);
-        } else {
+        if (!mSelectedContactIds.remove(contactId)) {
             mSelectedContactIds.add(contactId);
         }
         notifyDataSetChanged();
@@ -133,7 +131,7 @@ public class MultiSelectEntryContactListAdapter extends DefaultContactListAdapte
         @Override
         public void onClick(View v) {
             final CheckBox checkBox = (CheckBox) v;
-            final Long contactId = (Long) checkBox.getTag();
+            final long contactId = (Long) checkBox.getTag();
             if (checkBox.isChecked()) {
                 mSelectedContactIds.add(contactId);
             } else {
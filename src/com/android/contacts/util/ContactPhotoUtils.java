@@ -18,12 +18,15 @@
 package com.android.contacts.util;
 
 import android.content.ClipData;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.v4.content.FileProvider;
 import android.util.Log;
@@ -33,13 +36,17 @@ import com.google.common.io.Closeables;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Utilities related to loading/saving contact photos.
@@ -50,6 +57,19 @@ public class ContactPhotoUtils {
 
     private static final String PHOTO_DATE_FORMAT = "'IMG'_yyyyMMdd_HHmmss";
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /** Direct buffer reused by photo copies that cannot be done in the kernel. */
+    private static final AtomicReference<ByteBuffer> sCopyBuffer =
+            new AtomicReference<ByteBuffer>();
+
+    /**
+     * Subsampled bitmap left over from the last {@link #getScaledBitmapFromUri} call that had
+     * to scale its result, reused as the decode target of the next one until
+     * {@link #releaseDecodeBitmap} is called.
+     */
+    private static final AtomicReference<Bitmap> sDecodeBitmap = new AtomicReference<Bitmap>();
+
     /**
      * Generate a new, unique file to be used as an out-of-band communication
      * channel, since hi-res Bitmaps are too big to serialize into a Bundle.
@@ -102,15 +122,108 @@ public class ContactPhotoUtils {
         }
     }
 
+    /**
+     * Given a uri pointing to a bitmap, reads it into a bitmap of exactly {@code size} by
+     * {@code size} pixels. The image bounds are read first so that the image can be
+     * subsampled while it is decoded, rather than decoding it at full resolution and
+     * scaling it down afterwards. The intermediate subsampled bitmap is kept and decoded
+     * into by the next call, callers release it with {@link #releaseDecodeBitmap} once they
+     * are done. The returned bitmap belongs to the caller.
+     *
+     * @return the scaled bitmap, or null if the image could not be decoded
+     * @throws FileNotFoundException
+     */
+    public static Bitmap getScaledBitmapFromUri(Context context, Uri uri, int size)
+            throws FileNotFoundException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream imageStream = context.getContentResolver().openInputStream(uri);
+        try {
+            BitmapFactory.decodeStream(imageStream, null, options);
+        } finally {
+            Closeables.closeQuietly(imageStream);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, size);
+        options.inMutable = true;
+        options.inBitmap = sDecodeBitmap.getAndSet(null);
+
+        Bitmap decoded;
+        imageStream = context.getContentResolver().openInputStream(uri);
+        try {
+            decoded = BitmapFactory.decodeStream(imageStream, null, options);
+        } catch (IllegalArgumentException e) {
+            // The kept bitmap cannot hold this image, decode into a new one.
+            Closeables.closeQuietly(imageStream);
+            imageStream = context.getContentResolver().openInputStream(uri);
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeStream(imageStream, null, options);
+        } finally {
+            Closeables.closeQuietly(imageStream);
+        }
+        if (decoded == null) {
+            return null;
+        }
+        if (decoded.getWidth() == size && decoded.getHeight() == size) {
+            return decoded;
+        }
+        final Bitmap scaled = Bitmap.createScaledBitmap(decoded, size, size, true);
+        if (scaled != decoded) {
+            final Bitmap previous = sDecodeBitmap.getAndSet(decoded);
+            if (previous != null) {
+                previous.recycle();
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * Recycles the bitmap kept by {@link #getScaledBitmapFromUri}, so it does not stay alive
+     * for the rest of the process.
+     */
+    public static void releaseDecodeBitmap() {
+        final Bitmap bitmap = sDecodeBitmap.getAndSet(null);
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Returns the largest power of two sample size that keeps both dimensions of the
+     * decoded image at or above {@code size}.
+     */
+    private static int calculateInSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= size && height / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
     /**
      * Creates a byte[] containing the PNG-compressed bitmap, or null if
      * something goes wrong.
      */
     public static byte[] compressBitmap(Bitmap bitmap) {
-        final int size = bitmap.getWidth() * bitmap.getHeight() * 4;
+        return compressBitmap(bitmap, Bitmap.CompressFormat.PNG, 100);
+    }
+
+    /**
+     * Creates a byte[] containing the bitmap compressed with the given format and quality,
+     * or null if something goes wrong.
+     */
+    public static byte[] compressBitmap(Bitmap bitmap, Bitmap.CompressFormat format,
+            int quality) {
+        final int size = format == Bitmap.CompressFormat.PNG
+                ? bitmap.getWidth() * bitmap.getHeight() * 4
+                : bitmap.getWidth() * bitmap.getHeight();
         final ByteArrayOutputStream out = new ByteArrayOutputStream(size);
         try {
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            bitmap.compress(format, quality, out);
             out.flush();
             out.close();
             return out.toByteArray();
@@ -151,22 +264,20 @@ public class ContactPhotoUtils {
         if (inputUri == null || outputUri == null) {
             return false;
         }
+        final ContentResolver resolver = context.getContentResolver();
         FileOutputStream outputStream = null;
-        InputStream inputStream = null;
+        FileInputStream inputStream = null;
         try {
-            outputStream = context.getContentResolver()
-                    .openAssetFileDescriptor(outputUri, "rw").createOutputStream();
-            inputStream = context.getContentResolver().openInputStream(
-                    inputUri);
-
-            final byte[] buffer = new byte[16 * 1024];
-            int length;
-            int totalLength = 0;
-            while ((length = inputStream.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, length);
-                totalLength += length;
-            }
-            Log.v(TAG, "Wrote " + totalLength + " bytes for photo " + inputUri.toString());
+            outputStream = resolver.openAssetFileDescriptor(outputUri, "rw")
+                    .createOutputStream();
+            final AssetFileDescriptor input = resolver.openAssetFileDescriptor(inputUri, "r");
+            inputStream = input.createInputStream();
+
+            final long start = SystemClock.elapsedRealtime();
+            final long totalLength = copyChannel(inputStream.getChannel(),
+                    input.getDeclaredLength(), outputStream.getChannel());
+            Log.v(TAG, "Wrote " + totalLength + " bytes for photo " + inputUri.toString()
+                    + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
         } catch (IOException | NullPointerException e) {
             Log.e(TAG, "Failed to write photo: " + inputUri.toString() + " because: " + e);
             return false;
@@ -174,9 +285,72 @@ public class ContactPhotoUtils {
             Closeables.closeQuietly(inputStream);
             Closeables.closeQuietly(outputStream);
             if (deleteAfterSave) {
-                context.getContentResolver().delete(inputUri, null, null);
+                resolver.delete(inputUri, null, null);
             }
         }
         return true;
     }
+
+    /**
+     * Copies {@code length} bytes from the current position of {@code in} to {@code out}, or
+     * everything up to the end of {@code in} if the length is
+     * {@link AssetFileDescriptor#UNKNOWN_LENGTH}. An asset may only be a part of the file
+     * behind {@code in}, so the file size is not used. When the length is known the copy is
+     * done in the kernel; otherwise, or if that fails (e.g. the input is a pipe), it goes
+     * through a pooled direct buffer.
+     *
+     * @return the number of bytes copied
+     */
+    private static long copyChannel(FileChannel in, long length, FileChannel out)
+            throws IOException {
+        final boolean isLengthKnown = length != AssetFileDescriptor.UNKNOWN_LENGTH;
+        long total = 0;
+        long remaining = length;
+        if (isLengthKnown && remaining > 0) {
+            long position = -1;
+            try {
+                position = in.position();
+                while (remaining > 0) {
+                    final long transferred = in.transferTo(position, remaining, out);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    position += transferred;
+                    remaining -= transferred;
+                    total += transferred;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Direct photo transfer failed, copying through a buffer: " + e);
+            }
+            if (position >= 0) {
+                in.position(position);
+            }
+        }
+
+        // Copy whatever could not be transferred directly.
+        ByteBuffer buffer = sCopyBuffer.getAndSet(null);
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        }
+        try {
+            while (!isLengthKnown || remaining > 0) {
+                buffer.clear();
+                if (isLengthKnown && remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                final int read = in.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                remaining -= read;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    total += out.write(buffer);
+                }
+            }
+        } finally {
+            sCopyBuffer.set(buffer);
+        }
+        return total;
+    }
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs backed by an open addressing hash table, for ID sets that are too
+ * large to box every element. Not thread safe.
+ */
+public class LongHashSet {
+    /** Marks a free slot in the table; the key itself is tracked separately. */
+    private static final long FREE = Long.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mKeys;
+    private int mMask;
+    private int mSize;
+    private boolean mContainsFreeKey;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of elements the set can hold before it has to grow
+     */
+    public LongHashSet(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long key) {
+        if (key == FREE) {
+            return mContainsFreeKey;
+        }
+        int index = indexOf(key);
+        while (true) {
+            final long current = mKeys[index];
+            if (current == FREE) {
+                return false;
+            }
+            if (current == key) {
+                return true;
+            }
+            index = (index + 1) & mMask;
+        }
+    }
+
+    /**
+     * @return true if the key was not in the set yet
+     */
+    public boolean add(long key) {
+        if (key == FREE) {
+            if (mContainsFreeKey) {
+                return false;
+            }
+            mContainsFreeKey = true;
+            mSize++;
+            return true;
+        }
+        int index = indexOf(key);
+        while (true) {
+            final long current = mKeys[index];
+            if (current == FREE) {
+                break;
+            }
+            if (current == key) {
+                return false;
+            }
+            index = (index + 1) & mMask;
+        }
+        mKeys[index] = key;
+        mSize++;
+        if (mSize * 2 > mKeys.length) {
+            rehash(mKeys.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the key was in the set
+     */
+    public boolean remove(long key) {
+        if (key == FREE) {
+            if (!mContainsFreeKey) {
+                return false;
+            }
+            mContainsFreeKey = false;
+            mSize--;
+            return true;
+        }
+        int gap = indexOf(key);
+        while (true) {
+            final long current = mKeys[gap];
+            if (current == FREE) {
+                return false;
+            }
+            if (current == key) {
+                break;
+            }
+            gap = (gap + 1) & mMask;
+        }
+
+        // Shift following entries of the probe sequence back so lookups never hit a hole.
+        int index = gap;
+        while (true) {
+            index = (index + 1) & mMask;
+            final long current = mKeys[index];
+            if (current == FREE) {
+                break;
+            }
+            final int home = indexOf(current);
+            if (((index - home) & mMask) >= ((index - gap) & mMask)) {
+                mKeys[gap] = current;
+                gap = index;
+            }
+        }
+        mKeys[gap] = FREE;
+        mSize--;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, FREE);
+        mSize = 0;
+        mContainsFreeKey = false;
+    }
+
+    /**
+     * Returns the elements of the set, in no particular order.
+     */
+    public long[] toArray() {
+        final long[] result = new long[mSize];
+        int count = 0;
+        if (mContainsFreeKey) {
+            result[count++] = FREE;
+        }
+        for (long key : mKeys) {
+            if (key != FREE) {
+                result[count++] = key;
+            }
+        }
+        return result;
+    }
+
+    private int indexOf(long key) {
+        int hash = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+        return (hash ^ (hash >>> 16)) & mMask;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = mKeys;
+        allocate(capacity);
+        for (long key : oldKeys) {
+            if (key != FREE) {
+                int index = indexOf(key);
+                while (mKeys[index] != FREE) {
+                    index = (index + 1) & mMask;
+                }
+                mKeys[index] = key;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, FREE);
+        mMask = capacity - 1;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
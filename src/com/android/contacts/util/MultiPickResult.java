@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.v4.content.FileProvider;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.android.contacts.R;
+import com.android.contacts.common.SimContactsConstants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Transport for the selection returned by the multi-pick activity.
+ *
+ * Selections are returned inline, as a Bundle of String arrays keyed by ID under
+ * {@link SimContactsConstants#RESULT_KEY}, which is what external callers of the multi-pick
+ * intents expect. Callers that set {@link #EXTRA_ACCEPT_RESULT_FILE} on their request accept
+ * selections that would not fit into a binder transaction being written to a file in the
+ * cache directory instead, with the result Intent only carrying a readable content URI to it
+ * as its data. {@link #open} reads either form one entry at a time.
+ */
+public class MultiPickResult {
+    private static final String TAG = "MultiPickResult";
+
+    /**
+     * Selections larger than this are written to a file instead of the result Intent, if the
+     * caller accepts it.
+     */
+    public static final int MAX_INLINE_COUNT = 500;
+
+    /**
+     * Boolean extra of a multi-pick request, set by callers that read the result with
+     * {@link #open} and so accept large selections being returned through a file.
+     */
+    public static final String EXTRA_ACCEPT_RESULT_FILE =
+            "com.android.contacts.extra.ACCEPT_RESULT_FILE";
+
+    /** Number of entries in a result that is returned through a file. */
+    public static final String EXTRA_RESULT_COUNT = "com.android.contacts.extra.RESULT_COUNT";
+
+    private static final String RESULT_DIR = "multipick";
+    private static final long RESULT_MAX_AGE_MS = DateUtils.DAY_IN_MILLIS;
+
+    private static final int MAGIC = 0x4d505231;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int RECORD_ENTRY = 1;
+    private static final int RECORD_END = 0;
+
+    /**
+     * Returns whether the result was returned through a file.
+     */
+    public static boolean isOutOfBand(Intent data) {
+        return data != null && data.getData() != null && data.hasExtra(EXTRA_RESULT_COUNT);
+    }
+
+    /**
+     * Opens the selection returned in {@code data}, whichever way it was returned.
+     */
+    public static Reader open(Context context, Intent data) throws IOException {
+        if (isOutOfBand(data)) {
+            return new StreamReader(
+                    context.getContentResolver().openInputStream(data.getData()),
+                    data.getIntExtra(EXTRA_RESULT_COUNT, 0));
+        }
+        final Bundle extras = data != null ? data.getExtras() : null;
+        final Bundle choiceSet = extras != null
+                ? extras.getBundle(SimContactsConstants.RESULT_KEY) : null;
+        return new BundleReader(choiceSet != null ? choiceSet : new Bundle());
+    }
+
+    /**
+     * Creates a writer for a new result file in the cache directory. Result files left over
+     * by earlier picks are deleted.
+     */
+    public static Writer newWriter(Context context) throws IOException {
+        final File dir = new File(context.getCacheDir(), RESULT_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        deleteStaleResults(dir);
+        final File file = File.createTempFile("result", ".bin", dir);
+        return new Writer(context, file, new FileOutputStream(file));
+    }
+
+    private static void deleteStaleResults(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long cutoff = System.currentTimeMillis() - RESULT_MAX_AGE_MS;
+        for (File file : files) {
+            if (file.lastModified() < cutoff && !file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Writes selection entries into a result file.
+     */
+    public static class Writer {
+        private final Context mContext;
+        private final File mFile;
+        private final DataOutputStream mOut;
+        private int mCount;
+
+        Writer(Context context, File file, OutputStream out) throws IOException {
+            mContext = context;
+            mFile = file;
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(FORMAT_VERSION);
+        }
+
+        public void add(long id, String[] values) throws IOException {
+            mOut.writeByte(RECORD_ENTRY);
+            mOut.writeLong(id);
+            if (values == null) {
+                mOut.writeInt(-1);
+            } else {
+                mOut.writeInt(values.length);
+                for (String value : values) {
+                    writeString(mOut, value);
+                }
+            }
+            mCount++;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Finishes the file and returns the Intent to hand back as the activity result.
+         */
+        public Intent finish() throws IOException {
+            finishFile();
+            final Uri uri = FileProvider.getUriForFile(mContext,
+                    mContext.getString(R.string.photo_file_provider_authority), mFile);
+            final Intent intent = new Intent();
+            intent.setData(uri);
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            intent.putExtra(EXTRA_RESULT_COUNT, mCount);
+            return intent;
+        }
+
+        void finishFile() throws IOException {
+            mOut.writeByte(RECORD_END);
+            mOut.close();
+        }
+
+        /**
+         * Abandons the result; the file is deleted.
+         */
+        public void abort() {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Ignore, the file is deleted anyway.
+            }
+            mFile.delete();
+        }
+
+        private static void writeString(DataOutputStream out, String value)
+                throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a selection one entry at a time. Entries are returned in no particular order.
+     */
+    public static abstract class Reader implements Closeable {
+        /**
+         * Returns the number of entries in the selection.
+         */
+        public abstract int getCount();
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return false once all entries have been read
+         */
+        public abstract boolean moveToNext() throws IOException;
+
+        public abstract long getId();
+
+        /**
+         * Returns the values of the current entry, in the format of the pick mode.
+         */
+        public abstract String[] getValues();
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class BundleReader extends Reader {
+        private final Bundle mBundle;
+        private final Iterator<String> mKeys;
+        private String mKey;
+
+        BundleReader(Bundle bundle) {
+            mBundle = bundle;
+            mKeys = bundle.keySet().iterator();
+        }
+
+        @Override
+        public int getCount() {
+            return mBundle.size();
+        }
+
+        @Override
+        public boolean moveToNext() {
+            mKey = mKeys.hasNext() ? mKeys.next() : null;
+            return mKey != null;
+        }
+
+        @Override
+        public long getId() {
+            return Long.parseLong(mKey);
+        }
+
+        @Override
+        public String[] getValues() {
+            return mBundle.getStringArray(mKey);
+        }
+    }
+
+    static class StreamReader extends Reader {
+        private final DataInputStream mIn;
+        private final int mCount;
+        private boolean mFinished;
+        private long mId;
+        private String[] mValues;
+
+        StreamReader(InputStream in, int count) throws IOException {
+            if (in == null) {
+                throw new IOException("No result stream");
+            }
+            mIn = new DataInputStream(new BufferedInputStream(in));
+            mCount = count;
+            if (mIn.readInt() != MAGIC) {
+                mIn.close();
+                throw new IOException("Not a multi-pick result");
+            }
+            final int version = mIn.readInt();
+            if (version != FORMAT_VERSION) {
+                mIn.close();
+                throw new IOException("Unsupported result version " + version);
+            }
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public boolean moveToNext() throws IOException {
+            if (mFinished || mIn.readByte() != RECORD_ENTRY) {
+                mFinished = true;
+                return false;
+            }
+            mId = mIn.readLong();
+            final int length = mIn.readInt();
+            if (length < 0) {
+                mValues = null;
+            } else {
+                mValues = new String[length];
+                for (int i = 0; i < length; i++) {
+                    mValues[i] = readString(mIn);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public long getId() {
+            return mId;
+        }
+
+        @Override
+        public String[] getValues() {
+            return mValues;
+        }
+
+        @Override
+        public void close() {
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close result stream", e);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            final int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import java.text.Normalizer;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes names for matching them against a query in memory, ignoring case and diacritics
+ * the way the provider's name lookup roughly does.
+ */
+public class NameNormalizer {
+    private static final Pattern WORD_SEPARATOR_PATTERN = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern DIACRITICS_PATTERN = Pattern.compile("\\p{M}+");
+
+    private NameNormalizer() {
+    }
+
+    /**
+     * Returns the name in lower case with diacritics removed.
+     */
+    public static String normalize(String s) {
+        return DIACRITICS_PATTERN.matcher(Normalizer.normalize(s, Normalizer.Form.NFD))
+                .replaceAll("").toLowerCase();
+    }
+
+    /**
+     * Splits a normalized name into the words separated by anything but letters and digits.
+     * A leading separator results in an empty first word.
+     */
+    public static String[] splitWords(String normalized) {
+        return WORD_SEPARATOR_PATTERN.split(normalized);
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Imports SIM contacts into the contacts provider, packing as many contacts as fit into
+ * each {@link ContentResolver#applyBatch} call.
+ *
+ * Raw contacts are inserted with aggregation suspended, and aggregation is resumed for all
+ * of them at once by {@link #finish}, so the provider aggregates each contact a single time
+ * instead of once per transaction. If a batch fails, its contacts are imported again one at a
+ * time, so a single contact the provider rejects does not lose the rest of the batch.
+ */
+public class SimContactsImporter {
+    private static final String TAG = "SimContactsImporter";
+
+    private static final class SimContact {
+        final String name;
+        final String number;
+        final String[] emails;
+        final String[] anrs;
+
+        SimContact(String name, String number, String[] emails, String[] anrs) {
+            this.name = name;
+            this.number = number;
+            this.emails = emails;
+            this.anrs = anrs;
+        }
+    }
+
+    /** The maximum number of operations per batch (aka yield point) is 500. */
+    public static final int MAX_OPERATIONS_PER_BATCH = 499;
+
+    /** Number of raw contact IDs listed in each aggregation update. */
+    public static final int AGGREGATION_CHUNK_SIZE = 500;
+
+    private final ContentResolver mResolver;
+    private final Account mAccount;
+
+    private final ArrayList<ContentProviderOperation> mOperations =
+            new ArrayList<ContentProviderOperation>(MAX_OPERATIONS_PER_BATCH);
+    /** Index in {@link #mOperations} of the raw contact insert of each pending contact. */
+    private final ArrayList<Integer> mRawContactOffsets = new ArrayList<Integer>();
+    /** The pending contacts, kept to import them one by one if their batch fails. */
+    private final ArrayList<SimContact> mPendingContacts = new ArrayList<SimContact>();
+
+    private long[] mInsertedRawContactIds = new long[64];
+    private int mInsertedCount;
+
+    private int mTransactionCount;
+    private int mOperationCount;
+    private long mStartTime = -1;
+
+    public SimContactsImporter(ContentResolver resolver, Account account) {
+        mResolver = resolver;
+        mAccount = account;
+    }
+
+    /**
+     * Queues one SIM contact for import, flushing the pending batch first if the contact
+     * would not fit into it.
+     *
+     * @param emails comma separated email addresses, may be empty
+     * @param anrs comma separated additional numbers, may be empty
+     */
+    public void add(String name, String number, String emails, String anrs) {
+        if (mStartTime < 0) {
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+        final String[] emailArray = TextUtils.isEmpty(emails) ? null : emails.split(",");
+        final String[] anrArray = TextUtils.isEmpty(anrs) ? null : anrs.split(",");
+        final int operationCount = 3 + (emailArray != null ? emailArray.length : 0)
+                + (anrArray != null ? anrArray.length : 0);
+        if (mOperations.size() + operationCount > MAX_OPERATIONS_PER_BATCH) {
+            flush();
+        }
+        mRawContactOffsets.add(mOperations.size());
+        final SimContact contact = new SimContact(name, number, emailArray, anrArray);
+        mPendingContacts.add(contact);
+        addContactOperations(mOperations, contact);
+    }
+
+    /**
+     * Applies the pending batch and resumes aggregation for every contact imported so far.
+     * Must be called once all contacts have been added, including after a cancellation.
+     */
+    public void finish() {
+        flush();
+        resumeAggregation();
+        final long elapsed = mStartTime < 0 ? 0 : SystemClock.elapsedRealtime() - mStartTime;
+        Log.i(TAG, "Imported " + mInsertedCount + " contacts with " + mOperationCount
+                + " operations in " + mTransactionCount + " transactions, " + elapsed + "ms ("
+                + (elapsed > 0 ? mInsertedCount * 1000L / elapsed : mInsertedCount)
+                + " contacts/s)");
+    }
+
+    /** Returns the number of contacts that have been written to the provider. */
+    public int getImportedCount() {
+        return mInsertedCount;
+    }
+
+    /** Returns the number of {@link ContentResolver#applyBatch} calls made. */
+    public int getTransactionCount() {
+        return mTransactionCount;
+    }
+
+    /** Returns the number of operations applied. */
+    public int getOperationCount() {
+        return mOperationCount;
+    }
+
+    private void addContactOperations(ArrayList<ContentProviderOperation> operations,
+            SimContact contact) {
+        final int backReference = operations.size();
+        ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newInsert(RawContacts.CONTENT_URI);
+        builder.withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_SUSPENDED);
+        if (mAccount != null) {
+            builder.withValue(RawContacts.ACCOUNT_NAME, mAccount.name);
+            builder.withValue(RawContacts.ACCOUNT_TYPE, mAccount.type);
+        }
+        operations.add(builder.build());
+
+        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+        builder.withValueBackReference(StructuredName.RAW_CONTACT_ID, backReference);
+        builder.withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
+        builder.withValue(StructuredName.DISPLAY_NAME, contact.name);
+        operations.add(builder.build());
+
+        builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+        builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+        builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+        builder.withValue(Phone.TYPE, Phone.TYPE_MOBILE);
+        builder.withValue(Phone.NUMBER, contact.number);
+        builder.withValue(Data.IS_PRIMARY, 1);
+        operations.add(builder.build());
+
+        if (contact.anrs != null) {
+            for (String anr : contact.anrs) {
+                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+                builder.withValueBackReference(Phone.RAW_CONTACT_ID, backReference);
+                builder.withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+                builder.withValue(Phone.TYPE, Phone.TYPE_HOME);
+                builder.withValue(Phone.NUMBER, anr);
+                operations.add(builder.build());
+            }
+        }
+
+        if (contact.emails != null) {
+            for (String emailAddress : contact.emails) {
+                builder = ContentProviderOperation.newInsert(Data.CONTENT_URI);
+                builder.withValueBackReference(Email.RAW_CONTACT_ID, backReference);
+                builder.withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE);
+                builder.withValue(Email.TYPE, Email.TYPE_MOBILE);
+                builder.withValue(Email.ADDRESS, emailAddress);
+                operations.add(builder.build());
+            }
+        }
+    }
+
+    private void flush() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        final ContentProviderResult[] results = applyBatch(mOperations);
+        if (results != null) {
+            for (int offset : mRawContactOffsets) {
+                if (offset < results.length && results[offset].uri != null) {
+                    addInsertedRawContactId(ContentUris.parseId(results[offset].uri));
+                }
+            }
+        } else if (mPendingContacts.size() > 1) {
+            Log.w(TAG, "Importing the " + mPendingContacts.size()
+                    + " contacts of the failed batch one at a time");
+            final ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            for (SimContact contact : mPendingContacts) {
+                operations.clear();
+                addContactOperations(operations, contact);
+                final ContentProviderResult[] contactResults = applyBatch(operations);
+                if (contactResults != null && contactResults.length > 0
+                        && contactResults[0].uri != null) {
+                    addInsertedRawContactId(ContentUris.parseId(contactResults[0].uri));
+                }
+            }
+        }
+        mOperations.clear();
+        mRawContactOffsets.clear();
+        mPendingContacts.clear();
+    }
+
+    private void resumeAggregation() {
+        if (mInsertedCount == 0) {
+            return;
+        }
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        final StringBuilder selection = new StringBuilder();
+        for (int start = 0; start < mInsertedCount; start += AGGREGATION_CHUNK_SIZE) {
+            final int end = Math.min(start + AGGREGATION_CHUNK_SIZE, mInsertedCount);
+            selection.setLength(0);
+            selection.append(RawContacts._ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(mInsertedRawContactIds[i]);
+            }
+            selection.append(')');
+            operations.add(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
+                    .withSelection(selection.toString(), null)
+                    .withValue(RawContacts.AGGREGATION_MODE,
+                            RawContacts.AGGREGATION_MODE_DEFAULT)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+        applyBatch(operations);
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) {
+        mTransactionCount++;
+        mOperationCount += operations.size();
+        try {
+            return mResolver.applyBatch(ContactsContract.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to import SIM contacts batch", e);
+            return null;
+        }
+    }
+
+    private void addInsertedRawContactId(long rawContactId) {
+        if (mInsertedCount == mInsertedRawContactIds.length) {
+            final long[] grown = new long[mInsertedCount * 2];
+            System.arraycopy(mInsertedRawContactIds, 0, grown, 0, mInsertedCount);
+            mInsertedRawContactIds = grown;
+        }
+        mInsertedRawContactIds[mInsertedCount++] = rawContactId;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs kept in ascending order in a single array, for selections that are
+ * iterated in order and saved as a {@code long[]}. Adding elements in ascending order is
+ * amortized constant time; adding or removing anywhere else moves the elements after it.
+ * Not thread safe.
+ */
+public class SortedLongSet {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mValues;
+    private int mSize;
+
+    public SortedLongSet() {
+        mValues = new long[MIN_CAPACITY];
+    }
+
+    /**
+     * Creates a set holding the given values, which may be unsorted and contain duplicates.
+     * A null array yields an empty set.
+     */
+    public static SortedLongSet fromArray(long[] values) {
+        final SortedLongSet set = new SortedLongSet();
+        if (values == null || values.length == 0) {
+            return set;
+        }
+        final long[] sorted = Arrays.copyOf(values, Math.max(values.length, MIN_CAPACITY));
+        Arrays.sort(sorted, 0, values.length);
+        int size = 1;
+        for (int i = 1; i < values.length; i++) {
+            if (sorted[i] != sorted[size - 1]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        set.mValues = sorted;
+        set.mSize = size;
+        return set;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Returns the element at {@code index}, elements being in ascending order.
+     */
+    public long get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return mValues[index];
+    }
+
+    public boolean contains(long value) {
+        return indexOf(value) >= 0;
+    }
+
+    /**
+     * @return true if the value was not in the set yet
+     */
+    public boolean add(long value) {
+        // Appending is the common case, e.g. when selecting all contacts in list order.
+        if (mSize == 0 || mValues[mSize - 1] < value) {
+            ensureCapacity(mSize + 1);
+            mValues[mSize++] = value;
+            return true;
+        }
+        final int index = indexOf(value);
+        if (index >= 0) {
+            return false;
+        }
+        final int insertion = -(index + 1);
+        ensureCapacity(mSize + 1);
+        System.arraycopy(mValues, insertion, mValues, insertion + 1, mSize - insertion);
+        mValues[insertion] = value;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * @return true if the value was in the set
+     */
+    public boolean remove(long value) {
+        final int index = indexOf(value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        mSize--;
+        return true;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Returns the elements of the set in ascending order.
+     */
+    public long[] toArray() {
+        return Arrays.copyOf(mValues, mSize);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SortedLongSet)) {
+            return false;
+        }
+        final SortedLongSet other = (SortedLongSet) o;
+        if (mSize != other.mSize) {
+            return false;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mValues[i] != other.mValues[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < mSize; i++) {
+            final long value = mValues[i];
+            hash = 31 * hash + (int) (value ^ (value >>> 32));
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    private int indexOf(long value) {
+        return Arrays.binarySearch(mValues, 0, mSize, value);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mValues.length) {
+            mValues = Arrays.copyOf(mValues, Math.max(capacity, mValues.length * 2));
+        }
+    }
+}
@@ -40,26 +40,37 @@ public class CompositeListAdapter extends BaseAdapter {
     private ListAdapter[] mAdapters;
     private int[] mCounts;
     private int[] mViewTypeCounts;
+    private boolean[] mAllItemsEnabledByAdapter;
+    // Position of the first item and first view type of each adapter in this adapter
+    private int[] mStarts;
+    private int[] mViewTypeStarts;
+    // Adapters whose counts need to be read again, and the first of them
+    private boolean[] mDirty;
+    private int mFirstDirty = Integer.MAX_VALUE;
     private int mSize = 0;
     private int mCount = 0;
     private int mViewTypeCount = 0;
     private boolean mAllItemsEnabled = true;
-    private boolean mCacheValid = true;
 
-    private DataSetObserver mDataSetObserver = new DataSetObserver() {
+    private final class ChildDataSetObserver extends DataSetObserver {
+        private final int mIndex;
+
+        ChildDataSetObserver(int index) {
+            mIndex = index;
+        }
 
         @Override
         public void onChanged() {
-            invalidate();
+            invalidate(mIndex);
             notifyDataChanged();
         }
 
         @Override
         public void onInvalidated() {
-            invalidate();
+            invalidate(mIndex);
             notifyDataChanged();
         }
-    };
+    }
 
     public CompositeListAdapter() {
         this(INITIAL_CAPACITY);
@@ -69,6 +80,10 @@ public class CompositeListAdapter extends BaseAdapter {
         mAdapters = new ListAdapter[INITIAL_CAPACITY];
         mCounts = new int[INITIAL_CAPACITY];
         mViewTypeCounts = new int[INITIAL_CAPACITY];
+        mAllItemsEnabledByAdapter = new boolean[INITIAL_CAPACITY];
+        mStarts = new int[INITIAL_CAPACITY];
+        mViewTypeStarts = new int[INITIAL_CAPACITY];
+        mDirty = new boolean[INITIAL_CAPACITY];
     }
 
     @VisibleForTesting
@@ -79,31 +94,35 @@ public class CompositeListAdapter extends BaseAdapter {
             System.arraycopy(mAdapters, 0, newAdapters, 0, mSize);
             mAdapters = newAdapters;
 
-            int[] newCounts = new int[newCapacity];
-            System.arraycopy(mCounts, 0, newCounts, 0, mSize);
-            mCounts = newCounts;
+            mCounts = grow(mCounts, newCapacity);
+            mViewTypeCounts = grow(mViewTypeCounts, newCapacity);
+            mStarts = grow(mStarts, newCapacity);
+            mViewTypeStarts = grow(mViewTypeStarts, newCapacity);
 
-            int[] newViewTypeCounts = new int[newCapacity];
-            System.arraycopy(mViewTypeCounts, 0, newViewTypeCounts, 0, mSize);
-            mViewTypeCounts = newViewTypeCounts;
-        }
+            boolean[] newAllItemsEnabled = new boolean[newCapacity];
+            System.arraycopy(mAllItemsEnabledByAdapter, 0, newAllItemsEnabled, 0, mSize);
+            mAllItemsEnabledByAdapter = newAllItemsEnabled;
 
-        adapter.registerDataSetObserver(mDataSetObserver);
+            boolean[] newDirty = new boolean[newCapacity];
+            System.arraycopy(mDirty, 0, newDirty, 0, mSize);
+            mDirty = newDirty;
+        }
 
-        int count = adapter.getCount();
-        int viewTypeCount = adapter.getViewTypeCount();
+        adapter.registerDataSetObserver(new ChildDataSetObserver(mSize));
 
         mAdapters[mSize] = adapter;
-        mCounts[mSize] = count;
-        mCount += count;
-        mAllItemsEnabled &= adapter.areAllItemsEnabled();
-        mViewTypeCounts[mSize] = viewTypeCount;
-        mViewTypeCount += viewTypeCount;
+        invalidate(mSize);
         mSize++;
 
         notifyDataChanged();
     }
 
+    private static int[] grow(int[] array, int newCapacity) {
+        int[] newArray = new int[newCapacity];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
     protected void notifyDataChanged() {
         if (getCount() > 0) {
             notifyDataSetChanged();
@@ -113,27 +132,79 @@ public class CompositeListAdapter extends BaseAdapter {
     }
 
     protected void invalidate() {
-        mCacheValid = false;
+        for (int i = 0; i < mSize; i++) {
+            invalidate(i);
+        }
     }
 
+    /**
+     * Marks the counts of one sub-adapter as out of date.
+     */
+    private void invalidate(int index) {
+        mDirty[index] = true;
+        mFirstDirty = Math.min(mFirstDirty, index);
+    }
+
+    /**
+     * Reads the counts of the sub-adapters that changed and updates the start positions of
+     * the ones that follow them.
+     */
     protected void ensureCacheValid() {
-        if (mCacheValid) {
+        if (mFirstDirty >= mSize) {
             return;
         }
 
-        mCount = 0;
+        int start = 0;
+        int viewTypeStart = 0;
+        if (mFirstDirty > 0) {
+            start = mStarts[mFirstDirty - 1] + mCounts[mFirstDirty - 1];
+            viewTypeStart = mViewTypeStarts[mFirstDirty - 1] + mViewTypeCounts[mFirstDirty - 1];
+        }
+        for (int i = mFirstDirty; i < mSize; i++) {
+            if (mDirty[i]) {
+                mCounts[i] = mAdapters[i].getCount();
+                mViewTypeCounts[i] = mAdapters[i].getViewTypeCount();
+                mAllItemsEnabledByAdapter[i] = mAdapters[i].areAllItemsEnabled();
+                mDirty[i] = false;
+            }
+            mStarts[i] = start;
+            mViewTypeStarts[i] = viewTypeStart;
+            start += mCounts[i];
+            viewTypeStart += mViewTypeCounts[i];
+        }
+        mCount = start;
+        mViewTypeCount = viewTypeStart;
+
         mAllItemsEnabled = true;
-        mViewTypeCount = 0;
         for (int i = 0; i < mSize; i++) {
-            int count = mAdapters[i].getCount();
-            int viewTypeCount = mAdapters[i].getViewTypeCount();
-            mCounts[i] = count;
-            mCount += count;
-            mAllItemsEnabled &= mAdapters[i].areAllItemsEnabled();
-            mViewTypeCount += viewTypeCount;
+            mAllItemsEnabled &= mAllItemsEnabledByAdapter[i];
+        }
+
+        mFirstDirty = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Returns the index of the sub-adapter that holds the item at {@code position}.
+     */
+    private int findAdapter(int position) {
+        ensureCacheValid();
+        if (position < 0 || position >= mCount) {
+            throw new ArrayIndexOutOfBoundsException(position);
         }
 
-        mCacheValid = true;
+        // The last adapter starting at or before the position. Empty adapters start where
+        // the next one does, so they are never picked.
+        int low = 0;
+        int high = mSize - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mStarts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
     }
 
     public int getCount() {
@@ -142,31 +213,13 @@ public class CompositeListAdapter extends BaseAdapter {
     }
 
     public Object getItem(int position) {
-        ensureCacheValid();
-        int start = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return mAdapters[i].getItem(position - start);
-            }
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        int i = findAdapter(position);
+        return mAdapters[i].getItem(position - mStarts[i]);
     }
 
     public long getItemId(int position) {
-        ensureCacheValid();
-        int start = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return mAdapters[i].getItemId(position - start);
-            }
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        int i = findAdapter(position);
+        return mAdapters[i].getItemId(position - mStarts[i]);
     }
 
     @Override
@@ -177,33 +230,13 @@ public class CompositeListAdapter extends BaseAdapter {
 
     @Override
     public int getItemViewType(int position) {
-        ensureCacheValid();
-        int start = 0;
-        int viewTypeOffset = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return viewTypeOffset + mAdapters[i].getItemViewType(position - start);
-            }
-            viewTypeOffset += mViewTypeCounts[i];
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        int i = findAdapter(position);
+        return mViewTypeStarts[i] + mAdapters[i].getItemViewType(position - mStarts[i]);
     }
 
     public View getView(int position, View convertView, ViewGroup parent) {
-        ensureCacheValid();
-        int start = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return mAdapters[i].getView(position - start, convertView, parent);
-            }
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        int i = findAdapter(position);
+        return mAdapters[i].getView(position - mStarts[i], convertView, parent);
     }
 
     @Override
@@ -214,17 +247,7 @@ public class CompositeListAdapter extends BaseAdapter {
 
     @Override
     public boolean isEnabled(int position) {
-        ensureCacheValid();
-        int start = 0;
-        for (int i = 0; i < mCounts.length; i++) {
-            int end = start + mCounts[i];
-            if (position >= start && position < end) {
-                return mAdapters[i].areAllItemsEnabled()
-                        || mAdapters[i].isEnabled(position - start);
-            }
-            start = end;
-        }
-
-        throw new ArrayIndexOutOfBoundsException(position);
+        int i = findAdapter(position);
+        return mAllItemsEnabledByAdapter[i] || mAdapters[i].isEnabled(position - mStarts[i]);
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.ComponentName;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.contacts.common.model.RawContactDelta;
+import com.android.contacts.common.model.RawContactDeltaList;
+import com.android.contacts.common.model.ValuesDelta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ContactSaveJournalCodec}.
+ */
+@SmallTest
+public class ContactSaveJournalCodecTest extends AndroidTestCase {
+
+    public void testGroupOperationRoundTrip() throws IOException {
+        final Intent callback = new Intent("callback");
+        callback.setComponent(new ComponentName("com.android.contacts", "Callback"));
+        callback.putExtra("backPressed", true);
+
+        final Intent intent = new Intent(ContactSaveService.ACTION_UPDATE_GROUP);
+        intent.putExtra(ContactSaveService.EXTRA_GROUP_ID, 42L);
+        intent.putExtra(ContactSaveService.EXTRA_GROUP_LABEL, "Été");
+        intent.putExtra(ContactSaveService.EXTRA_RAW_CONTACTS_TO_ADD, new long[] { 1, 2, 3 });
+        intent.putExtra(ContactSaveService.EXTRA_CONTACT_URI,
+                Uri.parse("content://com.android.contacts/contacts/7"));
+        intent.putExtra(ContactSaveService.EXTRA_CALLBACK_INTENT, callback);
+
+        final Intent read = ContactSaveJournalCodec.decode(ContactSaveJournalCodec.encode(intent));
+        assertEquals(ContactSaveService.ACTION_UPDATE_GROUP, read.getAction());
+        assertEquals(42L, read.getLongExtra(ContactSaveService.EXTRA_GROUP_ID, -1));
+        assertEquals("Été", read.getStringExtra(ContactSaveService.EXTRA_GROUP_LABEL));
+        assertTrue(Arrays.equals(new long[] { 1, 2, 3 },
+                read.getLongArrayExtra(ContactSaveService.EXTRA_RAW_CONTACTS_TO_ADD)));
+        assertEquals(Uri.parse("content://com.android.contacts/contacts/7"),
+                read.getParcelableExtra(ContactSaveService.EXTRA_CONTACT_URI));
+        final Intent readCallback = read.getParcelableExtra(
+                ContactSaveService.EXTRA_CALLBACK_INTENT);
+        assertEquals("callback", readCallback.getAction());
+        assertEquals(callback.getComponent(), readCallback.getComponent());
+        assertTrue(readCallback.getBooleanExtra("backPressed", false));
+    }
+
+    public void testContentValuesRoundTrip() throws IOException {
+        final ContentValues values = new ContentValues();
+        values.put(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+        values.put(Phone.NUMBER, "555");
+        values.put(Phone.TYPE, 2);
+        values.putNull(Phone.LABEL);
+        final ArrayList<ContentValues> list = new ArrayList<ContentValues>();
+        list.add(values);
+
+        final Intent intent = new Intent(ContactSaveService.ACTION_NEW_RAW_CONTACT);
+        intent.putParcelableArrayListExtra(ContactSaveService.EXTRA_CONTENT_VALUES, list);
+        final Intent read = ContactSaveJournalCodec.decode(ContactSaveJournalCodec.encode(intent));
+        final ArrayList<ContentValues> readList =
+                read.getParcelableArrayListExtra(ContactSaveService.EXTRA_CONTENT_VALUES);
+        assertEquals(list, readList);
+    }
+
+    public void testContactStateBuildsSameUpdate() throws IOException {
+        final ContentValues rawContact = new ContentValues();
+        rawContact.put(RawContacts._ID, 10L);
+        rawContact.put(RawContacts.VERSION, 3);
+        final ContentValues phone = new ContentValues();
+        phone.put(Data._ID, 20L);
+        phone.put(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+        phone.put(Phone.NUMBER, "555");
+
+        final RawContactDelta delta = new RawContactDelta(ValuesDelta.fromBefore(rawContact));
+        final ValuesDelta phoneDelta = ValuesDelta.fromBefore(phone);
+        phoneDelta.put(Phone.NUMBER, "666");
+        delta.addEntry(phoneDelta);
+        final ContentValues newPhone = new ContentValues();
+        newPhone.put(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
+        newPhone.put(Phone.NUMBER, "777");
+        delta.addEntry(ValuesDelta.fromAfter(newPhone));
+        final RawContactDeltaList state = new RawContactDeltaList();
+        state.add(delta);
+
+        final Intent intent = new Intent(ContactSaveService.ACTION_SAVE_CONTACT);
+        intent.putExtra(ContactSaveService.EXTRA_CONTACT_STATE, state);
+        final Intent read = ContactSaveJournalCodec.decode(ContactSaveJournalCodec.encode(intent));
+        final RawContactDeltaList readState =
+                read.getParcelableExtra(ContactSaveService.EXTRA_CONTACT_STATE);
+
+        assertEquals(1, readState.size());
+        assertEquals(Long.valueOf(10), readState.get(0).getRawContactId());
+        assertFalse(readState.get(0).getValues().isUpdate());
+        int updates = 0;
+        int inserts = 0;
+        for (ValuesDelta entry : readState.get(0).getMimeEntries(Phone.CONTENT_ITEM_TYPE)) {
+            if (entry.isInsert()) {
+                inserts++;
+                assertEquals("777", entry.getAsString(Phone.NUMBER));
+            } else if (entry.isUpdate()) {
+                updates++;
+                assertEquals(Long.valueOf(20), entry.getId());
+                assertEquals("666", entry.getAsString(Phone.NUMBER));
+            }
+        }
+        assertEquals(1, inserts);
+        assertEquals(1, updates);
+        assertEquals(state.buildDiff().size(), readState.buildDiff().size());
+    }
+
+    public void testUnsupportedExtraFails() {
+        final Intent intent = new Intent(ContactSaveService.ACTION_SET_STARRED);
+        intent.putExtra("unsupported", new int[] { 1 });
+        try {
+            ContactSaveJournalCodec.encode(intent);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testUnknownVersionFails() {
+        try {
+            ContactSaveJournalCodec.decode(new byte[] { 0, 0, 0, 99 });
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
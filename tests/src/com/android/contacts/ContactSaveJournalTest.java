@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts;
+
+import android.content.Intent;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ContactSaveJournal}. A process that died is simulated by reading the
+ * journal file with a new instance.
+ */
+@MediumTest
+public class ContactSaveJournalTest extends AndroidTestCase {
+
+    private static final long LOAD_TIMEOUT_SECONDS = 10;
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "journal_test");
+        mDirectory.mkdirs();
+        new File(mDirectory, ContactSaveJournal.FILE_NAME).delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File(mDirectory, ContactSaveJournal.FILE_NAME).delete();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testPendingOperationIsReplayed() throws Exception {
+        final ContactSaveJournal journal = loadedJournal();
+        assertTrue(journal.enqueue(createIntent(1), true));
+        // Loading again waits for the enqueue record to be written.
+        load(journal);
+
+        final List<Intent> replay = load(new ContactSaveJournal(mDirectory));
+        assertEquals(1, replay.size());
+        assertEquals(ContactSaveService.ACTION_SET_STARRED, replay.get(0).getAction());
+        assertEquals(1, replay.get(0).getLongExtra(ContactSaveService.EXTRA_CONTACT_URI, 0));
+        assertTrue(replay.get(0).hasExtra(ContactSaveJournal.EXTRA_JOURNAL_KEY));
+    }
+
+    public void testStartedOperationIsReplayed() throws Exception {
+        final ContactSaveJournal journal = loadedJournal();
+        final Intent intent = createIntent(1);
+        journal.enqueue(intent, true);
+        assertTrue(journal.begin(intent));
+
+        assertEquals(1, load(new ContactSaveJournal(mDirectory)).size());
+    }
+
+    public void testCompletedOperationIsNotReplayed() throws Exception {
+        final ContactSaveJournal journal = loadedJournal();
+        final Intent done = createIntent(1);
+        final Intent pending = createIntent(2);
+        journal.enqueue(done, true);
+        journal.enqueue(pending, true);
+        journal.begin(done);
+        journal.complete(done);
+        load(journal);
+
+        final List<Intent> replay = load(new ContactSaveJournal(mDirectory));
+        assertEquals(1, replay.size());
+        assertEquals(2, replay.get(0).getLongExtra(ContactSaveService.EXTRA_CONTACT_URI, 0));
+    }
+
+    public void testOperationIsDroppedAfterMaxAttempts() throws Exception {
+        final ContactSaveJournal journal = loadedJournal();
+        final Intent intent = createIntent(1);
+        journal.enqueue(intent, true);
+        for (int i = 0; i < ContactSaveJournal.MAX_ATTEMPTS - 1; i++) {
+            journal.begin(intent);
+        }
+        final ContactSaveJournal restarted = new ContactSaveJournal(mDirectory);
+        final List<Intent> replay = load(restarted);
+        assertEquals(1, replay.size());
+
+        // The replay crashes as well.
+        restarted.begin(replay.get(0));
+        assertTrue(load(new ContactSaveJournal(mDirectory)).isEmpty());
+    }
+
+    public void testStartedOperationThatIsNotReplaySafeIsDropped() throws Exception {
+        final ContactSaveJournal journal = loadedJournal();
+        final Intent started = createIntent(1);
+        final Intent queued = createIntent(2);
+        journal.enqueue(started, false);
+        journal.enqueue(queued, false);
+        journal.begin(started);
+
+        // Only the operation that never started may be applied.
+        final List<Intent> replay = load(new ContactSaveJournal(mDirectory));
+        assertEquals(1, replay.size());
+        assertEquals(2, replay.get(0).getLongExtra(ContactSaveService.EXTRA_CONTACT_URI, 0));
+    }
+
+    public void testJournalIsRemovedOnceNothingIsPending() throws Exception {
+        final ContactSaveJournal journal = loadedJournal();
+        final Intent intent = createIntent(1);
+        journal.enqueue(intent, true);
+        journal.begin(intent);
+        assertTrue(new File(mDirectory, ContactSaveJournal.FILE_NAME).exists());
+
+        journal.complete(intent);
+        assertTrue(load(journal).isEmpty());
+        assertFalse(new File(mDirectory, ContactSaveJournal.FILE_NAME).exists());
+    }
+
+    public void testLoadCompactsJournal() throws Exception {
+        final ContactSaveJournal journal = loadedJournal();
+        for (int i = 1; i <= 10; i++) {
+            final Intent intent = createIntent(i);
+            journal.enqueue(intent, true);
+            journal.begin(intent);
+            if (i != 5) {
+                journal.complete(intent);
+            }
+        }
+        load(journal);
+        final File file = new File(mDirectory, ContactSaveJournal.FILE_NAME);
+        final long length = file.length();
+
+        // The rewritten journal holds the pending operation with its attempt count.
+        final ContactSaveJournal reloaded = new ContactSaveJournal(mDirectory);
+        final List<Intent> replay = load(reloaded);
+        assertEquals(1, replay.size());
+        assertEquals(5, replay.get(0).getLongExtra(ContactSaveService.EXTRA_CONTACT_URI, 0));
+        assertTrue(file.length() <= length);
+        for (int i = 1; i < ContactSaveJournal.MAX_ATTEMPTS; i++) {
+            reloaded.begin(replay.get(0));
+        }
+        assertTrue(load(new ContactSaveJournal(mDirectory)).isEmpty());
+    }
+
+    private ContactSaveJournal loadedJournal() throws InterruptedException {
+        final ContactSaveJournal journal = new ContactSaveJournal(mDirectory);
+        load(journal);
+        return journal;
+    }
+
+    private static List<Intent> load(ContactSaveJournal journal) throws InterruptedException {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        journal.load(new ContactSaveJournal.LoadListener() {
+            @Override
+            public void onLoaded(List<Intent> pending) {
+                result[0] = pending;
+                loaded.countDown();
+            }
+        });
+        assertTrue(loaded.await(LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        @SuppressWarnings("unchecked")
+        final List<Intent> pending = (List<Intent>) result[0];
+        return pending;
+    }
+
+    private static Intent createIntent(long id) {
+        final Intent intent = new Intent(ContactSaveService.ACTION_SET_STARRED);
+        intent.putExtra(ContactSaveService.EXTRA_CONTACT_URI, id);
+        intent.putExtra(ContactSaveService.EXTRA_STARRED_FLAG, true);
+        return intent;
+    }
+}
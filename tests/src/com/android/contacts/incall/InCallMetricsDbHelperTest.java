@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.incall;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Tests for the buffered increments and the schema upgrades of {@link InCallMetricsDbHelper}.
+ */
+@MediumTest
+public class InCallMetricsDbHelperTest extends AndroidTestCase {
+    private static final String TAG = "InCallMetricsDbHelperTest";
+
+    private static final String DATABASE_NAME = "test_incall_metrics.db";
+    private static final String PROVIDER = "com.example.plugin/.InCallService";
+    private static final String NUDGE_ID = "nudge";
+    private static final int INCREMENTS = 10000;
+
+    private InCallMetricsDbHelper mDbHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mDbHelper = new InCallMetricsDbHelper(getContext(), DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testIncrementsAreBufferedUntilFlush() {
+        for (int i = 0; i < 3; i++) {
+            incrementImpression();
+        }
+        incrementInvite();
+        incrementInvite();
+        assertEquals(0, rowCount(InCallMetricsDbHelper.Tables.INAPP_TABLE));
+        assertEquals(0, rowCount(InCallMetricsDbHelper.Tables.USER_ACTIONS_TABLE));
+
+        mDbHelper.flush();
+        assertEquals(3, singleCount(InCallMetricsHelper.Categories.INAPP_NUDGES));
+        assertEquals(2, singleCount(InCallMetricsHelper.Categories.USER_ACTIONS));
+
+        // later increments are added to the written entries
+        incrementImpression();
+        incrementInvite();
+        mDbHelper.flush();
+        assertEquals(4, singleCount(InCallMetricsHelper.Categories.INAPP_NUDGES));
+        assertEquals(3, singleCount(InCallMetricsHelper.Categories.USER_ACTIONS));
+    }
+
+    public void testGetEntriesAfterFlush() {
+        incrementImpression();
+        incrementImpression();
+        assertTrue(mDbHelper.getEntries(InCallMetricsHelper.Categories.INAPP_NUDGES, -1, 10)
+                .isEmpty());
+        mDbHelper.flush();
+        assertEquals(2, singleCount(InCallMetricsHelper.Categories.INAPP_NUDGES));
+    }
+
+    public void testAcceptanceClosesBufferedEntry() {
+        incrementImpression();
+        mDbHelper.setInAppAcceptance(PROVIDER,
+                InCallMetricsHelper.Events.INAPP_NUDGE_CONTACTS_LOGIN.value(),
+                InCallMetricsHelper.Categories.INAPP_NUDGES.value(),
+                InCallMetricsHelper.EVENT_ACCEPT, NUDGE_ID);
+        // a new impression after the acceptance starts a new entry
+        incrementImpression();
+        mDbHelper.flush();
+        assertEquals(2, rowCount(InCallMetricsDbHelper.Tables.INAPP_TABLE));
+    }
+
+    /**
+     * Compares writing every increment through to the database, as was done before
+     * increments were buffered, with a single flush of all of them.
+     */
+    public void testIncrementBenchmark() {
+        long start = System.nanoTime();
+        for (int i = 0; i < INCREMENTS; i++) {
+            incrementImpression();
+            mDbHelper.flush();
+        }
+        final long writeThroughMs = (System.nanoTime() - start) / 1000000;
+        assertEquals(INCREMENTS, singleCount(InCallMetricsHelper.Categories.INAPP_NUDGES));
+        mDbHelper.getWritableDatabase().delete(InCallMetricsDbHelper.Tables.INAPP_TABLE, null,
+                null);
+
+        start = System.nanoTime();
+        for (int i = 0; i < INCREMENTS; i++) {
+            incrementImpression();
+        }
+        mDbHelper.flush();
+        final long bufferedMs = (System.nanoTime() - start) / 1000000;
+        assertEquals(INCREMENTS, singleCount(InCallMetricsHelper.Categories.INAPP_NUDGES));
+
+        Log.i(TAG, "increments=" + INCREMENTS + " writeThroughMs=" + writeThroughMs
+                + " bufferedMs=" + bufferedMs);
+    }
+
+    public void testUpgradeFromVersion1KeepsEntries() {
+        final SQLiteDatabase db =
+                getContext().openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null);
+        db.execSQL("CREATE TABLE inapp_metrics (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "category TEXT, event_name TEXT, count INTEGER DEFAULT 0, nudge_id TEXT, "
+                + "event_acceptance INTEGER DEFAULT -1, event_acceptance_time INTEGER DEFAULT 0, "
+                + "provider_name TEXT);");
+        db.execSQL("CREATE TABLE user_actions_metrics (id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "category TEXT, event_name TEXT, count INTEGER DEFAULT 0, provider_name TEXT, "
+                + "raw_id INTEGER DEFAULT 0);");
+        db.execSQL("INSERT INTO inapp_metrics (category, event_name, count, nudge_id, "
+                + "provider_name) VALUES ('INAPP_NUDGES', 'INAPP_NUDGE_CONTACTS_LOGIN', 5, '"
+                + NUDGE_ID + "', '" + PROVIDER + "')");
+        db.execSQL("INSERT INTO inapp_metrics (category, event_name, count, nudge_id, "
+                + "event_acceptance, event_acceptance_time, provider_name) VALUES "
+                + "('INAPP_NUDGES', 'INAPP_NUDGE_CONTACTS_LOGIN', 2, '" + NUDGE_ID + "', 1, "
+                + "1000, '" + PROVIDER + "')");
+        db.execSQL("INSERT INTO user_actions_metrics (category, event_name, count, "
+                + "provider_name, raw_id) VALUES ('USER_ACTIONS', 'INVITES_SENT', 4, '"
+                + PROVIDER + "', '')");
+        db.execSQL("INSERT INTO user_actions_metrics (category, event_name, count, "
+                + "provider_name, raw_id) VALUES ('USER_ACTIONS', 'CONTACTS_AUTO_MERGED', 1, '"
+                + PROVIDER + "', '7')");
+        db.setVersion(1);
+        db.close();
+
+        assertEquals(2, rowCount(InCallMetricsDbHelper.Tables.INAPP_TABLE));
+        assertEquals(2, rowCount(InCallMetricsDbHelper.Tables.USER_ACTIONS_TABLE));
+        assertEquals(5, count(InCallMetricsDbHelper.Tables.INAPP_TABLE,
+                "event_acceptance_time = 0"));
+        assertEquals(2, count(InCallMetricsDbHelper.Tables.INAPP_TABLE,
+                "event_acceptance_time = 1000"));
+
+        // increments are added to the migrated entries
+        incrementImpression();
+        incrementInvite();
+        mDbHelper.incrementUserActionsParam(PROVIDER, "7",
+                InCallMetricsHelper.Events.CONTACTS_AUTO_MERGED.value(),
+                InCallMetricsHelper.Categories.USER_ACTIONS.value(),
+                InCallMetricsHelper.Parameters.COUNT.toCol());
+        mDbHelper.flush();
+        assertEquals(2, rowCount(InCallMetricsDbHelper.Tables.INAPP_TABLE));
+        assertEquals(2, rowCount(InCallMetricsDbHelper.Tables.USER_ACTIONS_TABLE));
+        assertEquals(6, count(InCallMetricsDbHelper.Tables.INAPP_TABLE,
+                "event_acceptance_time = 0"));
+        assertEquals(5, count(InCallMetricsDbHelper.Tables.USER_ACTIONS_TABLE,
+                "event_name = 'INVITES_SENT'"));
+        assertEquals(1, count(InCallMetricsDbHelper.Tables.USER_ACTIONS_TABLE,
+                "event_name = 'CONTACTS_AUTO_MERGED'"));
+    }
+
+    private void incrementImpression() {
+        mDbHelper.incrementInAppParam(PROVIDER,
+                InCallMetricsHelper.Events.INAPP_NUDGE_CONTACTS_LOGIN.value(),
+                InCallMetricsHelper.Categories.INAPP_NUDGES.value(), NUDGE_ID,
+                InCallMetricsHelper.Parameters.COUNT.toCol());
+    }
+
+    private void incrementInvite() {
+        mDbHelper.incrementUserActionsParam(PROVIDER, "",
+                InCallMetricsHelper.Events.INVITES_SENT.value(),
+                InCallMetricsHelper.Categories.USER_ACTIONS.value(),
+                InCallMetricsHelper.Parameters.COUNT.toCol());
+    }
+
+    private long rowCount(String table) {
+        return DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(), table);
+    }
+
+    private long count(String table, String selection) {
+        return DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(),
+                "SELECT count FROM " + table + " WHERE " + selection, null);
+    }
+
+    private int singleCount(InCallMetricsHelper.Categories cat) {
+        final List<ContentValues> entries = mDbHelper.getEntries(cat, -1, 2);
+        assertEquals(1, entries.size());
+        return entries.get(0).getAsInteger(InCallMetricsHelper.Parameters.COUNT.toCol());
+    }
+}
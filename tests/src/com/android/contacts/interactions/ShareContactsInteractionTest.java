@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.interactions;
+
+import android.net.Uri;
+import android.provider.ContactsContract.Contacts;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ShareContactsInteraction}.
+ */
+@SmallTest
+public class ShareContactsInteractionTest extends AndroidTestCase {
+
+    public void testBuildMultiVCardUri() {
+        final List<String> lookupKeys = Arrays.asList("0r1-2B", "3i4.5:6", "7 8", "9");
+        final Uri uri = ShareContactsInteraction.buildMultiVCardUri(lookupKeys, 1, 3);
+
+        final List<String> segments = uri.getPathSegments();
+        assertEquals(Contacts.CONTENT_MULTI_VCARD_URI.getPathSegments(),
+                segments.subList(0, segments.size() - 1));
+        // Each key is encoded so that the ':' separating keys is unambiguous.
+        assertEquals(Uri.encode("3i4.5:6") + ":" + Uri.encode("7 8"),
+                uri.getLastPathSegment());
+    }
+
+    public void testBuildMultiVCardUriSingleKey() {
+        final Uri uri = ShareContactsInteraction.buildMultiVCardUri(
+                Arrays.asList("0r1-2B"), 0, 1);
+        assertEquals("0r1-2B", uri.getLastPathSegment());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Tests for {@link LongHashSet}.
+ */
+@SmallTest
+public class LongHashSetTest extends AndroidTestCase {
+
+    public void testAddRemove() {
+        final LongHashSet set = new LongHashSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(5));
+        assertTrue(set.add(-3));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertTrue(set.add(0));
+        assertFalse(set.add(5));
+        assertEquals(4, set.size());
+        assertSameElements(new long[] { -3, 0, 5, Long.MAX_VALUE }, set);
+
+        assertTrue(set.contains(0));
+        assertFalse(set.contains(1));
+        assertTrue(set.remove(0));
+        assertFalse(set.remove(0));
+        assertFalse(set.contains(0));
+        assertEquals(3, set.size());
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(5));
+        assertFalse(set.contains(-3));
+    }
+
+    public void testNegativeValues() {
+        final LongHashSet set = new LongHashSet();
+        for (long value = -1; value >= -1000; value--) {
+            assertTrue(set.add(value));
+        }
+        assertEquals(1000, set.size());
+        for (long value = -1; value >= -1000; value--) {
+            assertTrue(set.contains(value));
+            assertFalse(set.contains(-value));
+        }
+        for (long value = -1; value >= -1000; value -= 2) {
+            assertTrue(set.remove(value));
+        }
+        for (long value = -1; value >= -1000; value--) {
+            assertEquals(value % 2 == 0, set.contains(value));
+        }
+    }
+
+    /**
+     * Long.MIN_VALUE marks free slots in the table, it has to be tracked on its own.
+     */
+    public void testMinValue() {
+        final LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertFalse(set.remove(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertFalse(set.add(Long.MIN_VALUE));
+        assertTrue(set.add(1));
+        assertEquals(2, set.size());
+        assertSameElements(new long[] { Long.MIN_VALUE, 1 }, set);
+
+        assertTrue(set.remove(Long.MIN_VALUE));
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertTrue(set.contains(1));
+        assertEquals(1, set.size());
+
+        set.add(Long.MIN_VALUE);
+        set.clear();
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertTrue(set.isEmpty());
+    }
+
+    /**
+     * Grows a set that starts at the minimum capacity far past it, checking every element after
+     * each rehash.
+     */
+    public void testGrow() {
+        final LongHashSet set = new LongHashSet(0);
+        for (long id = 1; id <= 10000; id++) {
+            assertTrue(set.add(id));
+            if (Long.bitCount(id) == 1) {
+                for (long other = 1; other <= id; other++) {
+                    assertTrue(set.contains(other));
+                }
+                assertFalse(set.contains(id + 1));
+            }
+        }
+        assertEquals(10000, set.size());
+        assertEquals(10000, set.toArray().length);
+    }
+
+    /**
+     * Removes every element of many small sets that fit the minimum table, so probe sequences
+     * collide and wrap around its end. Removing an element must keep every other element
+     * reachable.
+     */
+    public void testRemoveKeepsProbeSequences() {
+        final Random random = new Random(0);
+        for (int round = 0; round < 20000; round++) {
+            final long[] keys = new long[4];
+            final LongHashSet set = new LongHashSet();
+            for (int i = 0; i < keys.length; i++) {
+                do {
+                    keys[i] = random.nextInt(64) - 32;
+                } while (!set.add(keys[i]));
+            }
+            final int removed = random.nextInt(keys.length);
+            assertTrue(set.remove(keys[removed]));
+            for (int i = 0; i < keys.length; i++) {
+                assertEquals(i != removed, set.contains(keys[i]));
+            }
+            assertEquals(keys.length - 1, set.size());
+        }
+    }
+
+    public void testMatchesHashSet() {
+        final Random random = new Random(0);
+        final LongHashSet set = new LongHashSet();
+        final HashSet<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < 20000; i++) {
+            final long value = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) != 0) {
+                assertEquals(expected.add(value), set.add(value));
+            } else {
+                assertEquals(expected.remove(value), set.remove(value));
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        for (long value = -1000; value < 1000; value++) {
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+    }
+
+    private static void assertSameElements(long[] expected, LongHashSet set) {
+        final long[] actual = set.toArray();
+        Arrays.sort(actual);
+        final long[] sorted = expected.clone();
+        Arrays.sort(sorted);
+        assertTrue(Arrays.toString(actual), Arrays.equals(sorted, actual));
+    }
+}
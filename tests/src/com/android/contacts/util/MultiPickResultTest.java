@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import com.android.contacts.common.SimContactsConstants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests for {@link MultiPickResult}.
+ */
+@MediumTest
+public class MultiPickResultTest extends AndroidTestCase {
+    private static final String TAG = "MultiPickResultTest";
+
+    private static final int[] SELECTION_SIZES = { 100, 1000, 10000 };
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("result", ".bin", getContext().getCacheDir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws IOException {
+        final MultiPickResult.Writer writer = newWriter();
+        writer.add(1, values(1));
+        writer.add(2, new String[] { null, "été", "" });
+        writer.add(3, null);
+        writer.finishFile();
+        assertEquals(3, writer.getCount());
+
+        final MultiPickResult.Reader reader = newReader(3);
+        try {
+            assertEquals(3, reader.getCount());
+            assertTrue(reader.moveToNext());
+            assertEquals(1, reader.getId());
+            assertEquals(values(1)[4], reader.getValues()[4]);
+            assertTrue(reader.moveToNext());
+            assertEquals(2, reader.getId());
+            assertNull(reader.getValues()[0]);
+            assertEquals("été", reader.getValues()[1]);
+            assertEquals("", reader.getValues()[2]);
+            assertTrue(reader.moveToNext());
+            assertEquals(3, reader.getId());
+            assertNull(reader.getValues());
+            assertFalse(reader.moveToNext());
+            assertFalse(reader.moveToNext());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testInlineResultIsRead() throws IOException {
+        final Bundle choiceSet = new Bundle();
+        choiceSet.putStringArray("7", values(7));
+        final Intent data = new Intent();
+        data.putExtra(SimContactsConstants.RESULT_KEY, choiceSet);
+        assertFalse(MultiPickResult.isOutOfBand(data));
+
+        final MultiPickResult.Reader reader = MultiPickResult.open(getContext(), data);
+        assertEquals(1, reader.getCount());
+        assertTrue(reader.moveToNext());
+        assertEquals(7, reader.getId());
+        assertEquals(values(7)[0], reader.getValues()[0]);
+        assertFalse(reader.moveToNext());
+    }
+
+    /**
+     * Compares the size of the result Intent, which is what crosses the binder, when the
+     * selection is returned inline and through a file. The file result must not grow with
+     * the selection.
+     */
+    public void testResultSizeIsFlat() throws IOException {
+        int outOfBandSize = -1;
+        for (int count : SELECTION_SIZES) {
+            final Bundle choiceSet = new Bundle();
+            final MultiPickResult.Writer writer = newWriter();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                writer.add(i, values(i));
+            }
+            writer.finishFile();
+            final long writeMs = (System.nanoTime() - start) / 1000000;
+
+            start = System.nanoTime();
+            final MultiPickResult.Reader reader = newReader(count);
+            int read = 0;
+            try {
+                while (reader.moveToNext()) {
+                    read++;
+                }
+            } finally {
+                reader.close();
+            }
+            final long readMs = (System.nanoTime() - start) / 1000000;
+            assertEquals(count, read);
+
+            for (int i = 0; i < count; i++) {
+                choiceSet.putStringArray(String.valueOf(i), values(i));
+            }
+            final Intent inline = new Intent();
+            inline.putExtra(SimContactsConstants.RESULT_KEY, choiceSet);
+            final Intent outOfBand = new Intent();
+            outOfBand.setData(Uri.fromFile(mFile));
+            outOfBand.putExtra(MultiPickResult.EXTRA_RESULT_COUNT, count);
+
+            final int inlineSize = parcelSize(inline);
+            final int size = parcelSize(outOfBand);
+            Log.i(TAG, "count=" + count + " inlineBytes=" + inlineSize + " handleBytes=" + size
+                    + " fileBytes=" + mFile.length() + " writeMs=" + writeMs
+                    + " readMs=" + readMs);
+            if (outOfBandSize >= 0) {
+                assertEquals(outOfBandSize, size);
+            }
+            outOfBandSize = size;
+        }
+    }
+
+    private MultiPickResult.Writer newWriter() throws IOException {
+        return new MultiPickResult.Writer(getContext(), mFile, new FileOutputStream(mFile));
+    }
+
+    private MultiPickResult.Reader newReader(int count) throws IOException {
+        return new MultiPickResult.StreamReader(new FileInputStream(mFile), count);
+    }
+
+    private static String[] values(long id) {
+        return new String[] {
+                "0r" + id + "-2C3A4E", String.valueOf(id), String.valueOf(id + 1),
+                "content://com.android.contacts/contacts/" + id + "/photo", "Contact " + id
+        };
+    }
+
+    private static int parcelSize(Intent intent) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            intent.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
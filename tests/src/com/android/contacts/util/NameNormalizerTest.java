@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link NameNormalizer}.
+ */
+@SmallTest
+public class NameNormalizerTest extends AndroidTestCase {
+
+    public void testNormalize() {
+        assertEquals("zoe", NameNormalizer.normalize("Zoë"));
+        assertEquals("francois muller", NameNormalizer.normalize("FRANÇOIS Müller"));
+        assertEquals("", NameNormalizer.normalize(""));
+    }
+
+    public void testSplitWords() {
+        assertTrue(Arrays.equals(new String[] { "jean", "luc", "o", "neil" },
+                NameNormalizer.splitWords("jean-luc o'neil")));
+        assertTrue(Arrays.equals(new String[] { "", "ann", "2" },
+                NameNormalizer.splitWords(" ann (2)")));
+    }
+}
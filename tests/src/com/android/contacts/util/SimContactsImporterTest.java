@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+
+/**
+ * Tests for {@link SimContactsImporter}.
+ */
+@SmallTest
+public class SimContactsImporterTest extends AndroidTestCase {
+
+    private static final int RECORD_COUNT = 1000;
+
+    /** Provider that counts batches and answers raw contact inserts with increasing IDs. */
+    private static class BatchCountingProvider extends MockContentProvider {
+        int transactions;
+        int operations;
+        int rawContactInserts;
+        int aggregationUpdates;
+        int maxBatchSize;
+        long nextRawContactId = 1;
+        /** Batches with more operations than this fail, if set. */
+        int maxAcceptedBatchSize = Integer.MAX_VALUE;
+
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> batch) throws OperationApplicationException {
+            if (batch.size() > maxAcceptedBatchSize) {
+                throw new OperationApplicationException("batch too large");
+            }
+            transactions++;
+            operations += batch.size();
+            maxBatchSize = Math.max(maxBatchSize, batch.size());
+            final ContentProviderResult[] results = new ContentProviderResult[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                final ContentProviderOperation operation = batch.get(i);
+                if (operation.isInsert() && operation.getUri().equals(RawContacts.CONTENT_URI)) {
+                    rawContactInserts++;
+                    results[i] = new ContentProviderResult(ContentUris.withAppendedId(
+                            RawContacts.CONTENT_URI, nextRawContactId++));
+                } else {
+                    if (operation.isUpdate()
+                            && operation.getUri().equals(RawContacts.CONTENT_URI)) {
+                        aggregationUpdates++;
+                    }
+                    results[i] = new ContentProviderResult(1);
+                }
+            }
+            return results;
+        }
+    }
+
+    private BatchCountingProvider mProvider;
+    private SimContactsImporter mImporter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new BatchCountingProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mImporter = new SimContactsImporter(resolver, new Account("phone", "phone"));
+    }
+
+    public void testImportPacksContactsIntoFewBatches() {
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            mImporter.add("Contact " + i, "555" + i, null, null);
+        }
+        mImporter.finish();
+
+        // Each record is a raw contact, a name and a number.
+        final int operationsPerContact = 3;
+        final int contactsPerBatch =
+                SimContactsImporter.MAX_OPERATIONS_PER_BATCH / operationsPerContact;
+        final int insertBatches = (RECORD_COUNT + contactsPerBatch - 1) / contactsPerBatch;
+        final int aggregationUpdates = (RECORD_COUNT
+                + SimContactsImporter.AGGREGATION_CHUNK_SIZE - 1)
+                / SimContactsImporter.AGGREGATION_CHUNK_SIZE;
+
+        assertEquals(RECORD_COUNT, mProvider.rawContactInserts);
+        assertEquals(RECORD_COUNT, mImporter.getImportedCount());
+        assertEquals(aggregationUpdates, mProvider.aggregationUpdates);
+        assertEquals(RECORD_COUNT * operationsPerContact + aggregationUpdates,
+                mProvider.operations);
+        // All inserts plus a single transaction that resumes aggregation.
+        assertEquals(insertBatches + 1, mProvider.transactions);
+        assertEquals(mProvider.transactions, mImporter.getTransactionCount());
+        assertEquals(mProvider.operations, mImporter.getOperationCount());
+        assertTrue(mProvider.maxBatchSize <= SimContactsImporter.MAX_OPERATIONS_PER_BATCH);
+    }
+
+    public void testContactIsNeverSplitAcrossBatches() {
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            mImporter.add("Contact " + i, "555" + i, "a" + i + "@example.com,b" + i
+                    + "@example.com", "556" + i);
+        }
+        mImporter.finish();
+
+        // 6 operations per contact, so a batch holds 83 contacts and 498 operations.
+        final int contactsPerBatch = SimContactsImporter.MAX_OPERATIONS_PER_BATCH / 6;
+        final int insertBatches = (RECORD_COUNT + contactsPerBatch - 1) / contactsPerBatch;
+        assertEquals(insertBatches + 1, mProvider.transactions);
+        assertEquals(RECORD_COUNT, mImporter.getImportedCount());
+    }
+
+    public void testFailedBatchIsRetriedPerContact() {
+        // Only a single contact with a name and a number fits.
+        mProvider.maxAcceptedBatchSize = 3;
+        for (int i = 0; i < 10; i++) {
+            mImporter.add("Contact " + i, "555" + i, null, null);
+        }
+        mImporter.finish();
+
+        assertEquals(10, mProvider.rawContactInserts);
+        assertEquals(10, mImporter.getImportedCount());
+    }
+
+    public void testFinishWithoutContacts() {
+        mImporter.finish();
+        assertEquals(0, mProvider.transactions);
+        assertEquals(0, mImporter.getImportedCount());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.util;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Tests for {@link SortedLongSet}.
+ */
+@SmallTest
+public class SortedLongSetTest extends AndroidTestCase {
+    private static final String TAG = "SortedLongSetTest";
+
+    private static final int SELECT_ALL_COUNT = 30000;
+
+    public void testAddRemove() {
+        final SortedLongSet set = new SortedLongSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(5));
+        assertTrue(set.add(-3));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertTrue(set.add(0));
+        assertFalse(set.add(5));
+        assertEquals(4, set.size());
+        assertTrue(Arrays.equals(new long[] { -3, 0, 5, Long.MAX_VALUE }, set.toArray()));
+
+        assertTrue(set.contains(0));
+        assertFalse(set.contains(1));
+        assertTrue(set.remove(0));
+        assertFalse(set.remove(0));
+        assertFalse(set.contains(0));
+        assertEquals(Long.MAX_VALUE, set.get(2));
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(5));
+    }
+
+    public void testMatchesTreeSet() {
+        final Random random = new Random(0);
+        final SortedLongSet set = new SortedLongSet();
+        final TreeSet<Long> expected = new TreeSet<Long>();
+        for (int i = 0; i < 5000; i++) {
+            final long value = random.nextInt(1000);
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(value), set.add(value));
+            } else {
+                assertEquals(expected.remove(value), set.remove(value));
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        int i = 0;
+        for (long value : expected) {
+            assertEquals(value, set.get(i++));
+        }
+    }
+
+    public void testFromArray() {
+        final SortedLongSet set = SortedLongSet.fromArray(new long[] { 9, 2, 9, 4, 2 });
+        assertTrue(Arrays.equals(new long[] { 2, 4, 9 }, set.toArray()));
+        assertTrue(set.add(10));
+        assertTrue(SortedLongSet.fromArray(null).isEmpty());
+        assertTrue(SortedLongSet.fromArray(new long[0]).isEmpty());
+    }
+
+    /**
+     * Selects a whole address book, then saves and restores the selection the way the contact
+     * list does on rotation.
+     */
+    public void testSelectAllSaveRestore() {
+        long start = System.nanoTime();
+        final SortedLongSet set = new SortedLongSet();
+        for (long id = 1; id <= SELECT_ALL_COUNT; id++) {
+            set.add(id);
+        }
+        final long selectNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        final Bundle bundle = new Bundle();
+        bundle.putLongArray("selected_contacts", set.toArray());
+        final Parcel parcel = Parcel.obtain();
+        final SortedLongSet restored;
+        try {
+            bundle.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            final Bundle read = parcel.readBundle();
+            restored = SortedLongSet.fromArray(read.getLongArray("selected_contacts"));
+        } finally {
+            parcel.recycle();
+        }
+        final long restoreNs = System.nanoTime() - start;
+
+        assertEquals(set, restored);
+        assertTrue(restored.contains(SELECT_ALL_COUNT));
+        Log.i(TAG, "count=" + SELECT_ALL_COUNT + " selectAllMs=" + selectNs / 1000000
+                + " saveRestoreMs=" + restoreNs / 1000000);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.contacts.widget;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+import android.widget.ArrayAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures position lookups of {@link CompositeListAdapter} with many sub-adapters, against
+ * the linear scan over the sub-adapter counts it used to do.
+ */
+@MediumTest
+public class CompositeListAdapterBenchmark extends AndroidTestCase {
+    private static final String TAG = "CompositeListAdapterBenchmark";
+
+    private static final int[] PARTITION_COUNTS = { 2, 20, 200 };
+    private static final int ITEMS_PER_PARTITION = 50;
+    private static final int PASSES = 20;
+
+    public void testLookups() {
+        for (int partitions : PARTITION_COUNTS) {
+            final CompositeListAdapter adapter = new CompositeListAdapter();
+            final List<ArrayAdapter<String>> children = new ArrayList<ArrayAdapter<String>>();
+            final int[] counts = new int[partitions];
+            for (int p = 0; p < partitions; p++) {
+                final List<String> items = new ArrayList<String>(ITEMS_PER_PARTITION);
+                for (int i = 0; i < ITEMS_PER_PARTITION; i++) {
+                    items.add(p + ":" + i);
+                }
+                final ArrayAdapter<String> child = new ArrayAdapter<String>(getContext(),
+                        android.R.layout.simple_list_item_1, items);
+                children.add(child);
+                adapter.addAdapter(child);
+                counts[p] = ITEMS_PER_PARTITION;
+            }
+            final int count = adapter.getCount();
+            assertEquals(partitions * ITEMS_PER_PARTITION, count);
+
+            long start = System.nanoTime();
+            for (int pass = 0; pass < PASSES; pass++) {
+                for (int position = 0; position < count; position++) {
+                    adapter.getItem(position);
+                    adapter.getItemViewType(position);
+                    adapter.isEnabled(position);
+                }
+            }
+            final long indexedNs = (System.nanoTime() - start) / (PASSES * count);
+
+            start = System.nanoTime();
+            for (int pass = 0; pass < PASSES; pass++) {
+                for (int position = 0; position < count; position++) {
+                    final int p = linearFind(counts, position);
+                    children.get(p).getItem(position - p * ITEMS_PER_PARTITION);
+                }
+            }
+            final long linearNs = (System.nanoTime() - start) / (PASSES * count);
+
+            // A change in the last partition only recounts that partition.
+            children.get(partitions - 1).add("added");
+            start = System.nanoTime();
+            assertEquals("added", adapter.getItem(count));
+            final long changeNs = System.nanoTime() - start;
+
+            for (int position = 0; position < count; position += ITEMS_PER_PARTITION / 2) {
+                assertEquals((position / ITEMS_PER_PARTITION) + ":"
+                        + (position % ITEMS_PER_PARTITION), adapter.getItem(position));
+            }
+
+            Log.i(TAG, "partitions=" + partitions + " items=" + count
+                    + " indexedLookupNs=" + indexedNs + " linearLookupNs=" + linearNs
+                    + " changeAndLookupNs=" + changeNs);
+        }
+    }
+
+    /**
+     * The lookup CompositeListAdapter did before it kept start positions.
+     */
+    private static int linearFind(int[] counts, int position) {
+        int start = 0;
+        for (int i = 0; i < counts.length; i++) {
+            int end = start + counts[i];
+            if (position >= start && position < end) {
+                return i;
+            }
+            start = end;
+        }
+        throw new ArrayIndexOutOfBoundsException(position);
+    }
+}
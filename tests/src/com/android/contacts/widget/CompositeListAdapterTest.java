@@ -144,6 +144,27 @@ public class CompositeListAdapterTest extends AndroidTestCase {
         assertEquals("E", adapter.getItem(4));
     }
 
+    public void testGetItemOutOfRange() {
+        CompositeListAdapter adapter = new CompositeListAdapter();
+        adapter.addAdapter(mAdapter1);
+        adapter.addAdapter(mAdapter3);
+        adapter.addAdapter(mAdapter2);
+
+        assertEquals("E", adapter.getItem(4));
+        try {
+            adapter.getItem(5);
+            fail();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            adapter.getItem(-1);
+            fail();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
     public void testGetItemId() {
         CompositeListAdapter adapter = new CompositeListAdapter();
         adapter.addAdapter(mAdapter1);